@@ -0,0 +1,61 @@
+package com.bah.geterdun;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wakes the readers of {@link ChangeFeed}s when records are pushed out to any
+ * log of an instance. Writers only count the append unless a reader is
+ * waiting.
+ */
+class AppendNotifier {
+
+  private final AtomicLong appends = new AtomicLong();
+  private volatile int waiting;
+
+  /**
+   * Called by a log after records have been flushed or synced.
+   */
+  void appended() {
+    appends.incrementAndGet();
+    if (waiting > 0) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return The number of appends so far, to pass to
+   *         {@link #await(long, long)} once the logs have been read.
+   */
+  long getAppends() {
+    return appends.get();
+  }
+
+  /**
+   * Waits until there has been an append since {@link #getAppends()} returned
+   * <tt>seen</tt>.
+   *
+   * @return <tt>false</tt> if the timeout passed first.
+   */
+  boolean await(long seen, long timeoutNanos) throws InterruptedException {
+    long start = System.nanoTime();
+    synchronized (this) {
+      waiting++;
+      try {
+        while (appends.get() == seen) {
+          long remaining = timeoutNanos - (System.nanoTime() - start);
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+      } finally {
+        waiting--;
+      }
+    }
+  }
+
+}
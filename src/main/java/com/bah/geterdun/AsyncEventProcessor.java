@@ -0,0 +1,28 @@
+package com.bah.geterdun;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Processes events asynchronously. This is the non-blocking counterpart of
+ * {@link EventProcessor}, for downstream clients that are natively
+ * asynchronous.
+ * 
+ * @param <EVENT>
+ *          The type of the event.
+ */
+public interface AsyncEventProcessor<EVENT> {
+
+  /**
+   * Start durably processing an event. This should not block.
+   * 
+   * @param event
+   *          An event to process.
+   * @return A future that completes with <tt>true</tt> if the event is
+   *         successfully processed, or <tt>false</tt> if the event failed to
+   *         process due to a recoverable error. If the future fails, or this
+   *         method throws an exception, the event failed due to an
+   *         unrecoverable error and will not be retried.
+   */
+  public ListenableFuture<Boolean> processEvent(EVENT event);
+
+}
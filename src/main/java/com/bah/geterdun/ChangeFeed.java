@@ -0,0 +1,513 @@
+package com.bah.geterdun;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bah.geterdun.LogResolver.CorruptLogException;
+
+/**
+ * Reads every event logged by a {@link GeterDun} from its write ahead logs, for
+ * consumers other than the {@link EventProcessor}, such as an audit trail or a
+ * search index. The feed reads the logs after they are written, so a slow
+ * consumer does not slow down posting.
+ * <p>
+ * A feed has a name, and keeps its cursor next to the logs of each lane, in a
+ * file named <tt>feed.</tt> followed by the name. {@link #poll} returns the
+ * changes that follow the cursor and {@link #checkpoint()} saves how far they
+ * went, so a feed opened again with the same name carries on from the last
+ * checkpoint, and anything read after it is read again. A log whose events
+ * have all been committed is kept until every feed has saved a cursor past its
+ * end. A feed that is opened for the first time starts from the oldest log
+ * that is still kept.
+ * <p>
+ * Changes are in the order they were logged within each log, and logs are
+ * read from oldest to newest. Retries also log changes to old logs, such as
+ * the commits of retried events and the merged events of a
+ * {@link Coalescer}. Logs written before sync markers were added to the format
+ * are not read. A feed is not thread safe.
+ *
+ * @param <EVENT>
+ *          The type of the events.
+ */
+public class ChangeFeed<EVENT> {
+
+  public enum Type {
+    /** An event was logged. */
+    BEGIN,
+    /** An event was processed, dead lettered or given up on. */
+    COMMIT
+  }
+
+  /**
+   * An event that was logged or committed.
+   */
+  public static class Change<EVENT> {
+    private final Type type;
+    private final String lane;
+    private final String logId;
+    private final long id;
+    private final long beginTime;
+    private final EVENT event;
+
+    Change(Type type, String lane, String logId, long id, long beginTime,
+        EVENT event) {
+      this.type = type;
+      this.lane = lane;
+      this.logId = logId;
+      this.id = id;
+      this.beginTime = beginTime;
+      this.event = event;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public String getLane() {
+      return lane;
+    }
+
+    /**
+     * @return The sync marker of the log the event was begun in, in
+     *         hexadecimal, which stays the same when the log is renamed.
+     */
+    public String getLogId() {
+      return logId;
+    }
+
+    /**
+     * @return The ID of the event, which is only unique within its log.
+     */
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * @return The time a BEGIN was logged, or <tt>0</tt> for a COMMIT or if
+     *         the log is not timestamped.
+     */
+    public long getBeginTime() {
+      return beginTime;
+    }
+
+    /**
+     * @return The event of a BEGIN, or <tt>null</tt> for a COMMIT.
+     */
+    public EVENT getEvent() {
+      return event;
+    }
+
+    @Override
+    public String toString() {
+      return type + " " + lane + "/" + logId + "/" + id;
+    }
+  }
+
+  /**
+   * How far a feed has read a log: the offset of the next record and the last
+   * event ID created before it, which the IDs of compact records are relative
+   * to.
+   */
+  static class Position {
+    long offset;
+    long counter;
+
+    Position(long offset, long counter) {
+      this.offset = offset;
+      this.counter = counter;
+    }
+  }
+
+  /**
+   * The logs of one lane and how far they have been read.
+   */
+  private static class LaneCursor<EVENT> {
+    final WriteAheadLogManager<EVENT> manager;
+    final Path cursorPath;
+    /** The position in each log, by log ID, in the order of the logs. */
+    Map<String, Position> positions;
+    /** The ID of each log by its name, as of {@link #rotations}. */
+    final Map<String, String> logIds = new HashMap<String, String>();
+    long rotations = -1;
+
+    LaneCursor(WriteAheadLogManager<EVENT> manager, Path cursorPath,
+        Map<String, Position> positions) {
+      this.manager = manager;
+      this.cursorPath = cursorPath;
+      this.positions = positions;
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChangeFeed.class);
+  static final String PREFIX = "feed.";
+  private static final int CURSOR_VERSION = 1;
+  private static final PathFilter CURSORS = new PathFilter() {
+    public boolean accept(Path path) {
+      return path.getName().startsWith(PREFIX);
+    }
+  };
+  private final String name;
+  private final boolean commits;
+  private final Class<EVENT> eventClass;
+  private final LogResolver<EVENT> resolver = new LogResolver<EVENT>();
+  private final AppendNotifier notifier;
+  private final List<LaneCursor<EVENT>> lanes = new ArrayList<LaneCursor<EVENT>>();
+  /** The lane the next poll starts from, so that no lane is starved. */
+  private int nextLane;
+
+  /**
+   * Opens the feed in every lane, and saves an empty cursor in the lanes it
+   * has none in yet, so that logs are kept for it from now on.
+   *
+   * @param commits
+   *          Whether COMMIT changes are read as well as BEGIN changes.
+   */
+  ChangeFeed(String name, Collection<WriteAheadLogManager<EVENT>> managers,
+      boolean commits) throws IOException {
+    if (name.length() == 0 || name.indexOf('/') >= 0) {
+      throw new IllegalArgumentException("Invalid change feed name " + name);
+    }
+    this.name = name;
+    this.commits = commits;
+    WriteAheadLog.Factory<EVENT> factory = managers.iterator().next()
+        .getLogFactory();
+    eventClass = factory.getEventClass();
+    notifier = factory.getAppendNotifier();
+    for (WriteAheadLogManager<EVENT> manager : managers) {
+      LogStorage storage = manager.getStorage();
+      Path cursorPath = new Path(manager.getPath(), PREFIX + name);
+      Map<String, Position> positions = loadCursor(storage, cursorPath);
+      if (positions == null) {
+        positions = new LinkedHashMap<String, Position>();
+        storeCursor(storage, cursorPath, positions);
+      }
+      lanes.add(new LaneCursor<EVENT>(manager, cursorPath, positions));
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Reads the changes that follow the last poll, waiting for new ones to be
+   * logged if there are none yet. Changes logged by this process are noticed
+   * as soon as they are flushed.
+   *
+   * @param max
+   *          The most changes to return, which a block of commits may take a
+   *          poll slightly over.
+   * @return The changes, which are empty if the timeout passed first.
+   */
+  public List<Change<EVENT>> poll(int max, long timeout, TimeUnit unit)
+      throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    long timeoutNanos = unit.toNanos(timeout);
+    List<Change<EVENT>> changes = new ArrayList<Change<EVENT>>();
+    while (true) {
+      // taken before reading, so an append during the read is not missed
+      long seen = notifier.getAppends();
+      for (int i = 0; i < lanes.size() && changes.size() < max; i++) {
+        read(lanes.get((nextLane + i) % lanes.size()), changes, max);
+      }
+      nextLane = (nextLane + 1) % lanes.size();
+      long remaining = timeoutNanos - (System.nanoTime() - start);
+      if (!changes.isEmpty() || remaining <= 0) {
+        return changes;
+      }
+      notifier.await(seen, remaining);
+    }
+  }
+
+  /**
+   * Saves the cursor as of the last poll, and deletes the committed logs that
+   * no feed needs any more.
+   */
+  public void checkpoint() throws IOException {
+    for (LaneCursor<EVENT> lane : lanes) {
+      storeCursor(lane.manager.getStorage(), lane.cursorPath, lane.positions);
+      lane.manager.releaseRetainedLogs();
+    }
+  }
+
+  /**
+   * Deletes the cursor of the feed, so that logs are no longer kept for it.
+   */
+  public void remove() throws IOException {
+    for (LaneCursor<EVENT> lane : lanes) {
+      lane.manager.getStorage().delete(lane.cursorPath);
+      lane.manager.releaseRetainedLogs();
+    }
+  }
+
+  /**
+   * Reads the logs of a lane from the oldest to the newest.
+   */
+  private void read(LaneCursor<EVENT> lane, List<Change<EVENT>> changes,
+      int max) throws IOException {
+    while (!readListed(lane, changes, max)) {
+      // a rotation renamed a log before it could be opened, so the logs are
+      // listed again
+    }
+  }
+
+  /**
+   * Lists the logs of a lane and finds their IDs while rotation is paused, and
+   * then reads them without holding rotation off.
+   *
+   * @return <tt>false</tt> if a log was renamed or deleted before it could be
+   *         read, in which case the logs after it have not been read.
+   */
+  private boolean readListed(LaneCursor<EVENT> lane,
+      List<Change<EVENT>> changes, int max) throws IOException {
+    WriteAheadLogManager<EVENT> manager = lane.manager;
+    LogStorage storage = manager.getStorage();
+    List<Path> logs = new ArrayList<Path>();
+    List<String> logIds = new ArrayList<String>();
+    List<Long> lengths = new ArrayList<Long>();
+    manager.pauseRotation();
+    try {
+      if (lane.rotations != manager.getRotations()) {
+        lane.logIds.clear();
+        lane.rotations = manager.getRotations();
+      }
+      for (FileStatus status : manager.listLogs()) {
+        Path path = status.getPath();
+        String logId = lane.logIds.get(path.getName());
+        if (logId == null) {
+          logId = readLogId(storage, path);
+          if (logId == null) {
+            continue;
+          }
+          lane.logIds.put(path.getName(), logId);
+        }
+        long length = status.getLen();
+        if (path.getName().equals(WriteAheadLogManager.CURRENT)) {
+          // the listed length of a log that is still being written may lag
+          // on some file systems
+          try {
+            length = storage.getLength(path);
+          } catch (FileNotFoundException e) {
+            continue;
+          }
+        }
+        logs.add(path);
+        logIds.add(logId);
+        lengths.add(length);
+      }
+    } finally {
+      manager.resumeRotation();
+    }
+    Map<String, Position> present = new LinkedHashMap<String, Position>();
+    for (int i = 0; i < logs.size(); i++) {
+      String logId = logIds.get(i);
+      Position position = lane.positions.get(logId);
+      boolean grown = position == null || position.offset < lengths.get(i);
+      if (grown && changes.size() < max
+          && !readLog(lane, logs.get(i), logId, lengths.get(i), changes, max)) {
+        return false;
+      }
+      position = lane.positions.get(logId);
+      if (position != null) {
+        present.put(logId, position);
+      }
+    }
+    // forget the logs that have been deleted
+    lane.positions = present;
+    return true;
+  }
+
+  /**
+   * @return The ID of a log, or <tt>null</tt> if it cannot be read.
+   */
+  private String readLogId(LogStorage storage, Path path) throws IOException {
+    LogInput in;
+    try {
+      in = storage.open(path);
+    } catch (FileNotFoundException e) {
+      // deleted since it was listed
+      return null;
+    }
+    try {
+      return logId(readHeader(in, path));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return The header of a log, or <tt>null</tt> if it is not complete yet.
+   */
+  private HeaderWritable readHeader(LogInput in, Path path) throws IOException {
+    HeaderWritable header = new HeaderWritable();
+    try {
+      header.readFields(in);
+    } catch (EOFException e) {
+      return null;
+    }
+    if (!eventClass.getName().equals(header.getClassName())) {
+      throw new IOException("Invalid class in write ahead log " + path
+          + ", expected " + eventClass.getName() + " got "
+          + header.getClassName());
+    }
+    return header;
+  }
+
+  /**
+   * @return The ID of a log, or <tt>null</tt> if it has no sync marker.
+   */
+  private static String logId(HeaderWritable header) {
+    if (header == null || header.getSyncMarker() == null) {
+      return null;
+    }
+    return StringUtils.byteToHexString(header.getSyncMarker());
+  }
+
+  /**
+   * Reads the changes of one log that follow its position, up to the end of
+   * the last whole record before <tt>length</tt>. Once it is open, the log is
+   * read to the end even if it is renamed.
+   *
+   * @return <tt>false</tt> if the log at the path is no longer the log with
+   *         the given ID.
+   */
+  private boolean readLog(LaneCursor<EVENT> lane, Path path, String logId,
+      long length, List<Change<EVENT>> changes, int max) throws IOException {
+    LogStorage storage = lane.manager.getStorage();
+    LogInput in;
+    try {
+      in = storage.open(path);
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    try {
+      HeaderWritable header = readHeader(in, path);
+      if (!logId.equals(logId(header))) {
+        return false;
+      }
+      Position position = lane.positions.get(logId);
+      if (position == null) {
+        position = new Position(in.getPos(), 0);
+        lane.positions.put(logId, position);
+      }
+      in.seek(position.offset);
+      try {
+        resolver.readChanges(in, eventClass, header.getReadVersion(),
+            position, lane.manager.getLane().getName(), logId, commits,
+            changes, max, length, path.toString());
+      } catch (CorruptLogException e) {
+        LOG.error("Skipping the rest of " + path + " in change feed " + name,
+            e);
+        position.offset = length;
+      }
+      return true;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return The positions in a cursor file by log ID, <tt>null</tt> if there
+   *         is no cursor file, or none if it cannot be read, so that the feed
+   *         starts again from the oldest log.
+   */
+  static Map<String, Position> loadCursor(LogStorage storage, Path path)
+      throws IOException {
+    if (!storage.exists(path)) {
+      return null;
+    }
+    Map<String, Position> positions = new LinkedHashMap<String, Position>();
+    LogInput in = storage.open(path);
+    try {
+      int version = in.readInt();
+      if (version != CURSOR_VERSION) {
+        throw new IOException("Version mismatch, expected " + CURSOR_VERSION
+            + " got " + version);
+      }
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        String logId = in.readUTF();
+        positions.put(logId, new Position(in.readLong(), in.readLong()));
+      }
+    } catch (IOException e) {
+      LOG.warn("Ignoring unreadable change feed cursor " + path, e);
+      positions.clear();
+    } finally {
+      in.close();
+    }
+    return positions;
+  }
+
+  /**
+   * Writes a cursor to a temporary file and then moves it over the old one, so
+   * that a crash leaves either the old cursor or the new one.
+   */
+  private static void storeCursor(LogStorage storage, Path path,
+      Map<String, Position> positions) throws IOException {
+    Path tmp = new Path(path.getParent(), "." + path.getName() + ".tmp");
+    LogOutput out = storage.create(tmp, true);
+    try {
+      out.writeInt(CURSOR_VERSION);
+      out.writeInt(positions.size());
+      for (Map.Entry<String, Position> position : positions.entrySet()) {
+        out.writeUTF(position.getKey());
+        out.writeLong(position.getValue().offset);
+        out.writeLong(position.getValue().counter);
+      }
+      out.hsync();
+    } finally {
+      out.close();
+    }
+    storage.replace(tmp, path);
+  }
+
+  /**
+   * @return The cursors of every change feed of a directory of logs.
+   */
+  static List<Map<String, Position>> loadCursors(LogStorage storage,
+      Path directory) throws IOException {
+    List<Map<String, Position>> cursors = new ArrayList<Map<String, Position>>();
+    for (FileStatus status : storage.listStatus(directory, CURSORS)) {
+      Map<String, Position> positions = loadCursor(storage, status.getPath());
+      if (positions != null) {
+        cursors.add(positions);
+      }
+    }
+    return cursors;
+  }
+
+  /**
+   * @return <tt>true</tt> if a feed has not read a log with the given sync
+   *         marker to the given length.
+   */
+  static boolean isNeeded(List<Map<String, Position>> cursors,
+      byte[] syncMarker, long length) {
+    if (syncMarker == null) {
+      return false;
+    }
+    String logId = StringUtils.byteToHexString(syncMarker);
+    for (Map<String, Position> positions : cursors) {
+      Position position = positions.get(logId);
+      if (position == null || position.offset < length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
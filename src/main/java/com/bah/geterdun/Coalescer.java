@@ -0,0 +1,29 @@
+package com.bah.geterdun;
+
+/**
+ * Collapses the uncommitted events of a log that share a key before they are
+ * retried, so that a backlog of updates to the same entity is sent
+ * downstream once instead of once per update. The older events are committed
+ * as superseded and only the result of merging them is retried.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ * @see GeterDunOptions#setCoalescer(Coalescer)
+ */
+public interface Coalescer<EVENT> extends KeyExtractor<EVENT> {
+
+  /**
+   * Combines two uncommitted events with the same key. Events are merged in
+   * the order they were posted.
+   * <p>
+   * Returning <tt>newer</tt> itself means it simply supersedes
+   * <tt>older</tt>, and nothing is written. Any other result is logged as a
+   * new event before the originals are committed. If the instance stops in
+   * between, the result is merged with the originals again on the next pass,
+   * so merging an event with a result it is already part of must be harmless.
+   *
+   * @return The event to retry in place of both.
+   */
+  public EVENT merge(EVENT older, EVENT newer);
+
+}
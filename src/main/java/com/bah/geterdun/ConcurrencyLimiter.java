@@ -0,0 +1,134 @@
+package com.bah.geterdun;
+
+/**
+ * Adapts the number of events processed at once to what the downstream system
+ * can take, by additive increase and multiplicative decrease. Every attempt
+ * that succeeds within the latency target raises the limit by about one per
+ * limit's worth of attempts, while the limit is being used. An attempt that
+ * fails, is rejected or is slower than the target halves the limit, at most
+ * once per limit's worth of attempts, so a burst of failures from one overload
+ * only counts once.
+ * <p>
+ * Attempts on newly posted events and background retries share the limiter.
+ * Live attempts are let in ahead of waiting retries, and retries may only use
+ * a share of the limit, so draining a backlog cannot crowd out live traffic.
+ */
+class ConcurrencyLimiter {
+
+  private static final double BACKOFF = 0.5;
+  private static final int INITIAL_LIMIT = 10;
+
+  private final int maxLimit;
+  private final long latencyTargetNanos;
+  private final double backgroundShare;
+  private double limit;
+  private int inFlight;
+  private int liveWaiting;
+  private int sinceDecrease;
+
+  /**
+   * @param maxLimit
+   *          The highest the limit may grow.
+   * @param latencyTargetMillis
+   *          The latency above which an attempt counts as a sign of overload,
+   *          or <tt>0</tt> for only failures to count.
+   * @param backgroundPercent
+   *          The percentage of the limit that background retries may use.
+   */
+  ConcurrencyLimiter(int maxLimit, long latencyTargetMillis,
+      int backgroundPercent) {
+    this.maxLimit = maxLimit;
+    this.latencyTargetNanos = latencyTargetMillis * 1000000;
+    this.backgroundShare = backgroundPercent / 100.0;
+    this.limit = Math.min(maxLimit, INITIAL_LIMIT);
+  }
+
+  /**
+   * Waits until an attempt may start. Every call must be followed by a call to
+   * {@link #release(long, boolean)} or {@link #cancel()}.
+   *
+   * @param live
+   *          Whether the attempt is for a newly posted event, rather than a
+   *          background retry.
+   */
+  public synchronized void acquire(boolean live) {
+    boolean interrupted = false;
+    if (live) {
+      liveWaiting++;
+    }
+    try {
+      while (live ? inFlight >= getLimit()
+          : (liveWaiting > 0 || inFlight >= getBackgroundLimit())) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (live) {
+        liveWaiting--;
+      }
+    }
+    inFlight++;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Ends an attempt and adjusts the limit by its outcome.
+   *
+   * @param succeeded
+   *          <tt>false</tt> if the event failed, was rejected or timed out.
+   */
+  public synchronized void release(long latencyNanos, boolean succeeded) {
+    record(latencyNanos, succeeded);
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Adjusts the limit by the outcome of an attempt that still counts as
+   * running, such as one that has passed its deadline but not yet returned.
+   * The attempt must later be ended with {@link #cancel()}.
+   *
+   * @param succeeded
+   *          <tt>false</tt> if the event failed, was rejected or timed out.
+   */
+  public synchronized void record(long latencyNanos, boolean succeeded) {
+    sinceDecrease++;
+    if (!succeeded
+        || (latencyTargetNanos > 0 && latencyNanos > latencyTargetNanos)) {
+      if (sinceDecrease >= getLimit()) {
+        limit = Math.max(1, limit * BACKOFF);
+        sinceDecrease = 0;
+      }
+    } else if (inFlight >= getLimit() / 2) {
+      // only grow while the limit is what holds attempts back
+      limit = Math.min(maxLimit, limit + 1 / limit);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Ends an attempt without adjusting the limit, because it was never started
+   * or its outcome has already been {@link #record(long, boolean) recorded}.
+   */
+  public synchronized void cancel() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * @return The current number of attempts that may run at once.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  private int getBackgroundLimit() {
+    return Math.max(1, (int) (limit * backgroundShare));
+  }
+
+}
@@ -0,0 +1,181 @@
+package com.bah.geterdun;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bah.geterdun.LogResolver.CorruptLogException;
+import com.bah.geterdun.WriteAheadLog.NeedsRotationException;
+
+/**
+ * Holds events that exceeded their retry policy. Dead letters are written as
+ * BEGIN records of ordinary write ahead logs in the <tt>deadletter</tt>
+ * directory under the location of a {@link GeterDun}, and are never
+ * committed. Replaying seals the current dead letter log and streams the
+ * events of each sealed log to a processor, deleting the log once all of its
+ * events have been accepted.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ */
+class DeadLetterLog<EVENT> implements Closeable {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(DeadLetterLog.class);
+  static final String DIRECTORY = "deadletter";
+  private static final String CURRENT = "part.current";
+
+  private final Path path;
+  private final Class<EVENT> eventClass;
+  private final WriteAheadLog.Factory<EVENT> logFactory;
+  private final HeaderManagement headerManagement = new HeaderManagement();
+  private final LogResolver<EVENT> logResolver = new LogResolver<EVENT>();
+  private final CorruptionHandler corruptionHandler;
+  private WriteAheadLog<EVENT> currentLog;
+  /** Keeps two replays from streaming the same sealed log. */
+  private final Object replayLock = new Object();
+
+  DeadLetterLog(String location, Class<EVENT> eventClass,
+      WriteAheadLog.Factory<EVENT> logFactory,
+      CorruptionHandler corruptionHandler) {
+    this.path = new Path(new Path(location), DIRECTORY);
+    this.eventClass = eventClass;
+    this.logFactory = logFactory;
+    this.corruptionHandler = corruptionHandler;
+  }
+
+  private LogStorage getStorage() throws IOException {
+    return logFactory.getIoContext().getStorage(path);
+  }
+
+  /**
+   * Durably adds an event to the dead letter log.
+   */
+  public synchronized void add(EVENT event) throws IOException {
+    while (true) {
+      if (currentLog == null) {
+        currentLog = logFactory.getLog(new Path(path, CURRENT).toUri()
+            .toString());
+      }
+      try {
+        currentLog.begin(event);
+        return;
+      } catch (NeedsRotationException e) {
+        seal();
+      }
+    }
+  }
+
+  /**
+   * Closes the current dead letter log, if any, and renames it so that it can
+   * be replayed.
+   */
+  private void seal() throws IOException {
+    LogStorage storage = getStorage();
+    if (currentLog != null) {
+      currentLog.close();
+      currentLog = null;
+    }
+    Path current = new Path(path, CURRENT);
+    if (!storage.exists(current)) {
+      return;
+    }
+    int part = 0;
+    for (FileStatus status : listSealed(storage)) {
+      part = Math.max(part,
+          Integer.parseInt(status.getPath().getName().substring(5)) + 1);
+    }
+    Path sealed = new Path(path, "part." + part);
+    storage.rename(current, sealed);
+    LogSummary.delete(storage, current);
+  }
+
+  private FileStatus[] listSealed(LogStorage storage) throws IOException {
+    if (!storage.exists(path)) {
+      return new FileStatus[0];
+    }
+    return storage.listStatus(path, new PathFilter() {
+      public boolean accept(Path path) {
+        return path.getName().startsWith("part.")
+            && !path.getName().equals(CURRENT);
+      }
+    });
+  }
+
+  /**
+   * Streams every dead letter to a processor. A log is deleted once all of its
+   * events have been processed, so if replay is interrupted some events may be
+   * replayed again later. Only sealing the current log holds up
+   * {@link #add(Object)}, so the processor may post events that end up being
+   * dead lettered again.
+   *
+   * @param processor
+   *          Receives the dead letters. If it returns <tt>false</tt> replay
+   *          stops, and the event it returned <tt>false</tt> for is kept.
+   * @return The number of events that were replayed.
+   * @throws Exception
+   *           If the processor throws an exception, which stops replay.
+   */
+  public long replay(final EventProcessor<EVENT> processor)
+      throws Exception {
+    synchronized (replayLock) {
+      return replaySealed(processor);
+    }
+  }
+
+  private long replaySealed(final EventProcessor<EVENT> processor)
+      throws Exception {
+    LogStorage storage = getStorage();
+    FileStatus[] sealed;
+    synchronized (this) {
+      seal();
+      sealed = listSealed(storage);
+    }
+    final long[] replayed = new long[1];
+    EventProcessor<EVENT> counter = new EventProcessor<EVENT>() {
+      public boolean processEvent(EVENT event) throws Exception {
+        if (processor.processEvent(event)) {
+          replayed[0]++;
+          return true;
+        }
+        return false;
+      }
+    };
+    for (FileStatus status : sealed) {
+      Path log = status.getPath();
+      LogInput in = storage.open(log);
+      try {
+        int version = headerManagement.verifyHeader(in, eventClass);
+        if (!logResolver.replayEvents(in, eventClass, counter,
+            status.getLen(), log.toString(), version)) {
+          break;
+        }
+      } catch (CorruptLogException e) {
+        corruptionHandler.handleCorruption(e);
+        continue;
+      } finally {
+        in.close();
+      }
+      synchronized (this) {
+        storage.delete(log);
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Replayed dead letters from " + log);
+      }
+    }
+    return replayed[0];
+  }
+
+  public synchronized void close() throws IOException {
+    if (currentLog != null) {
+      currentLog.close();
+      currentLog = null;
+    }
+  }
+
+}
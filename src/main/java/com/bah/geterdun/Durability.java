@@ -0,0 +1,119 @@
+package com.bah.geterdun;
+
+/**
+ * Describes how hard a write ahead log record is pushed to durable storage
+ * before the operation that wrote it returns.
+ * <ul>
+ * <li>{@link #sync()} calls <tt>hsync()</tt> after every record. This survives
+ * process crashes and power failures, and is the most expensive option.</li>
+ * <li>{@link #flush()} calls <tt>hflush()</tt> after every record. This
+ * survives a process crash, but records that have not reached the disk may be
+ * lost on a power failure.</li>
+ * <li>{@link #periodic(long, long)} flushes every record like {@link #flush()},
+ * and additionally calls <tt>hsync()</tt> whenever the given number of
+ * milliseconds or bytes has passed since the last sync.</li>
+ * </ul>
+ * The periodic thresholds are checked whenever a record is written, and a
+ * background task syncs an open log that has gone idle once the interval has
+ * passed. The log is always synced when it is closed.
+ */
+public final class Durability {
+
+  enum Level {
+    SYNC, FLUSH, PERIODIC
+  }
+
+  private static final Durability SYNC = new Durability(Level.SYNC, 0, 0);
+  private static final Durability FLUSH = new Durability(Level.FLUSH, 0, 0);
+
+  private final Level level;
+  private final long intervalMillis;
+  private final long intervalBytes;
+
+  private Durability(Level level, long intervalMillis, long intervalBytes) {
+    this.level = level;
+    this.intervalMillis = intervalMillis;
+    this.intervalBytes = intervalBytes;
+  }
+
+  /**
+   * @return A durability level that syncs every record to disk.
+   */
+  public static Durability sync() {
+    return SYNC;
+  }
+
+  /**
+   * @return A durability level that flushes every record out of the process,
+   *         but does not wait for it to reach the disk.
+   */
+  public static Durability flush() {
+    return FLUSH;
+  }
+
+  /**
+   * @param intervalMillis
+   *          The maximum number of milliseconds between syncs, or <tt>0</tt>
+   *          to only sync based on size.
+   * @param intervalBytes
+   *          The maximum number of bytes written between syncs, or <tt>0</tt>
+   *          to only sync based on time.
+   * @return A durability level that flushes every record and syncs to disk
+   *         periodically.
+   */
+  public static Durability periodic(long intervalMillis, long intervalBytes) {
+    if (intervalMillis < 0 || intervalBytes < 0) {
+      throw new IllegalArgumentException(
+          "Sync intervals must not be negative.");
+    }
+    if (intervalMillis == 0 && intervalBytes == 0) {
+      return SYNC;
+    }
+    return new Durability(Level.PERIODIC, intervalMillis, intervalBytes);
+  }
+
+  Level getLevel() {
+    return level;
+  }
+
+  /**
+   * @return The shortest time interval of the given durability levels, or
+   *         <tt>0</tt> if none of them syncs based on time.
+   */
+  static long getSyncIntervalMillis(Durability... durabilities) {
+    long interval = 0;
+    for (Durability durability : durabilities) {
+      if (durability.level == Level.PERIODIC && durability.intervalMillis > 0
+          && (interval == 0 || durability.intervalMillis < interval)) {
+        interval = durability.intervalMillis;
+      }
+    }
+    return interval;
+  }
+
+  /**
+   * @return <tt>true</tt> if a log that was last synced at
+   *         <tt>lastSyncTime</tt> and has had <tt>unsyncedBytes</tt> written
+   *         since then should be synced now.
+   */
+  boolean isSyncDue(long lastSyncTime, long unsyncedBytes, long now) {
+    switch (level) {
+    case SYNC:
+      return true;
+    case FLUSH:
+      return false;
+    default:
+      return (intervalBytes > 0 && unsyncedBytes >= intervalBytes)
+          || (intervalMillis > 0 && now - lastSyncTime >= intervalMillis);
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (level == Level.PERIODIC) {
+      return "PERIODIC(" + intervalMillis + "ms, " + intervalBytes + "b)";
+    }
+    return level.name();
+  }
+
+}
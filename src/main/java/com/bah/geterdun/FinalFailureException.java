@@ -4,26 +4,41 @@ public class FinalFailureException extends Exception {
 
   private static final long serialVersionUID = -6058321375714843781L;
   private final Object event;
-  private final int eventId;
+  private final long eventId;
   private final String logName;
+  private final boolean logged;
 
-  FinalFailureException(Object event, Exception source, int eventId,
+  FinalFailureException(Object event, Exception source, long eventId,
       String logName) {
+    this(event, source, eventId, logName, true);
+  }
+
+  FinalFailureException(Object event, Exception source, long eventId,
+      String logName, boolean logged) {
     super(source);
     this.event = event;
     this.eventId = eventId;
     this.logName = logName;
+    this.logged = logged;
   }
 
   public Object getEvent() {
     return event;
   }
 
-  public int getEventId() {
+  public long getEventId() {
     return eventId;
   }
 
   public String getLogName() {
     return logName;
   }
+
+  /**
+   * @return <tt>false</tt> if the event failed because it could not be written
+   *         to the log, rather than because it failed to process.
+   */
+  boolean isLogged() {
+    return logged;
+  }
 }
\ No newline at end of file
@@ -4,14 +4,27 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.bah.geterdun.WriteAheadLog.NeedsRotationException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Processes events and retries them periodically if they fail to process.
@@ -37,7 +50,16 @@ public class GeterDun<EVENT> implements Closeable{
   }
 
   private final TryHandler<EVENT> tryHandler;
-  private final WriteAheadLogManager<EVENT> manager;
+  private final Map<String, WriteAheadLogManager<EVENT>> managers;
+  private final WriteAheadLogManager<EVENT> defaultManager;
+  private final LaneClassifier<EVENT> laneClassifier;
+  private final DeadLetterLog<EVENT> deadLetters;
+  private final ExecutorService recoveryExecutor;
+  private final ExecutorService keyedWorkers;
+  private final GeterDunRuntime runtime;
+  private final IoContext io;
+  private final LatencyDistribution commitLatency;
+  private volatile boolean closed;
 
   /**
    * 
@@ -61,6 +83,9 @@ public class GeterDun<EVENT> implements Closeable{
    *          per hour.
    * @param failureHandler
    *          Gets notified of unrecoverable processing failures.
+   * @param options
+   *          Additional tuning parameters, such as how durably log records are
+   *          written.
    * @return A <tt>GeterDun</tt> that you can post events to.
    * @throws CantGeterDunException
    *           If a prerequisite is not met, such as access to the underlying
@@ -69,13 +94,54 @@ public class GeterDun<EVENT> implements Closeable{
   public static <EVENT> GeterDun<EVENT> geterDun(Class<EVENT> eventClass,
       String location, EventProcessor<EVENT> processor,
       CorruptionHandler corruptionHandler, long frequency,
-      FailureHandler<EVENT> failureHandler) throws CantGeterDunException {
+      FailureHandler<EVENT> failureHandler, GeterDunOptions options)
+      throws CantGeterDunException {
+    return create(eventClass, location, processor, null, corruptionHandler,
+        frequency, failureHandler, options);
+  }
+
+  /**
+   * Creates a new <tt>GeterDun</tt> that processes events asynchronously. Both
+   * newly posted events and background retries are committed or handed to the
+   * failure handler when the future returned by the processor completes, and
+   * at most {@link GeterDunOptions#setMaxInFlight(int)} events are processing
+   * at once. Unlike with an {@link EventProcessor},
+   * {@link #geterDun(Object)} returns as soon as the event has been logged and
+   * processing has started, and processing failures are only reported to the
+   * failure handler.
+   * 
+   * @param processor
+   *          An implementation of an asynchronous processing algorithm that
+   *          will be applied to each event.
+   * @see #geterDun(Class, String, EventProcessor, CorruptionHandler, long,
+   *      FailureHandler, GeterDunOptions)
+   */
+  public static <EVENT> GeterDun<EVENT> geterDun(Class<EVENT> eventClass,
+      String location, AsyncEventProcessor<EVENT> processor,
+      CorruptionHandler corruptionHandler, long frequency,
+      FailureHandler<EVENT> failureHandler, GeterDunOptions options)
+      throws CantGeterDunException {
+    return create(eventClass, location, null, processor, corruptionHandler,
+        frequency, failureHandler, options);
+  }
+
+  private static <EVENT> GeterDun<EVENT> create(Class<EVENT> eventClass,
+      String location, EventProcessor<EVENT> processor,
+      AsyncEventProcessor<EVENT> asyncProcessor,
+      CorruptionHandler corruptionHandler, long frequency,
+      FailureHandler<EVENT> failureHandler, GeterDunOptions options)
+      throws CantGeterDunException {
     if (!Writable.class.isAssignableFrom(eventClass)) {
       throw new CantGeterDunException(
           "eventClass must be assignable to Writable.");
     }
+    if (asyncProcessor != null && options.getKeyExtractor() != null) {
+      throw new CantGeterDunException(
+          "Ordering by key needs a synchronous EventProcessor.");
+    }
+    IoContext io = new IoContext();
     try {
-      new Path(new URI(location)).getFileSystem(new Configuration());
+      io.getStorage(new Path(new URI(location)));
     } catch (URISyntaxException e) {
       throw new CantGeterDunException("Parameter location (" + location
           + ") is not a valid URI.");
@@ -83,19 +149,114 @@ public class GeterDun<EVENT> implements Closeable{
       throw new CantGeterDunException("Parameter location (" + location
           + ") references an unreachable filesystem.");
     }
-    TryHandler<EVENT> tryHandler = new TryHandler<EVENT>(processor,
-        failureHandler);
-
+    ListeningExecutorService recoveryExecutor = null;
+    if (options.getRecoveryParallelism() > 1) {
+      recoveryExecutor = MoreExecutors.listeningDecorator(Executors
+          .newFixedThreadPool(options.getRecoveryParallelism(),
+              new ThreadFactoryBuilder().setDaemon(true)
+                  .setNameFormat("GeterDun recovery %d").build()));
+    }
     WriteAheadLog.Factory<EVENT> factory = new WriteAheadLog.Factory<EVENT>(
-        eventClass, corruptionHandler);
-    WriteAheadLogManager<EVENT> manager;
+        eventClass, corruptionHandler, options, recoveryExecutor, io);
+    DeadLetterLog<EVENT> deadLetters = new DeadLetterLog<EVENT>(location,
+        eventClass, factory, corruptionHandler);
+    TryHandler<EVENT> tryHandler;
+    LatencyTracker latencies = options.getHedgePercentile() > 0 ? new LatencyTracker(
+        options.getHedgePercentile()) : null;
+    ConcurrencyLimiter limiter = options.getMaxConcurrency() > 0 ? new ConcurrencyLimiter(
+        options.getMaxConcurrency(), options.getLatencyTarget(),
+        options.getBackgroundShare()) : null;
+    if (asyncProcessor != null) {
+      tryHandler = new TryHandler<EVENT>(asyncProcessor, failureHandler,
+          options.getMaxAttempts(), options.getMaxAge(), deadLetters,
+          options.getMaxInFlight(), options.getAttemptTimeout(), latencies,
+          options.getRuntime(), limiter);
+    } else {
+      tryHandler = new TryHandler<EVENT>(processor, failureHandler,
+          options.getMaxAttempts(), options.getMaxAge(), deadLetters,
+          options.getAttemptTimeout(), latencies, options.getRuntime(),
+          limiter);
+    }
+    List<Lane> lanes = options.getLanes();
+    WeightedFairScheduler scheduler = lanes.size() == 1 ? null
+        : new WeightedFairScheduler(lanes, options.getRetryConcurrency());
+    @SuppressWarnings("unchecked")
+    Coalescer<EVENT> coalescer = (Coalescer<EVENT>) options.getCoalescer();
+    Retrier<EVENT> retrier = new Retrier<EVENT>(tryHandler, failureHandler,
+        scheduler, recoveryExecutor, coalescer,
+        options.isRetryingOldestFirst());
+    @SuppressWarnings("unchecked")
+    KeyExtractor<EVENT> keyExtractor = (KeyExtractor<EVENT>) options
+        .getKeyExtractor();
+    ListeningExecutorService keyedWorkers = null;
+    if (keyExtractor != null) {
+      keyedWorkers = MoreExecutors.listeningDecorator(Executors
+          .newFixedThreadPool(options.getKeyedParallelism(),
+              new ThreadFactoryBuilder().setDaemon(true)
+                  .setNameFormat("GeterDun keyed %d").build()));
+    }
+    Map<String, WriteAheadLogManager<EVENT>> managers = new LinkedHashMap<String, WriteAheadLogManager<EVENT>>();
     try {
-      manager = new WriteAheadLogManager<EVENT>(location, frequency, factory,
-          new Retrier<EVENT>(tryHandler, failureHandler), corruptionHandler);
+      for (Lane lane : lanes) {
+        String logLocation = location;
+        LogShipper shipper = null;
+        if (options.getLocalLocation() != null) {
+          logLocation = options.getLocalLocation();
+          shipper = new LogShipper(io, new Path(lane.getLocation(logLocation)),
+              new Path(lane.getLocation(location)),
+              options.isReplicatingCurrentLog());
+        }
+        KeyedDispatcher<EVENT> dispatcher = null;
+        if (keyExtractor != null) {
+          dispatcher = new KeyedDispatcher<EVENT>(keyExtractor, tryHandler,
+              keyedWorkers, options.getRuntime(), options.getKeyRetryDelay());
+        }
+        managers.put(lane.getName(), new WriteAheadLogManager<EVENT>(
+            logLocation, frequency, factory, retrier, corruptionHandler, lane,
+            options.getRuntime(), shipper, options.getReplicationInterval(),
+            dispatcher));
+      }
     } catch (IOException e) {
+      for (WriteAheadLogManager<EVENT> manager : managers.values()) {
+        try {
+          manager.close();
+        } catch (IOException e1) {
+          LOG.error("Unable to close lane " + manager.getLane(), e1);
+        }
+      }
+      if (recoveryExecutor != null) {
+        recoveryExecutor.shutdown();
+      }
+      if (keyedWorkers != null) {
+        keyedWorkers.shutdown();
+      }
+      try {
+        io.close();
+      } catch (IOException e1) {
+        LOG.error("Unable to close file systems", e1);
+      }
       throw new CantGeterDunException(e);
     }
-    return new GeterDun<EVENT>(tryHandler, manager);
+    @SuppressWarnings("unchecked")
+    LaneClassifier<EVENT> laneClassifier = (LaneClassifier<EVENT>) options
+        .getLaneClassifier();
+    return new GeterDun<EVENT>(tryHandler, managers, laneClassifier,
+        deadLetters, recoveryExecutor, keyedWorkers, options.getRuntime(), io,
+        factory.getCommitLatency());
+  }
+
+  /**
+   * Creates a new <tt>GeterDun</tt> with the default {@link GeterDunOptions}.
+   * 
+   * @see #geterDun(Class, String, EventProcessor, CorruptionHandler, long,
+   *      FailureHandler, GeterDunOptions)
+   */
+  public static <EVENT> GeterDun<EVENT> geterDun(Class<EVENT> eventClass,
+      String location, EventProcessor<EVENT> processor,
+      CorruptionHandler corruptionHandler, long frequency,
+      FailureHandler<EVENT> failureHandler) throws CantGeterDunException {
+    return geterDun(eventClass, location, processor, corruptionHandler,
+        frequency, failureHandler, new GeterDunOptions());
   }
 
   /**
@@ -122,9 +283,48 @@ public class GeterDun<EVENT> implements Closeable{
         new NullCorruptionHandler(), 360000, new NullFailureHandler<EVENT>());
   }
 
-  GeterDun(TryHandler<EVENT> tryHandler, WriteAheadLogManager<EVENT> manager) {
+  /**
+   * @param managers
+   *          The log managers of each lane, by lane name, including the
+   *          default lane.
+   * @param recoveryExecutor
+   *          Recovers and retries large logs in parallel, or <tt>null</tt>.
+   * @param keyedWorkers
+   *          Processes the events of different keys in parallel, or
+   *          <tt>null</tt> if events are not ordered by key.
+   * @param runtime
+   *          The runtime shared with the managers.
+   * @param io
+   *          The file systems shared by every log of the instance.
+   * @param commitLatency
+   *          Collects the latency of the events committed in every log of the
+   *          instance.
+   */
+  GeterDun(TryHandler<EVENT> tryHandler,
+      Map<String, WriteAheadLogManager<EVENT>> managers,
+      LaneClassifier<EVENT> laneClassifier, DeadLetterLog<EVENT> deadLetters,
+      ExecutorService recoveryExecutor, ExecutorService keyedWorkers,
+      GeterDunRuntime runtime, IoContext io, LatencyDistribution commitLatency) {
     this.tryHandler = tryHandler;
-    this.manager = manager;
+    this.managers = managers;
+    this.defaultManager = managers.get(Lane.DEFAULT);
+    this.laneClassifier = laneClassifier;
+    this.deadLetters = deadLetters;
+    this.recoveryExecutor = recoveryExecutor;
+    this.keyedWorkers = keyedWorkers;
+    this.runtime = runtime;
+    this.io = io;
+    this.commitLatency = commitLatency;
+  }
+
+  private WriteAheadLogManager<EVENT> getManager(EVENT event) {
+    if (laneClassifier == null) {
+      return defaultManager;
+    }
+    String lane = laneClassifier.classify(event);
+    WriteAheadLogManager<EVENT> manager = lane == null ? null : managers
+        .get(lane);
+    return manager == null ? defaultManager : manager;
   }
 
   /**
@@ -135,6 +335,8 @@ public class GeterDun<EVENT> implements Closeable{
    *          The event to write.
    * @throws FinalFailureException
    *           If the event cannot be processed and will never be processed.
+   *           When processing asynchronously or in order by key, this is only
+   *           thrown if the event could not be logged.
    * @throws CantGeterDunException
    *           If the event was recorded to the log and either was processed, or
    *           may be processed in the future, but an error has prevented
@@ -142,35 +344,57 @@ public class GeterDun<EVENT> implements Closeable{
    */
   public void geterDun(EVENT event) throws FinalFailureException,
       CantGeterDunException {
-    manager.pauseRotation();
+    if (closed) {
+      throw new CantGeterDunException("This GeterDun has been closed.");
+    }
+    WriteAheadLogManager<EVENT> manager = getManager(event);
+    if (manager.getDispatcher() != null) {
+      geterDunInOrder(event, manager);
+      return;
+    }
+    boolean async = tryHandler.isAsync();
+    if (async) {
+      // wait for a slot before holding up rotation
+      tryHandler.acquire(true);
+    }
     WriteAheadLog<EVENT> currentLog = null;
+    boolean started = false;
     try {
-      if(LOG.isDebugEnabled()){
-        LOG.debug(getClass().getSimpleName() + " paused rotation.");
-      }
-      currentLog = manager.getCurrentLog();
-      boolean needsRotation = false;
-      int eventId = 0;
-      do {
+      while (true) {
+        manager.pauseRotation();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(getClass().getSimpleName() + " paused rotation.");
+        }
         try {
-          eventId = currentLog.begin(event);
+          currentLog = manager.getCurrentLog();
+          long eventId = currentLog.begin(event);
+          if (async) {
+            tryHandler.tryProcessAsync(event, eventId, currentLog);
+            started = true;
+          } else {
+            tryHandler.tryProcess(event, eventId, currentLog, true);
+          }
+          break;
         } catch (NeedsRotationException e) {
-          needsRotation = true;
+          // rotated below, once this thread no longer holds rotation off
+        } finally {
+          manager.resumeRotation();
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(getClass().getSimpleName() + " resumed rotation.");
+          }
         }
-      } while (needsRotation);
-      tryHandler.tryProcess(event, eventId, currentLog);
+        manager.rotateFullLog(currentLog);
+      }
     } catch (IOException e) {
-      int counter = currentLog == null? -1 : currentLog.getCounter() + 1;
-      String path = currentLog.getPath();
-      throw new FinalFailureException(event, e, counter,
-          path);
+      throw new FinalFailureException(event, e, currentLog == null ? -1
+          : currentLog.getCounter() + 1, currentLog == null ? null
+          : currentLog.getPath(), false);
     } finally {
-      manager.resumeRotation();
-      if(LOG.isDebugEnabled()){
-        LOG.debug(getClass().getSimpleName() + " resumed rotation.");
+      if (async && !started) {
+        tryHandler.release();
       }
     }
-    if (currentLog !=null && currentLog.needsRotation()) {
+    if (currentLog.needsRotation()) {
       try {
         manager.rotateLogs();
       } catch (IOException e) {
@@ -179,7 +403,345 @@ public class GeterDun<EVENT> implements Closeable{
     }
   }
   
+  /**
+   * Logs an event and queues it behind the earlier events with the same key.
+   */
+  private void geterDunInOrder(EVENT event, WriteAheadLogManager<EVENT> manager)
+      throws FinalFailureException, CantGeterDunException {
+    KeyedDispatcher<EVENT> dispatcher = manager.getDispatcher();
+    Object key = dispatcher.getKey(event);
+    Lock lock = dispatcher.lockFor(key);
+    WriteAheadLog<EVENT> currentLog = null;
+    try {
+      while (true) {
+        manager.pauseRotation();
+        try {
+          currentLog = manager.getCurrentLog();
+          lock.lock();
+          try {
+            dispatcher.offer(key, currentLog.begin(event), event, currentLog);
+            break;
+          } finally {
+            lock.unlock();
+          }
+        } catch (NeedsRotationException e) {
+          // rotated below, once this thread no longer holds rotation off
+        } finally {
+          manager.resumeRotation();
+        }
+        manager.rotateFullLog(currentLog);
+      }
+    } catch (IOException e) {
+      throw new FinalFailureException(event, e, currentLog == null ? -1
+          : currentLog.getCounter() + 1, currentLog == null ? null
+          : currentLog.getPath(), false);
+    }
+    if (currentLog.needsRotation()) {
+      try {
+        manager.rotateLogs();
+      } catch (IOException e) {
+        throw new CantGeterDunException(e);
+      }
+    }
+  }
+
+  /**
+   * Creates a Reactive Streams subscriber that posts the events it receives to
+   * this <tt>GeterDun</tt>, without blocking the publisher. Events that arrive
+   * together are logged with one write per lane, and then processed as if
+   * they had been posted with {@link #geterDun(Object)}.
+   * 
+   * @param window
+   *          The most events that may have been requested and not yet been
+   *          processed, failed or left for a background retry.
+   * @param maxBacklog
+   *          No more events are requested while the current logs hold more
+   *          than this many uncommitted events, until they hold fewer than
+   *          half as many.
+   */
+  public GeterDunSubscriber<EVENT> newSubscriber(int window, int maxBacklog) {
+    return new GeterDunSubscriber<EVENT>(this, window, maxBacklog,
+        runtime.getAttemptExecutor(), runtime);
+  }
+
+  /**
+   * @return The number of uncommitted events in the current logs of every
+   *         lane.
+   */
+  long getBacklog() {
+    long backlog = 0;
+    for (WriteAheadLogManager<EVENT> manager : managers.values()) {
+      manager.pauseRotation();
+      try {
+        backlog += manager.getCurrentLog().getUncommittedCount();
+      } finally {
+        manager.resumeRotation();
+      }
+    }
+    return backlog;
+  }
+
+  /**
+   * @return How many milliseconds ago the oldest uncommitted event of any lane
+   *         was posted, or <tt>0</tt> if none is known. Only events logged
+   *         with {@link GeterDunOptions#setTimestampingEvents(boolean)
+   *         timestamps} are counted, and rotated logs count from the last time
+   *         they were retried in this run.
+   */
+  public long getOldestUncommittedAge() {
+    long oldest = 0;
+    for (WriteAheadLogManager<EVENT> manager : managers.values()) {
+      long time = manager.getOldestBeginTime();
+      if (time != 0 && (oldest == 0 || time < oldest)) {
+        oldest = time;
+      }
+    }
+    return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+  }
+
+  /**
+   * @return The time from logging an event to committing it, whether it was
+   *         processed, dead lettered or given up on, for the events logged
+   *         with {@link GeterDunOptions#setTimestampingEvents(boolean)
+   *         timestamps} since this instance was created.
+   */
+  public LatencyDistribution getCommitLatency() {
+    return commitLatency;
+  }
+
+  /**
+   * Opens a feed of the events logged by this instance, for a consumer that
+   * reads them at its own pace instead of inside the {@link EventProcessor}.
+   * Logs are kept until the feed has read them, so a feed that is no longer
+   * used should be {@link ChangeFeed#remove() removed}.
+   * 
+   * @param name
+   *          Names the cursor of the feed, so that a feed opened with the same
+   *          name later carries on from its last checkpoint.
+   * @param commits
+   *          Whether the feed reads when events are committed as well as when
+   *          they are logged.
+   */
+  public ChangeFeed<EVENT> openChangeFeed(String name, boolean commits)
+      throws IOException {
+    return new ChangeFeed<EVENT>(name, managers.values(), commits);
+  }
+
+  /**
+   * Logs a batch of events with one write per lane and starts processing them
+   * on other threads. Events that cannot be logged are handed to the failure
+   * handler.
+   * 
+   * @return A future that completes once every event has been processed,
+   *         failed or left for a background retry.
+   */
+  ListenableFuture<?> startAll(List<EVENT> events) {
+    if (closed) {
+      LOG.error("Unable to log " + events.size()
+          + " events after this GeterDun was closed.");
+      for (EVENT event : events) {
+        tryHandler.getFailureHandler().handleFailure(event);
+      }
+      return Futures.immediateFuture(null);
+    }
+    Map<WriteAheadLogManager<EVENT>, List<EVENT>> lanes = new LinkedHashMap<WriteAheadLogManager<EVENT>, List<EVENT>>();
+    for (EVENT event : events) {
+      WriteAheadLogManager<EVENT> manager = getManager(event);
+      List<EVENT> lane = lanes.get(manager);
+      if (lane == null) {
+        lane = new ArrayList<EVENT>();
+        lanes.put(manager, lane);
+      }
+      lane.add(event);
+    }
+    List<ListenableFuture<?>> started = new ArrayList<ListenableFuture<?>>();
+    for (Map.Entry<WriteAheadLogManager<EVENT>, List<EVENT>> lane : lanes
+        .entrySet()) {
+      startAll(lane.getKey(), lane.getValue(), started);
+    }
+    return Futures.successfulAsList(started);
+  }
+
+  private void startAll(final WriteAheadLogManager<EVENT> manager,
+      List<EVENT> events, List<ListenableFuture<?>> started) {
+    if (manager.getDispatcher() != null) {
+      // logging is all that happens on the calling thread anyway
+      for (EVENT event : events) {
+        try {
+          geterDunInOrder(event, manager);
+        } catch (FinalFailureException e) {
+          LOG.error("Unable to log an event.", e);
+          tryHandler.getFailureHandler().handleFailure(event);
+        } catch (CantGeterDunException e) {
+          LOG.error("Unable to rotate the logs of lane " + manager.getLane(), e);
+        }
+      }
+      return;
+    }
+    int from = 0;
+    while (from < events.size()) {
+      List<EVENT> batch = events.subList(from, events.size());
+      WriteAheadLog<EVENT> log = null;
+      long[] ids = null;
+      manager.pauseRotation();
+      try {
+        log = manager.getCurrentLog();
+        ids = log.beginAll(batch);
+      } catch (NeedsRotationException e) {
+        // rotate below, outside the pause
+      } catch (IOException e) {
+        LOG.error("Unable to log " + batch.size() + " events.", e);
+        for (EVENT event : batch) {
+          tryHandler.getFailureHandler().handleFailure(event);
+        }
+        return;
+      } finally {
+        manager.resumeRotation();
+      }
+      if (ids != null) {
+        start(manager, batch, ids, log, started);
+        from += ids.length;
+      }
+      if (ids == null || log.needsRotation()) {
+        try {
+          manager.rotateFullLog(log);
+        } catch (IOException e) {
+          LOG.error("Unable to rotate the logs of lane " + manager.getLane(), e);
+          for (EVENT event : events.subList(from, events.size())) {
+            tryHandler.getFailureHandler().handleFailure(event);
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts processing events that were just begun in a log.
+   */
+  private void start(final WriteAheadLogManager<EVENT> manager,
+      List<EVENT> events, long[] ids, final WriteAheadLog<EVENT> log,
+      List<ListenableFuture<?>> started) {
+    for (int i = 0; i < ids.length; i++) {
+      final EVENT event = events.get(i);
+      final long id = ids[i];
+      if (tryHandler.isAsync()) {
+        tryHandler.acquire(true);
+        started.add(tryHandler.tryProcessAsync(event, id, log));
+        continue;
+      }
+      started.add(runtime.getAttemptExecutor().submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          // once the log has been rotated out the retrier owns the event
+          if (!log.pin()) {
+            return null;
+          }
+          try {
+            tryHandler.tryProcess(event, id, log, true);
+          } catch (FinalFailureException e) {
+            // already handed to the failure handler
+          } finally {
+            manager.unpin(log);
+          }
+          return null;
+        }
+      }));
+    }
+  }
+
+  /**
+   * Streams the events in the dead letter log to a processor. Events are
+   * removed from the dead letter log once every event in the same dead letter
+   * log file has been processed, so an interrupted replay may replay some
+   * events again.
+   * 
+   * @param processor
+   *          Receives the dead letters. Replay stops early if it returns
+   *          <tt>false</tt> or throws an exception.
+   * @return The number of events that were processed.
+   * @throws Exception
+   *           If the processor throws an exception.
+   * @see GeterDunOptions#setMaxAttempts(int)
+   * @see GeterDunOptions#setMaxAge(long)
+   */
+  public long replayDeadLetters(EventProcessor<EVENT> processor)
+      throws Exception {
+    return deadLetters.replay(processor);
+  }
+
+  /**
+   * Moves the events in the dead letter log back into this <tt>GeterDun</tt>,
+   * as if they were posted again with {@link #geterDun(Object)}. Events that
+   * fail permanently are forwarded to the failure handler as usual.
+   * 
+   * @return The number of events that were replayed.
+   * @throws CantGeterDunException
+   *           If the events could not be recorded or the dead letter log could
+   *           not be read.
+   */
+  public long replayDeadLetters() throws CantGeterDunException {
+    try {
+      return deadLetters.replay(new EventProcessor<EVENT>() {
+        public boolean processEvent(EVENT event) throws Exception {
+          try {
+            geterDun(event);
+          } catch (FinalFailureException e) {
+            if (!e.isLogged()) {
+              // keep it in the dead letter log
+              throw e;
+            }
+            // otherwise it was already handed to the failure handler
+          }
+          return true;
+        }
+      });
+    } catch (CantGeterDunException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new CantGeterDunException(e);
+    }
+  }
+
+  /**
+   * Closes this <tt>GeterDun</tt>, waiting as long as it takes for events being
+   * processed to finish.
+   * 
+   * @see #close(long, TimeUnit)
+   */
   public void close() throws IOException {
-    manager.close();
+    close(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Closes this <tt>GeterDun</tt> within a deadline. New events are refused
+   * straight away, and background retries stop starting new attempts. Once the
+   * attempts already running have finished, the current log of each lane is
+   * sealed with a summary of its uncommitted events, so that the next start
+   * can pick it up without reading it again.
+   * <p>
+   * Attempts still running at the deadline are abandoned: a lane that still
+   * has one keeps its current log open and unsealed, and the events will be
+   * processed again after the next start.
+   * 
+   * @return <tt>false</tt> if anything was abandoned at the deadline.
+   */
+  public boolean close(long timeout, TimeUnit unit) throws IOException {
+    closed = true;
+    long start = System.nanoTime();
+    long timeoutNanos = unit.toNanos(timeout);
+    boolean clean = tryHandler.awaitIdle(timeoutNanos);
+    for (WriteAheadLogManager<EVENT> manager : managers.values()) {
+      long elapsed = System.nanoTime() - start;
+      clean &= manager.close(Math.max(0, timeoutNanos - elapsed));
+    }
+    deadLetters.close();
+    if (recoveryExecutor != null) {
+      recoveryExecutor.shutdown();
+    }
+    if (keyedWorkers != null) {
+      keyedWorkers.shutdown();
+    }
+    io.close();
+    return clean;
   }
 }
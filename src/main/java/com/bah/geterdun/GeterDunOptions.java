@@ -0,0 +1,681 @@
+package com.bah.geterdun;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Optional tuning parameters for a {@link GeterDun}. A freshly constructed
+ * <tt>GeterDunOptions</tt> reproduces the default behavior of
+ * {@link GeterDun#geterDun(Class, String, EventProcessor)}.
+ */
+public class GeterDunOptions {
+
+  private Durability beginDurability = Durability.sync();
+  private Durability commitDurability = Durability.sync();
+  private int commitBatchSize = 1;
+  private long commitBatchDelay = 1000;
+  private int maxAttempts = 0;
+  private long maxAge = 0;
+  private final Map<String, Integer> lanes = new LinkedHashMap<String, Integer>();
+  private int defaultLaneWeight = 1;
+  private LaneClassifier<?> laneClassifier;
+  private int retryConcurrency = 1;
+  private int maxInFlight = 1024;
+  private int syncInterval = HeaderWritable.SYNC_INTERVAL;
+  private int recoveryParallelism = 1;
+  private GeterDunRuntime runtime;
+  private long attemptTimeout = 0;
+  private double hedgePercentile = 0;
+  private int stagingSlots = 0;
+  private String localLocation;
+  private long replicationInterval = 10000;
+  private boolean replicatingCurrentLog = false;
+  private int maxConcurrency = 0;
+  private long latencyTarget = 0;
+  private int backgroundShare = 50;
+  private KeyExtractor<?> keyExtractor;
+  private int keyedParallelism = 16;
+  private long keyRetryDelay = 1000;
+  private Coalescer<?> coalescer;
+  private boolean compactRecords = false;
+  private boolean timestampingEvents = false;
+  private boolean retryingOldestFirst = false;
+
+  public Durability getBeginDurability() {
+    return beginDurability;
+  }
+
+  /**
+   * @param beginDurability
+   *          How durably BEGIN records, which hold the events themselves, are
+   *          written before {@link GeterDun#geterDun(Object)} attempts to
+   *          process the event. Defaults to {@link Durability#sync()}.
+   * @return This object.
+   */
+  public GeterDunOptions setBeginDurability(Durability beginDurability) {
+    this.beginDurability = checkNotNull(beginDurability, "beginDurability");
+    return this;
+  }
+
+  public Durability getCommitDurability() {
+    return commitDurability;
+  }
+
+  /**
+   * @param commitDurability
+   *          How durably COMMIT records are written. Losing a COMMIT record only
+   *          causes an event to be processed again, so this can usually be
+   *          weaker than the BEGIN durability. Defaults to
+   *          {@link Durability#sync()}.
+   * @return This object.
+   */
+  public GeterDunOptions setCommitDurability(Durability commitDurability) {
+    this.commitDurability = checkNotNull(commitDurability, "commitDurability");
+    return this;
+  }
+
+  /**
+   * Sets both the BEGIN and COMMIT durability.
+   *
+   * @return This object.
+   */
+  public GeterDunOptions setDurability(Durability durability) {
+    return setBeginDurability(durability).setCommitDurability(durability);
+  }
+
+  public int getCommitBatchSize() {
+    return commitBatchSize;
+  }
+
+  /**
+   * @param commitBatchSize
+   *          How many commits to accumulate in memory before writing them as a
+   *          single commit block. Commits that have not been written yet are
+   *          lost if the process dies, which only causes those events to be
+   *          processed again. Only logs with
+   *          {@link #setCompactRecords(boolean) compact records} hold commit
+   *          blocks, so other logs still write a COMMIT record for every
+   *          event. Defaults to <tt>1</tt>, which writes a COMMIT record for
+   *          every event.
+   * @return This object.
+   */
+  public GeterDunOptions setCommitBatchSize(int commitBatchSize) {
+    if (commitBatchSize < 1) {
+      throw new IllegalArgumentException(
+          "commitBatchSize must be at least 1.");
+    }
+    this.commitBatchSize = commitBatchSize;
+    return this;
+  }
+
+  public long getCommitBatchDelay() {
+    return commitBatchDelay;
+  }
+
+  /**
+   * @param commitBatchDelay
+   *          The longest time in milliseconds that a commit is held in memory
+   *          before being written, even if the batch is not full. This is
+   *          checked whenever an event is committed, and by a background task
+   *          while no events are being committed. Defaults to one second.
+   * @return This object.
+   */
+  public GeterDunOptions setCommitBatchDelay(long commitBatchDelay) {
+    if (commitBatchDelay < 0) {
+      throw new IllegalArgumentException(
+          "commitBatchDelay must not be negative.");
+    }
+    this.commitBatchDelay = commitBatchDelay;
+    return this;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * @param maxAttempts
+   *          How many times an event may fail recoverably, by returning
+   *          <tt>false</tt> from its {@link EventProcessor}, before it is moved
+   *          to the dead letter log. Failed attempts are only written to logs
+   *          with {@link #setCompactRecords(boolean) compact records}, and are
+   *          otherwise counted from zero again whenever a log is reopened.
+   *          Defaults to <tt>0</tt>, which retries events forever.
+   * @return This object.
+   * @see GeterDun#replayDeadLetters()
+   */
+  public GeterDunOptions setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 0) {
+      throw new IllegalArgumentException("maxAttempts must not be negative.");
+    }
+    this.maxAttempts = maxAttempts;
+    return this;
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * @param maxAge
+   *          How many milliseconds after its first failed attempt an event may
+   *          still be retried before it is moved to the dead letter log.
+   *          Defaults to <tt>0</tt>, which retries events forever.
+   * @return This object.
+   * @see GeterDun#replayDeadLetters()
+   */
+  public GeterDunOptions setMaxAge(long maxAge) {
+    if (maxAge < 0) {
+      throw new IllegalArgumentException("maxAge must not be negative.");
+    }
+    this.maxAge = maxAge;
+    return this;
+  }
+
+  /**
+   * Adds a priority lane. Each lane keeps its logs in its own
+   * <tt>lane.&lt;name&gt;</tt> directory under the location, and rotates them
+   * independently, so a flood of events in one lane does not delay posting
+   * events to another. Events are assigned to lanes by the
+   * {@link #setLaneClassifier(LaneClassifier) lane classifier}; all other
+   * events go to the default lane, which keeps its logs in the location
+   * itself.
+   * 
+   * @param name
+   *          The name of the lane.
+   * @param weight
+   *          The share of background retry attempts this lane gets, relative
+   *          to the other lanes, while more than one lane has a backlog.
+   * @return This object.
+   * @see #setRetryConcurrency(int)
+   */
+  public GeterDunOptions addLane(String name, int weight) {
+    checkNotNull(name, "name");
+    if (name.isEmpty() || name.contains("/") || Lane.DEFAULT.equals(name)
+        || lanes.containsKey(name)) {
+      throw new IllegalArgumentException("Invalid or duplicate lane name "
+          + name);
+    }
+    lanes.put(name, checkWeight(weight));
+    return this;
+  }
+
+  /**
+   * @param weight
+   *          The weight of the default lane. Defaults to <tt>1</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setDefaultLaneWeight(int weight) {
+    this.defaultLaneWeight = checkWeight(weight);
+    return this;
+  }
+
+  /**
+   * @param laneClassifier
+   *          Chooses the lane of each event. Must accept the event type of the
+   *          <tt>GeterDun</tt> these options are used with.
+   * @return This object.
+   */
+  public GeterDunOptions setLaneClassifier(LaneClassifier<?> laneClassifier) {
+    this.laneClassifier = laneClassifier;
+    return this;
+  }
+
+  public LaneClassifier<?> getLaneClassifier() {
+    return laneClassifier;
+  }
+
+  /**
+   * @param retryConcurrency
+   *          How many background retry attempts may run at the same time,
+   *          shared between all lanes by weight. Only used when lanes have been
+   *          added. Defaults to <tt>1</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setRetryConcurrency(int retryConcurrency) {
+    if (retryConcurrency < 1) {
+      throw new IllegalArgumentException(
+          "retryConcurrency must be at least 1.");
+    }
+    this.retryConcurrency = retryConcurrency;
+    return this;
+  }
+
+  public int getRetryConcurrency() {
+    return retryConcurrency;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * @param maxInFlight
+   *          When events are processed by an {@link AsyncEventProcessor}, the
+   *          most events that may be processing at once, counting both newly
+   *          posted events and background retries. Posting an event blocks
+   *          while this many are in flight. Defaults to <tt>1024</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setMaxInFlight(int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1.");
+    }
+    this.maxInFlight = maxInFlight;
+    return this;
+  }
+
+  public int getSyncInterval() {
+    return syncInterval;
+  }
+
+  /**
+   * @param syncInterval
+   *          The number of bytes written to a log between sync records, which
+   *          let a large log be split into byte ranges that are recovered in
+   *          parallel. Defaults to <tt>2000</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setSyncInterval(int syncInterval) {
+    if (syncInterval < 1) {
+      throw new IllegalArgumentException("syncInterval must be at least 1.");
+    }
+    this.syncInterval = syncInterval;
+    return this;
+  }
+
+  public int getRecoveryParallelism() {
+    return recoveryParallelism;
+  }
+
+  /**
+   * @param recoveryParallelism
+   *          How many threads may read the byte ranges of a single large log
+   *          when it is reopened, and retry its uncommitted events when they
+   *          are processed by an {@link EventProcessor}. Defaults to
+   *          <tt>1</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setRecoveryParallelism(int recoveryParallelism) {
+    if (recoveryParallelism < 1) {
+      throw new IllegalArgumentException(
+          "recoveryParallelism must be at least 1.");
+    }
+    this.recoveryParallelism = recoveryParallelism;
+    return this;
+  }
+
+  public long getAttemptTimeout() {
+    return attemptTimeout;
+  }
+
+  /**
+   * @param attemptTimeout
+   *          The number of milliseconds an attempt to process an event may take
+   *          before it counts as a recoverable failure, leaving the event for a
+   *          background retry. An {@link EventProcessor} is then called on a
+   *          separate thread, and keeps running after its deadline. The event
+   *          is only counted as failed once the attempt fails, and is committed
+   *          if it succeeds after all. Defaults to <tt>0</tt>, for no deadline.
+   * @return This object.
+   */
+  public GeterDunOptions setAttemptTimeout(long attemptTimeout) {
+    if (attemptTimeout < 0) {
+      throw new IllegalArgumentException("attemptTimeout must not be negative.");
+    }
+    this.attemptTimeout = attemptTimeout;
+    return this;
+  }
+
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  /**
+   * @param hedgePercentile
+   *          A percentile of the latency of recent successful attempts, after
+   *          which a second attempt to process the same event is started. The
+   *          first attempt to succeed decides the outcome, and the event only
+   *          fails once both have failed, so processors must be safe to call
+   *          twice at once for the same event. Defaults to <tt>0</tt>, which
+   *          never hedges.
+   * @return This object.
+   */
+  public GeterDunOptions setHedgePercentile(double hedgePercentile) {
+    if (hedgePercentile < 0 || hedgePercentile > 100) {
+      throw new IllegalArgumentException(
+          "hedgePercentile must be between 0 and 100.");
+    }
+    this.hedgePercentile = hedgePercentile;
+    return this;
+  }
+
+  public int getStagingSlots() {
+    return stagingSlots;
+  }
+
+  /**
+   * @param stagingSlots
+   *          When positive, BEGIN records are encoded by the posting threads
+   *          into a preallocated ring of this many slots, rounded up to a
+   *          power of two, and a single writer thread per lane appends them to
+   *          the lane's current log in batches and syncs once per batch. Other
+   *          logs, such as rotated logs and the dead letter log, are always
+   *          written by the calling thread. Defaults to <tt>0</tt>, where each
+   *          posting thread writes its own record under the log's lock.
+   * @return This object.
+   */
+  public GeterDunOptions setStagingSlots(int stagingSlots) {
+    if (stagingSlots < 0) {
+      throw new IllegalArgumentException("stagingSlots must not be negative.");
+    }
+    this.stagingSlots = stagingSlots;
+    return this;
+  }
+
+  public String getLocalLocation() {
+    return localLocation;
+  }
+
+  /**
+   * @param localLocation
+   *          A URI referencing a location on local disk. When set, logs are
+   *          written there and replicated in the background to the location
+   *          the <tt>GeterDun</tt> was created with, which then only has to be
+   *          written every replication interval instead of for every event.
+   *          Defaults to <tt>null</tt>, which writes logs to the location
+   *          directly.
+   * @return This object.
+   */
+  public GeterDunOptions setLocalLocation(String localLocation) {
+    this.localLocation = checkNotNull(localLocation, "localLocation");
+    return this;
+  }
+
+  public long getReplicationInterval() {
+    return replicationInterval;
+  }
+
+  /**
+   * @param replicationInterval
+   *          The number of milliseconds between passes that replicate local
+   *          logs, which bounds how much is lost if the local disk is.
+   *          Defaults to <tt>10000</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setReplicationInterval(long replicationInterval) {
+    if (replicationInterval < 1) {
+      throw new IllegalArgumentException(
+          "replicationInterval must be at least 1.");
+    }
+    this.replicationInterval = replicationInterval;
+    return this;
+  }
+
+  public boolean isReplicatingCurrentLog() {
+    return replicatingCurrentLog;
+  }
+
+  /**
+   * @param replicatingCurrentLog
+   *          Whether the log that is still being written is replicated too,
+   *          rather than only logs that have been rotated out. Defaults to
+   *          <tt>false</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setReplicatingCurrentLog(boolean replicatingCurrentLog) {
+    this.replicatingCurrentLog = replicatingCurrentLog;
+    return this;
+  }
+
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * @param maxConcurrency
+   *          Enables an adaptive limit on the number of events processed at
+   *          once, shared by newly posted events and background retries, which
+   *          grows while attempts succeed and shrinks when they fail or are
+   *          slower than the {@link #setLatencyTarget(long) latency target}. The
+   *          limit never grows past this value. Defaults to <tt>0</tt>, for no
+   *          limit.
+   * @return This object.
+   */
+  public GeterDunOptions setMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency < 0) {
+      throw new IllegalArgumentException("maxConcurrency must not be negative.");
+    }
+    this.maxConcurrency = maxConcurrency;
+    return this;
+  }
+
+  public long getLatencyTarget() {
+    return latencyTarget;
+  }
+
+  /**
+   * @param latencyTarget
+   *          The number of milliseconds above which a successful attempt
+   *          still shrinks the adaptive concurrency limit, as a sign that the
+   *          downstream system is overloaded. Defaults to <tt>0</tt>, so that
+   *          only failures shrink it.
+   * @return This object.
+   */
+  public GeterDunOptions setLatencyTarget(long latencyTarget) {
+    if (latencyTarget < 0) {
+      throw new IllegalArgumentException("latencyTarget must not be negative.");
+    }
+    this.latencyTarget = latencyTarget;
+    return this;
+  }
+
+  public int getBackgroundShare() {
+    return backgroundShare;
+  }
+
+  /**
+   * @param backgroundShare
+   *          The percentage of the adaptive concurrency limit that background
+   *          retries may use. Newly posted events may use all of it and are
+   *          let in first. Defaults to <tt>50</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setBackgroundShare(int backgroundShare) {
+    if (backgroundShare < 1 || backgroundShare > 100) {
+      throw new IllegalArgumentException(
+          "backgroundShare must be between 1 and 100.");
+    }
+    this.backgroundShare = backgroundShare;
+    return this;
+  }
+
+  public KeyExtractor<?> getKeyExtractor() {
+    return keyExtractor;
+  }
+
+  /**
+   * @param keyExtractor
+   *          Enables ordering by key: events with the same key are processed
+   *          and retried in the order they were posted, while different keys
+   *          are processed in parallel by
+   *          {@link #setKeyedParallelism(int) a pool of workers}, and a key
+   *          whose next event keeps failing does not hold up the others.
+   *          {@link GeterDun#geterDun(Object)} then returns once the event has
+   *          been logged. Needs a synchronous {@link EventProcessor}, and
+   *          events with the same key should be in the same lane. Must accept
+   *          the event type of the <tt>GeterDun</tt> these options are used
+   *          with. Defaults to <tt>null</tt>, for no ordering.
+   * @return This object.
+   */
+  public GeterDunOptions setKeyExtractor(KeyExtractor<?> keyExtractor) {
+    this.keyExtractor = keyExtractor;
+    return this;
+  }
+
+  public int getKeyedParallelism() {
+    return keyedParallelism;
+  }
+
+  /**
+   * @param keyedParallelism
+   *          The number of keys that may be processed at once when events are
+   *          ordered by key. Defaults to <tt>16</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setKeyedParallelism(int keyedParallelism) {
+    if (keyedParallelism < 1) {
+      throw new IllegalArgumentException(
+          "keyedParallelism must be at least 1.");
+    }
+    this.keyedParallelism = keyedParallelism;
+    return this;
+  }
+
+  public long getKeyRetryDelay() {
+    return keyRetryDelay;
+  }
+
+  /**
+   * @param keyRetryDelay
+   *          The number of milliseconds before the next event of a key is
+   *          tried again after it failed, when events are ordered by key.
+   *          Defaults to <tt>1000</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setKeyRetryDelay(long keyRetryDelay) {
+    if (keyRetryDelay < 1) {
+      throw new IllegalArgumentException("keyRetryDelay must be at least 1.");
+    }
+    this.keyRetryDelay = keyRetryDelay;
+    return this;
+  }
+
+  public Coalescer<?> getCoalescer() {
+    return coalescer;
+  }
+
+  /**
+   * @param coalescer
+   *          Merges the uncommitted events of a log that share a key before
+   *          they are retried in the background, committing the older ones as
+   *          superseded, so a backlog of updates to one entity is sent
+   *          downstream once. Newly posted events are not affected. When
+   *          events are also {@link #setKeyExtractor(KeyExtractor) ordered by
+   *          key}, both should use the same key. Must accept the event type of
+   *          the <tt>GeterDun</tt> these options are used with. Defaults to
+   *          <tt>null</tt>, for every event to be retried.
+   * @return This object.
+   */
+  public GeterDunOptions setCoalescer(Coalescer<?> coalescer) {
+    this.coalescer = coalescer;
+    return this;
+  }
+
+  public boolean isCompactRecords() {
+    return compactRecords;
+  }
+
+  /**
+   * @param compactRecords
+   *          Whether new logs are written in the compact format, with variable
+   *          length 64 bit IDs, commit blocks and failed attempt records. Logs
+   *          in the compact format cannot be read by versions that predate
+   *          it, so only turn this on once there is no need to roll back.
+   *          Defaults to <tt>false</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setCompactRecords(boolean compactRecords) {
+    this.compactRecords = compactRecords;
+    return this;
+  }
+
+  public boolean isTimestampingEvents() {
+    return timestampingEvents;
+  }
+
+  /**
+   * @param timestampingEvents
+   *          Whether the BEGIN records of new logs hold the time the event was
+   *          posted, which is what {@link GeterDun#getOldestUncommittedAge()}
+   *          and {@link GeterDun#getCommitLatency()} are measured from. Logs
+   *          written with timestamps cannot be read by versions that predate
+   *          them. Timestamped logs are always written with
+   *          {@link #setCompactRecords(boolean) compact records}. Defaults to
+   *          <tt>false</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setTimestampingEvents(boolean timestampingEvents) {
+    this.timestampingEvents = timestampingEvents;
+    return this;
+  }
+
+  public boolean isRetryingOldestFirst() {
+    return retryingOldestFirst;
+  }
+
+  /**
+   * @param retryingOldestFirst
+   *          Whether background retries go through the rotated logs from the
+   *          oldest to the newest, and through the events of each log in the
+   *          order they were posted, so that the events closest to breaching
+   *          their deadline are drained first. Otherwise a random log is
+   *          retried each time, in no particular order. Has no effect when
+   *          events are ordered by key, which always retries oldest first.
+   *          Defaults to <tt>false</tt>.
+   * @return This object.
+   */
+  public GeterDunOptions setRetryingOldestFirst(boolean retryingOldestFirst) {
+    this.retryingOldestFirst = retryingOldestFirst;
+    return this;
+  }
+
+  /**
+   * @return The runtime that was set, or the default runtime.
+   */
+  public GeterDunRuntime getRuntime() {
+    return runtime == null ? GeterDunRuntime.getDefault() : runtime;
+  }
+
+  /**
+   * @param runtime
+   *          The threads that rotate logs and retry events in the background,
+   *          which may be shared with other instances. Defaults to
+   *          {@link GeterDunRuntime#getDefault()}.
+   * @return This object.
+   */
+  public GeterDunOptions setRuntime(GeterDunRuntime runtime) {
+    this.runtime = checkNotNull(runtime, "runtime");
+    return this;
+  }
+
+  /**
+   * @return The default lane followed by the lanes that were added.
+   */
+  List<Lane> getLanes() {
+    List<Lane> result = new ArrayList<Lane>();
+    result.add(new Lane(Lane.DEFAULT, defaultLaneWeight));
+    for (Entry<String, Integer> lane : lanes.entrySet()) {
+      result.add(new Lane(lane.getKey(), lane.getValue()));
+    }
+    return result;
+  }
+
+  private static int checkWeight(int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("Lane weights must be at least 1.");
+    }
+    return weight;
+  }
+
+  private static <T> T checkNotNull(T value, String name) {
+    if (value == null) {
+      throw new IllegalArgumentException(name + " must not be null.");
+    }
+    return value;
+  }
+
+}
@@ -0,0 +1,174 @@
+package com.bah.geterdun;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The background threads that rotate logs and retry uncommitted events. Any
+ * number of {@link GeterDun} instances can share a runtime, so the number of
+ * threads does not grow with the number of instances.
+ * <p>
+ * Each lane of each instance has at most one cleanup pass queued or running
+ * at a time, and a lane that still has work goes to the back of the queue
+ * after each pass, so the cleanup threads are shared round robin and a slow
+ * instance only ever holds one of them. Rotations run on their own threads so
+ * that they are not delayed by cleanup, and replication to a remote location
+ * runs on a thread of its own so that a slow remote file system delays
+ * neither.
+ * <p>
+ * When attempts have a deadline, a synchronous {@link EventProcessor} is
+ * called on a separate attempt thread, so that the caller can give up on it.
+ * Attempt threads are created as needed, up to a fixed number, and reused.
+ * Attempts beyond that wait in a queue, and an attempt whose outcome has been
+ * decided by the time it would start, because its deadline passed or a hedged
+ * attempt finished first, is skipped. Attempts that are given up on keep
+ * their thread until the processor returns, so the bound is what keeps a hung
+ * processor from growing the number of threads without limit.
+ * <p>
+ * Instances that are not given a runtime in their {@link GeterDunOptions} use
+ * the {@link #getDefault() default runtime}.
+ */
+public class GeterDunRuntime implements Closeable {
+
+  /** The default number of attempt threads. */
+  public static final int DEFAULT_ATTEMPT_THREADS = 256;
+  private static GeterDunRuntime defaultRuntime;
+
+  private final ScheduledExecutorService rotationExecutor;
+  private final ScheduledExecutorService replicationExecutor;
+  private final ExecutorService cleanupExecutor;
+  private final ScheduledExecutorService timer;
+  private final ListeningExecutorService attemptExecutor;
+
+  /**
+   * Creates a runtime with two rotation threads and a cleanup thread per
+   * processor.
+   */
+  public GeterDunRuntime() {
+    this(2, Math.max(2, Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * @param rotationThreads
+   *          The number of threads that rotate logs.
+   * @param cleanupThreads
+   *          The number of threads that retry the events of old logs.
+   */
+  public GeterDunRuntime(int rotationThreads, int cleanupThreads) {
+    this(rotationThreads, cleanupThreads, DEFAULT_ATTEMPT_THREADS);
+  }
+
+  /**
+   * @param rotationThreads
+   *          The number of threads that rotate logs.
+   * @param cleanupThreads
+   *          The number of threads that retry the events of old logs.
+   * @param attemptThreads
+   *          The most threads that run attempts with a deadline at once. This
+   *          should be at least the concurrency limit of every instance
+   *          sharing the runtime, plus their hedged attempts.
+   */
+  public GeterDunRuntime(int rotationThreads, int cleanupThreads,
+      int attemptThreads) {
+    if (rotationThreads < 1 || cleanupThreads < 1 || attemptThreads < 1) {
+      throw new IllegalArgumentException(
+          "A runtime needs at least one thread of each kind.");
+    }
+    rotationExecutor = new ScheduledThreadPoolExecutor(rotationThreads,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("GeterDun log rotator %d").build());
+    replicationExecutor = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("GeterDun log shipper %d").build());
+    cleanupExecutor = new ThreadPoolExecutor(cleanupThreads, cleanupThreads,
+        0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("GeterDun log retrier %d").build());
+    timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("GeterDun deadline timer %d").build());
+    ThreadPoolExecutor attempts = new ThreadPoolExecutor(attemptThreads,
+        attemptThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("GeterDun attempt %d").build());
+    attempts.allowCoreThreadTimeOut(true);
+    attemptExecutor = MoreExecutors.listeningDecorator(attempts);
+  }
+
+  /**
+   * @return The runtime shared by every instance that was not given one.
+   */
+  public static synchronized GeterDunRuntime getDefault() {
+    if (defaultRuntime == null) {
+      defaultRuntime = new GeterDunRuntime();
+    }
+    return defaultRuntime;
+  }
+
+  /**
+   * Runs a rotation, or another periodic task that touches the local file
+   * system such as syncing idle logs, on the rotation threads.
+   */
+  ScheduledFuture<?> scheduleRotation(Runnable rotation, long frequency) {
+    return rotationExecutor.scheduleAtFixedRate(rotation, frequency,
+        frequency, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs replication passes on the replication thread, each one starting
+   * <tt>interval</tt> milliseconds after the last one finished.
+   */
+  ScheduledFuture<?> scheduleReplication(Runnable replication, long interval) {
+    return replicationExecutor.scheduleWithFixedDelay(replication, interval,
+        interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queues a cleanup pass behind the passes of every other lane.
+   *
+   * @throws RejectedExecutionException
+   *           If the runtime has been closed.
+   */
+  void submitCleanup(Runnable cleanup) {
+    cleanupExecutor.execute(cleanup);
+  }
+
+  /**
+   * Runs a short task, such as giving up on an attempt, after a delay.
+   */
+  void schedule(Runnable task, long delayMillis) {
+    timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  ListeningExecutorService getAttemptExecutor() {
+    return attemptExecutor;
+  }
+
+  /**
+   * Stops the runtime once the passes that are already queued have finished.
+   * The instances using the runtime should be closed first.
+   */
+  public void close() {
+    rotationExecutor.shutdown();
+    replicationExecutor.shutdown();
+    cleanupExecutor.shutdown();
+    timer.shutdown();
+    attemptExecutor.shutdown();
+    synchronized (GeterDunRuntime.class) {
+      if (defaultRuntime == this) {
+        defaultRuntime = null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,199 @@
+package com.bah.geterdun;
+
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Posts the events of a Reactive Streams publisher to a {@link GeterDun}, so
+ * that backpressure reaches the publisher instead of blocking its threads.
+ * Created with {@link GeterDun#newSubscriber(int, int)}.
+ * <p>
+ * The subscriber requests at most a window of events at a time. Received
+ * events are queued and logged by a single task in batches, with one write
+ * per lane, and each event is then processed as if it had been posted with
+ * {@link GeterDun#geterDun(Object)}. More events are requested as the ones
+ * already received are processed, fail or are left for a background retry.
+ * While the current logs hold too many uncommitted events, because the
+ * downstream system is failing, no more events are requested until the
+ * backlog has fallen to half.
+ * <p>
+ * Events that cannot be logged are handed to the failure handler. An error
+ * from the publisher is logged, and events already received are still
+ * posted.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ */
+public class GeterDunSubscriber<EVENT> implements Subscriber<EVENT> {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(GeterDunSubscriber.class);
+  /** How often a throttled subscriber checks the backlog, in milliseconds. */
+  private static final long BACKLOG_CHECK_INTERVAL = 100;
+
+  private final GeterDun<EVENT> geterDun;
+  private final int window;
+  private final int maxBacklog;
+  private final Executor executor;
+  private final GeterDunRuntime runtime;
+  private final ConcurrentLinkedQueue<EVENT> received = new ConcurrentLinkedQueue<EVENT>();
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private final Runnable drain = new Runnable() {
+    public void run() {
+      drain();
+    }
+  };
+  private final Runnable backlogCheck = new Runnable() {
+    public void run() {
+      synchronized (GeterDunSubscriber.this) {
+        checkScheduled = false;
+      }
+      requestMore();
+    }
+  };
+  private Subscription subscription;
+  /** Events requested and not yet finished with. */
+  private long outstanding;
+  private boolean throttled;
+  private boolean checkScheduled;
+  private boolean stopped;
+
+  GeterDunSubscriber(GeterDun<EVENT> geterDun, int window, int maxBacklog,
+      Executor executor, GeterDunRuntime runtime) {
+    if (window < 1 || maxBacklog < 1) {
+      throw new IllegalArgumentException(
+          "window and maxBacklog must be at least 1.");
+    }
+    this.geterDun = geterDun;
+    this.window = window;
+    this.maxBacklog = maxBacklog;
+    this.executor = executor;
+    this.runtime = runtime;
+  }
+
+  public void onSubscribe(Subscription subscription) {
+    if (subscription == null) {
+      throw new NullPointerException("subscription");
+    }
+    synchronized (this) {
+      if (this.subscription != null || stopped) {
+        subscription.cancel();
+        return;
+      }
+      this.subscription = subscription;
+    }
+    requestMore();
+  }
+
+  public void onNext(EVENT event) {
+    if (event == null) {
+      throw new NullPointerException("event");
+    }
+    received.add(event);
+    if (draining.compareAndSet(false, true)) {
+      executor.execute(drain);
+    }
+  }
+
+  public void onError(Throwable t) {
+    LOG.error("The publisher failed.", t);
+    stop();
+  }
+
+  public void onComplete() {
+    stop();
+  }
+
+  /**
+   * Cancels the subscription. Events that have already been received are
+   * still posted.
+   */
+  public void cancel() {
+    Subscription cancelled = stop();
+    if (cancelled != null) {
+      cancelled.cancel();
+    }
+  }
+
+  private synchronized Subscription stop() {
+    stopped = true;
+    return subscription;
+  }
+
+  /**
+   * Logs and starts the received events in batches of up to a window, until
+   * none are left.
+   */
+  private void drain() {
+    while (true) {
+      List<EVENT> batch = new ArrayList<EVENT>();
+      EVENT event;
+      while (batch.size() < window && (event = received.poll()) != null) {
+        batch.add(event);
+      }
+      if (batch.isEmpty()) {
+        draining.set(false);
+        // an event may have arrived after the last poll
+        if (received.isEmpty() || !draining.compareAndSet(false, true)) {
+          return;
+        }
+        continue;
+      }
+      final int size = batch.size();
+      geterDun.startAll(batch).addListener(new Runnable() {
+        public void run() {
+          finished(size);
+        }
+      }, sameThreadExecutor());
+    }
+  }
+
+  private void finished(int events) {
+    synchronized (this) {
+      outstanding -= events;
+    }
+    requestMore();
+  }
+
+  /**
+   * Tops the demand back up to the window, unless the backlog is too large.
+   * The request is made outside the lock, since the publisher may deliver
+   * events from within it.
+   */
+  private void requestMore() {
+    long backlog = geterDun.getBacklog();
+    Subscription requestFrom;
+    long requested;
+    synchronized (this) {
+      if (subscription == null || stopped) {
+        return;
+      }
+      throttled = throttled ? backlog >= maxBacklog / 2 : backlog > maxBacklog;
+      if (throttled) {
+        if (!checkScheduled) {
+          checkScheduled = true;
+          runtime.schedule(backlogCheck, BACKLOG_CHECK_INTERVAL);
+        }
+        return;
+      }
+      requested = window - outstanding;
+      if (requested <= 0) {
+        return;
+      }
+      outstanding += requested;
+      requestFrom = subscription;
+    }
+    requestFrom.request(requested);
+  }
+
+}
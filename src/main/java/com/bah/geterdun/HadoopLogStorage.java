@@ -0,0 +1,144 @@
+package com.bah.geterdun;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/**
+ * Stores logs with a Hadoop {@link FileSystem}, such as HDFS.
+ */
+class HadoopLogStorage implements LogStorage {
+
+  private final FileSystem fs;
+
+  HadoopLogStorage(FileSystem fs) {
+    this.fs = fs;
+  }
+
+  public boolean exists(Path path) throws IOException {
+    return fs.exists(path);
+  }
+
+  public long getLength(Path path) throws IOException {
+    return fs.getFileStatus(path).getLen();
+  }
+
+  public FileStatus[] listStatus(Path directory, PathFilter filter)
+      throws IOException {
+    return fs.listStatus(directory, filter);
+  }
+
+  public LogOutput create(Path path, boolean overwrite) throws IOException {
+    return output(fs.create(path, overwrite));
+  }
+
+  public LogOutput append(Path path) throws IOException {
+    return output(fs.append(path));
+  }
+
+  public LogInput open(Path path) throws IOException {
+    final FSDataInputStream in = fs.open(path);
+    return new LogInput(new LogInput.Source() {
+      @Override
+      public int read() throws IOException {
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return in.read(b, off, len);
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        return in.skip(n);
+      }
+
+      @Override
+      public int available() throws IOException {
+        return in.available();
+      }
+
+      @Override
+      long getPos() throws IOException {
+        return in.getPos();
+      }
+
+      @Override
+      void seek(long pos) throws IOException {
+        in.seek(pos);
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    });
+  }
+
+  private static LogOutput output(final FSDataOutputStream out) {
+    return new LogOutput(new LogOutput.Sink() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      long getPos() throws IOException {
+        return out.getPos();
+      }
+
+      @Override
+      void hflush() throws IOException {
+        out.hflush();
+      }
+
+      @Override
+      void hsync() throws IOException {
+        out.hsync();
+      }
+
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.close();
+      }
+    });
+  }
+
+  public boolean rename(Path from, Path to) throws IOException {
+    return fs.rename(from, to);
+  }
+
+  public void replace(Path from, Path to) throws IOException {
+    // FileSystem.rename() refuses to overwrite, FileContext can do it in one
+    // step
+    FileContext.getFileContext(fs.getUri(), fs.getConf()).rename(from, to,
+        Options.Rename.OVERWRITE);
+  }
+
+  public boolean delete(Path path) throws IOException {
+    return fs.delete(path, false);
+  }
+
+  public boolean mkdirs(Path directory) throws IOException {
+    return fs.mkdirs(directory);
+  }
+
+}
@@ -2,9 +2,6 @@ package com.bah.geterdun;
 
 import java.io.IOException;
 
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 /**
@@ -13,24 +10,43 @@ import org.apache.hadoop.fs.Path;
 class HeaderManagement {
 
   public static class HeaderBasedInitialization {
-    private final FSDataOutputStream out;
-    private final FSDataInputStream in;
+    private final LogOutput out;
+    private final LogInput in;
+    private final byte[] syncMarker;
+    private final int version;
 
-    public HeaderBasedInitialization(FSDataOutputStream out,
-        FSDataInputStream in) {
+    public HeaderBasedInitialization(LogOutput out,
+        LogInput in, byte[] syncMarker, int version) {
       super();
       this.out = out;
       this.in = in;
+      this.syncMarker = syncMarker;
+      this.version = version;
     }
 
-    public FSDataInputStream getIn() {
+    public LogInput getIn() {
       return in;
     }
 
-    public FSDataOutputStream getOut() {
+    public LogOutput getOut() {
       return out;
     }
 
+    /**
+     * @return The sync marker of the log, or <tt>null</tt> if it has none.
+     */
+    public byte[] getSyncMarker() {
+      return syncMarker;
+    }
+
+    /**
+     * @return The version of the header, which decides the format of the
+     *         records.
+     */
+    public int getVersion() {
+      return version;
+    }
+
   }
 
   private HeaderWritable writable;
@@ -43,30 +59,49 @@ class HeaderManagement {
     this(new HeaderWritable());
   }
 
-  public HeaderBasedInitialization createAndWriteHeader(FileSystem fileSystem,
-      Path path, Class<?> eventClass) throws IOException {
-    fileSystem.createNewFile(path);
-    FSDataOutputStream out = fileSystem.append(path);
+  public synchronized HeaderBasedInitialization createAndWriteHeader(
+      LogStorage storage, Path path, Class<?> eventClass) throws IOException {
+    LogOutput out = storage.create(path, false);
     writable.setClassName(eventClass.getName());
+    writable.newSyncMarker();
     writable.write(out);
     out.hsync();
-    FSDataInputStream in = fileSystem.open(path);
+    LogInput in = storage.open(path);
     writable.readFields(in);
-    return new HeaderBasedInitialization(out, in);
+    return new HeaderBasedInitialization(out, in, writable.getSyncMarker(),
+        writable.getReadVersion());
   }
 
-  public HeaderBasedInitialization verifyHeaderAndOpen(FileSystem fileSystem,
-      Path path, Class<?> eventClass) throws IOException {
-    FSDataInputStream in = fileSystem.open(path);
+  public synchronized HeaderBasedInitialization verifyHeaderAndOpen(
+      LogStorage storage, Path path, Class<?> eventClass) throws IOException {
+    LogInput in = storage.open(path);
+    int version;
+    try {
+      version = verifyHeader(in, eventClass);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    LogOutput out = storage.append(path);
+    return new HeaderBasedInitialization(out, in, writable.getSyncMarker(),
+        version);
+  }
+
+  /**
+   * Reads the header at the current position of a stream and checks that the
+   * log holds events of the given class.
+   * 
+   * @return The version of the header.
+   */
+  public synchronized int verifyHeader(LogInput in,
+      Class<?> eventClass) throws IOException {
     writable.readFields(in);
     if (!eventClass.getName().equals(writable.getClassName())) {
-      in.close();
       throw new IOException(
           "Invalid class in existing write ahead log, expected "
               + eventClass.getName() + " got " + writable.getClassName());
     }
-    FSDataOutputStream out = fileSystem.append(path);
-    return new HeaderBasedInitialization(out, in);
+    return writable.getReadVersion();
   }
 
 }
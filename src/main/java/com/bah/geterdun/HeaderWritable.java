@@ -3,27 +3,79 @@ package com.bah.geterdun;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.security.SecureRandom;
 
 import org.apache.hadoop.io.Writable;
 
+/**
+ * The header of a write ahead log. Version 0 holds the class of the events.
+ * Version 1 adds a random sync marker, which is written periodically between
+ * records so that a reader can start at any offset in the log and find the
+ * next record boundary, in the same way as a Hadoop <tt>SequenceFile</tt>.
+ * Version 2 does not change the header, but marks a log whose records are
+ * written in the compact format: a one byte type, variable length IDs that are
+ * relative to the last event created where possible, and 64 bit IDs. It is
+ * also the first version whose logs may hold COMMIT_BLOCK and ATTEMPT records,
+ * so older logs are only ever appended BEGIN, COMMIT and SYNC records.
+ * Version 3 does not change the header either, but marks a compact log whose
+ * BEGIN records also hold the time the event was posted.
+ */
 class HeaderWritable implements Writable {
 
-  public static final int SYNC_SIZE = 128;
-  private final int version = 0;
+  /** The length of the random part of a sync marker. */
+  public static final int SYNC_HASH_SIZE = 16;
+  /** The length of a sync record of a version 1 log, including its type. */
+  public static final int SYNC_SIZE = 4 + SYNC_HASH_SIZE;
+  /** The default number of bytes between sync records. */
+  public static final int SYNC_INTERVAL = 100 * SYNC_SIZE;
+  private static final SecureRandom random = new SecureRandom();
+  /** The first version whose header holds a sync marker. */
+  public static final int SYNC_MARKER_VERSION = 1;
+  /** The first version whose records are written in the compact format. */
+  public static final int COMPACT_VERSION = 2;
+  /** The first version whose logs may hold COMMIT_BLOCK and ATTEMPT records. */
+  public static final int BATCH_RECORDS_VERSION = COMPACT_VERSION;
+  /** The first version whose BEGIN records hold a timestamp. */
+  public static final int TIMESTAMP_VERSION = 3;
+  /** The latest version that can be read. */
+  public static final int LATEST_VERSION = TIMESTAMP_VERSION;
+  private final int version;
+  private int readVersion;
   private String className;
+  private byte[] syncMarker;
+
+  public HeaderWritable() {
+    this(SYNC_MARKER_VERSION);
+  }
+
+  /**
+   * @param version
+   *          The version of the headers that are written.
+   */
+  public HeaderWritable(int version) {
+    this.version = version;
+  }
 
   public void readFields(DataInput in) throws IOException {
     int version = in.readInt();
-    if (version != this.version) {
-      throw new IOException("Version mismatch, expected " + this.version
-          + " got " + version);
+    if (version < 0 || version > LATEST_VERSION) {
+      throw new IOException("Version mismatch, expected at most "
+          + LATEST_VERSION + " got " + version);
     }
+    readVersion = version;
     className = in.readUTF();
+    if (version >= 1) {
+      syncMarker = new byte[SYNC_HASH_SIZE];
+      in.readFully(syncMarker);
+    } else {
+      syncMarker = null;
+    }
   }
 
   public void write(DataOutput out) throws IOException {
     out.writeInt(version);
     out.writeUTF(className);
+    out.write(syncMarker);
   }
 
   public void setClassName(String name) {
@@ -34,4 +86,27 @@ class HeaderWritable implements Writable {
     return className;
   }
 
+  /**
+   * Prepares the header for a new log, with a new sync marker.
+   */
+  public void newSyncMarker() {
+    syncMarker = new byte[SYNC_HASH_SIZE];
+    random.nextBytes(syncMarker);
+  }
+
+  /**
+   * @return The sync marker of the log, or <tt>null</tt> if the log predates
+   *         sync markers.
+   */
+  public byte[] getSyncMarker() {
+    return syncMarker;
+  }
+
+  /**
+   * @return The version of the header that was last read.
+   */
+  public int getReadVersion() {
+    return readVersion;
+  }
+
 }
@@ -0,0 +1,136 @@
+package com.bah.geterdun;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The storage handles shared by everything that reads and writes the logs of
+ * one {@link GeterDun}. Local logs are stored without Hadoop, so an instance
+ * that only writes to local disk never loads a Hadoop {@link Configuration}.
+ * For other locations the configuration is only loaded once, and a file system
+ * is only created once per scheme and authority. The file systems belong to
+ * the context rather than to Hadoop's shared cache, and are closed with it.
+ */
+class IoContext implements Closeable {
+
+  private static final LogStorage LOCAL = new LocalLogStorage();
+
+  private Configuration conf;
+  private final ConcurrentMap<String, FileSystem> fileSystems = new ConcurrentHashMap<String, FileSystem>();
+  private final ConcurrentMap<String, LogStorage> storages = new ConcurrentHashMap<String, LogStorage>();
+
+  IoContext() {
+  }
+
+  IoContext(Configuration conf) {
+    this.conf = conf;
+  }
+
+  /**
+   * @return The Hadoop configuration, which is loaded the first time it is
+   *         needed.
+   */
+  public synchronized Configuration getConf() {
+    if (conf == null) {
+      conf = new Configuration();
+    }
+    return conf;
+  }
+
+  /**
+   * @return The file system of a path, which is a new instance of the file
+   *         system {@link Path#getFileSystem(Configuration)} would return, the
+   *         first time it is needed.
+   */
+  public FileSystem getFileSystem(Path path) throws IOException {
+    String key = key(path);
+    FileSystem fs = fileSystems.get(key);
+    if (fs == null) {
+      fs = FileSystem.newInstance(path.toUri(), getConf());
+      FileSystem existing = fileSystems.putIfAbsent(key, fs);
+      if (existing != null) {
+        fs.close();
+        fs = existing;
+      }
+    }
+    return fs;
+  }
+
+  /**
+   * @return The storage that logs at a path are written and read with. Paths
+   *         with the <tt>file</tt> scheme are stored locally, and any other
+   *         path, including one without a scheme, with its Hadoop file system.
+   */
+  public LogStorage getStorage(Path path) throws IOException {
+    if ("file".equals(path.toUri().getScheme())) {
+      return LOCAL;
+    }
+    String key = key(path);
+    LogStorage storage = storages.get(key);
+    if (storage == null) {
+      storage = new HadoopLogStorage(getFileSystem(path));
+      LogStorage existing = storages.putIfAbsent(key, storage);
+      if (existing != null) {
+        storage = existing;
+      }
+    }
+    return storage;
+  }
+
+  /**
+   * @return The path with a scheme and authority, which without one are those
+   *         of the default Hadoop file system.
+   */
+  public Path qualify(Path path) throws IOException {
+    if (path.toUri().getScheme() != null) {
+      return path;
+    }
+    return getFileSystem(path).makeQualified(path);
+  }
+
+  /**
+   * @return The scheme and authority of a path, which without a scheme are
+   *         those of the default Hadoop file system.
+   */
+  private String key(Path path) {
+    URI uri = path.toUri();
+    if (uri.getScheme() == null) {
+      uri = FileSystem.getDefaultUri(getConf());
+    }
+    return uri.getScheme() + "://" + uri.getAuthority();
+  }
+
+  /**
+   * Closes the file systems of the context. Local storage holds nothing open
+   * between streams, so there is nothing to close for it.
+   * 
+   * @throws IOException
+   *           The first failure to close a file system, once every one has
+   *           been tried.
+   */
+  public void close() throws IOException {
+    IOException failure = null;
+    for (FileSystem fs : fileSystems.values()) {
+      try {
+        fs.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    fileSystems.clear();
+    storages.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+}
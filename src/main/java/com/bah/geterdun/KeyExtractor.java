@@ -0,0 +1,25 @@
+package com.bah.geterdun;
+
+/**
+ * Chooses the ordering key of an event when it is posted to a
+ * {@link GeterDun}. Events with equal keys are processed, and retried, in the
+ * order they were posted, while events with different keys are processed in
+ * parallel.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ * @see GeterDunOptions#setKeyExtractor(KeyExtractor)
+ */
+public interface KeyExtractor<EVENT> {
+
+  /**
+   * @param event
+   *          An event that is about to be logged, or that is being retried
+   *          from a log.
+   * @return The key of the event, which must implement <tt>equals</tt> and
+   *         <tt>hashCode</tt> and must be the same every time it is extracted
+   *         from the same event. <tt>null</tt> is a key like any other.
+   */
+  public Object getKey(EVENT event);
+
+}
@@ -0,0 +1,297 @@
+package com.bah.geterdun;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Processes the events of one lane in order by key, on a pool of workers. Each
+ * key with events waiting in memory has a queue that one worker at a time
+ * drains in BEGIN order. When the event at the head of a queue fails, the
+ * queue is tried again after a delay and its worker moves on to other keys, so
+ * a blocked key never stalls the others.
+ * <p>
+ * When the logs are rotated, the queued events are dropped from memory and
+ * their keys are parked: their events are left in the rotated logs for the
+ * next {@link Retrier#cleanup(WriteAheadLogManager) cleanup pass}, which goes
+ * through every rotated log from oldest to newest in key order. Events posted
+ * for a parked key wait in memory until a pass has committed every older event
+ * of the key. Until the first pass after startup has finished, every key is
+ * treated as parked, since the logs of the previous run may hold older events
+ * of any key.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ */
+class KeyedDispatcher<EVENT> implements KeyExtractor<EVENT>, Closeable {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(KeyedDispatcher.class);
+  private static final int STRIPES = 64;
+
+  private static class Pending<EVENT> {
+    private final long id;
+    private final EVENT event;
+    private final WriteAheadLog<EVENT> log;
+
+    Pending(long id, EVENT event, WriteAheadLog<EVENT> log) {
+      this.id = id;
+      this.event = event;
+      this.log = log;
+    }
+  }
+
+  /**
+   * The events of one key that are being processed from memory. A queue is
+   * drained by at most one worker at a time, and stops being drained once it
+   * is no longer the active queue of its key.
+   */
+  private class KeyQueue implements Runnable {
+    private final Object key;
+    private final ArrayDeque<Pending<EVENT>> events;
+    /** Whether the head has failed before. */
+    private boolean retrying;
+
+    KeyQueue(Object key, ArrayDeque<Pending<EVENT>> events) {
+      this.key = key;
+      this.events = events;
+    }
+
+    public void run() {
+      drain(this);
+    }
+  }
+
+  private final KeyExtractor<EVENT> keyExtractor;
+  private final TryHandler<EVENT> tryHandler;
+  private final ListeningExecutorService workers;
+  private final GeterDunRuntime runtime;
+  private final long retryDelay;
+  private final Lock[] stripes = new Lock[STRIPES];
+  private WriteAheadLogManager<EVENT> manager;
+  private final Map<Object, KeyQueue> active = new HashMap<Object, KeyQueue>();
+  /** Events of parked keys, in BEGIN order. */
+  private final Map<Object, ArrayDeque<Pending<EVENT>>> waiting = new HashMap<Object, ArrayDeque<Pending<EVENT>>>();
+  /** Keys that may have older uncommitted events in rotated logs. */
+  private final Set<Object> parked = new HashSet<Object>();
+  /**
+   * Keys parked since the current cleanup pass started, which may have events
+   * in logs the pass did not see.
+   */
+  private final Set<Object> parkedSincePass = new HashSet<Object>();
+  private boolean recovered;
+  private boolean closed;
+
+  /**
+   * @param workers
+   *          Processes the queues of different keys in parallel.
+   * @param retryDelay
+   *          The number of milliseconds before a key whose head failed is
+   *          tried again.
+   */
+  KeyedDispatcher(KeyExtractor<EVENT> keyExtractor,
+      TryHandler<EVENT> tryHandler, ListeningExecutorService workers,
+      GeterDunRuntime runtime, long retryDelay) {
+    this.keyExtractor = keyExtractor;
+    this.tryHandler = tryHandler;
+    this.workers = workers;
+    this.runtime = runtime;
+    this.retryDelay = retryDelay;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Called by the manager before its first rotation.
+   */
+  void attach(WriteAheadLogManager<EVENT> manager) {
+    this.manager = manager;
+  }
+
+  public Object getKey(EVENT event) {
+    return keyExtractor.getKey(event);
+  }
+
+  /**
+   * @return A lock that must be held from the BEGIN of an event with the key
+   *         until it has been {@link #offer(Object, long, Object, WriteAheadLog)
+   *         offered}, so that events are queued in BEGIN order.
+   */
+  public Lock lockFor(Object key) {
+    int hash = key == null ? 0 : key.hashCode();
+    return stripes[(hash & Integer.MAX_VALUE) % STRIPES];
+  }
+
+  /**
+   * Queues an event that was just begun in the current log. The caller must
+   * hold the key's lock and have paused rotation.
+   */
+  public synchronized void offer(Object key, long id, EVENT event,
+      WriteAheadLog<EVENT> log) {
+    if (closed) {
+      // it stays in the log until the next run
+      return;
+    }
+    Pending<EVENT> pending = new Pending<EVENT>(id, event, log);
+    if (!recovered || parked.contains(key)) {
+      ArrayDeque<Pending<EVENT>> events = waiting.get(key);
+      if (events == null) {
+        events = new ArrayDeque<Pending<EVENT>>();
+        waiting.put(key, events);
+      }
+      events.add(pending);
+      return;
+    }
+    KeyQueue queue = active.get(key);
+    if (queue == null) {
+      queue = new KeyQueue(key, new ArrayDeque<Pending<EVENT>>());
+      queue.events.add(pending);
+      active.put(key, queue);
+      submit(queue);
+    } else {
+      queue.events.add(pending);
+    }
+  }
+
+  private void submit(KeyQueue queue) {
+    try {
+      workers.execute(queue);
+    } catch (RejectedExecutionException e) {
+      LOG.error("Unable to process key " + queue.key
+          + ", its events will be processed after a restart.");
+    }
+  }
+
+  /**
+   * Processes the head of a queue until the queue is empty, the head fails or
+   * the queue is no longer active. The log of the head is pinned during each
+   * attempt, so that it stays open if it is rotated out, and no cleanup pass
+   * can process it, and so the same key, until the attempt has finished.
+   */
+  private void drain(final KeyQueue queue) {
+    while (true) {
+      Pending<EVENT> head;
+      boolean live;
+      synchronized (this) {
+        if (closed || active.get(queue.key) != queue) {
+          return;
+        }
+        head = queue.events.peek();
+        if (head == null) {
+          active.remove(queue.key);
+          return;
+        }
+        live = !queue.retrying;
+      }
+      if (!head.log.pin()) {
+        // rotated out, so the key has been parked
+        return;
+      }
+      boolean done;
+      try {
+        done = tryHandler.tryProcess(head.event, head.id, head.log, live);
+      } catch (FinalFailureException e) {
+        // committed and handed to the failure handler
+        done = true;
+      } finally {
+        try {
+          manager.unpin(head.log);
+        } catch (IOException e) {
+          LOG.error("Unable to close log:" + head.log.getPath(), e);
+        }
+      }
+      synchronized (this) {
+        if (closed || active.get(queue.key) != queue) {
+          return;
+        }
+        if (!done) {
+          queue.retrying = true;
+          runtime.schedule(new Runnable() {
+            public void run() {
+              submit(queue);
+            }
+          }, retryDelay);
+          return;
+        }
+        queue.events.poll();
+        queue.retrying = false;
+      }
+    }
+  }
+
+  /**
+   * Parks every key with events in memory, since those events are in the log
+   * that is being rotated out. Called with rotation held off.
+   */
+  public synchronized void detach() {
+    parked.addAll(active.keySet());
+    parked.addAll(waiting.keySet());
+    parkedSincePass.addAll(active.keySet());
+    parkedSincePass.addAll(waiting.keySet());
+    active.clear();
+    waiting.clear();
+  }
+
+  /**
+   * Called with rotation paused when a cleanup pass starts.
+   */
+  public synchronized void passStarted() {
+    parkedSincePass.clear();
+  }
+
+  /**
+   * Records the outcome of a cleanup pass over every rotated log. Keys that
+   * were not blocked, and were not parked by a rotation during the pass, have
+   * no older events left in the rotated logs, so their waiting events are
+   * queued.
+   *
+   * @param blocked
+   *          The keys that still have uncommitted events in the rotated logs.
+   */
+  public synchronized void passCompleted(Set<Object> blocked) {
+    if (closed) {
+      return;
+    }
+    recovered = true;
+    Set<Object> keep = new HashSet<Object>(blocked);
+    keep.addAll(parkedSincePass);
+    parked.retainAll(keep);
+    parked.addAll(blocked);
+    Iterator<Entry<Object, ArrayDeque<Pending<EVENT>>>> keys = waiting
+        .entrySet().iterator();
+    while (keys.hasNext()) {
+      Entry<Object, ArrayDeque<Pending<EVENT>>> key = keys.next();
+      if (!parked.contains(key.getKey())) {
+        KeyQueue queue = new KeyQueue(key.getKey(), key.getValue());
+        active.put(key.getKey(), queue);
+        keys.remove();
+        submit(queue);
+      }
+    }
+  }
+
+  /**
+   * Stops processing. Events still in memory stay uncommitted in the logs.
+   */
+  public synchronized void close() {
+    closed = true;
+    active.clear();
+    waiting.clear();
+  }
+
+}
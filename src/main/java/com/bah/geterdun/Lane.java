@@ -0,0 +1,49 @@
+package com.bah.geterdun;
+
+/**
+ * A named priority lane. Each lane has its own log directory and rotation,
+ * and gets a share of the background retry capacity proportional to its
+ * weight.
+ */
+class Lane {
+
+  static final String DEFAULT = "default";
+  static final String DIRECTORY_PREFIX = "lane.";
+
+  private final String name;
+  private final int weight;
+  // scheduling state, guarded by the WeightedFairScheduler
+  long pass;
+  int waiting;
+
+  Lane(String name, int weight) {
+    this.name = name;
+    this.weight = weight;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return The location of the logs of this lane under the location of a
+   *         {@link GeterDun}. The default lane uses that location directly.
+   */
+  public String getLocation(String location) {
+    if (DEFAULT.equals(name)) {
+      return location;
+    }
+    return location + (location.endsWith("/") ? "" : "/") + DIRECTORY_PREFIX
+        + name;
+  }
+
+  @Override
+  public String toString() {
+    return name + "(" + weight + ")";
+  }
+
+}
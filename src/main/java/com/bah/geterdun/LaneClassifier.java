@@ -0,0 +1,22 @@
+package com.bah.geterdun;
+
+/**
+ * Chooses the priority lane of an event when it is posted to a
+ * {@link GeterDun}.
+ * 
+ * @param <EVENT>
+ *          The type of the event.
+ * @see GeterDunOptions#addLane(String, int)
+ */
+public interface LaneClassifier<EVENT> {
+
+  /**
+   * @param event
+   *          An event that is about to be logged.
+   * @return The name of a lane added with
+   *         {@link GeterDunOptions#addLane(String, int)}, or <tt>null</tt> for
+   *         the default lane. Unknown names also select the default lane.
+   */
+  public String classify(EVENT event);
+
+}
@@ -0,0 +1,63 @@
+package com.bah.geterdun;
+
+/**
+ * A distribution of latencies in milliseconds, counted in buckets whose bounds
+ * are powers of two, so that recording a latency is cheap and the distribution
+ * takes the same memory however many are recorded. Percentiles are accurate to
+ * within a factor of two.
+ */
+public class LatencyDistribution {
+
+  private static final int BUCKETS = 64;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long max;
+
+  /**
+   * Counts a latency. Negative latencies, which the clock can produce when it
+   * is adjusted, count as <tt>0</tt>.
+   */
+  synchronized void record(long millis) {
+    millis = Math.max(0, millis);
+    counts[BUCKETS - Long.numberOfLeadingZeros(millis)]++;
+    count++;
+    max = Math.max(max, millis);
+  }
+
+  /**
+   * @return The number of latencies recorded.
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * @return The largest latency recorded, or <tt>0</tt> if none were.
+   */
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * @param percentile
+   *          The percentile, between <tt>0</tt> and <tt>100</tt>.
+   * @return A latency that at least the given percentage of the recorded
+   *         latencies were no larger than, and that is at most twice the
+   *         exact percentile, or <tt>0</tt> if none were recorded.
+   */
+  public synchronized long getPercentile(double percentile) {
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        // the largest latency that falls in the bucket
+        long bound = bucket == 0 ? 0 : (1L << bucket) - 1;
+        return Math.min(bound, max);
+      }
+    }
+    return 0;
+  }
+
+}
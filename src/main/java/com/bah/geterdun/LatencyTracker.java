@@ -0,0 +1,51 @@
+package com.bah.geterdun;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks a percentile of the latency of recent successful processing attempts,
+ * which is how long an attempt may run before a hedged attempt is started.
+ */
+class LatencyTracker {
+
+  /** The number of recent latencies the percentile is taken over. */
+  static final int WINDOW = 1024;
+  /** How many latencies are recorded between updates of the percentile. */
+  static final int UPDATE_INTERVAL = 128;
+
+  private final double percentile;
+  private final long[] samples = new long[WINDOW];
+  private long recorded;
+  private volatile long threshold;
+
+  /**
+   * @param percentile
+   *          The percentile, between <tt>0</tt> and <tt>100</tt>.
+   */
+  LatencyTracker(double percentile) {
+    this.percentile = percentile;
+  }
+
+  public synchronized void record(long nanos) {
+    samples[(int) (recorded++ % WINDOW)] = nanos;
+    if (recorded % UPDATE_INTERVAL == 0) {
+      int size = (int) Math.min(recorded, WINDOW);
+      long[] sorted = Arrays.copyOf(samples, size);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * size) - 1;
+      threshold = sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+  }
+
+  /**
+   * @return The percentile in milliseconds, at least <tt>1</tt>, or
+   *         <tt>0</tt> until enough latencies have been recorded.
+   */
+  public long getThresholdMillis() {
+    long nanos = threshold;
+    return nanos == 0 ? 0 : Math.max(1,
+        TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+}
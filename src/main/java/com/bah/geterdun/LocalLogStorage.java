@@ -0,0 +1,332 @@
+package com.bah.geterdun;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/**
+ * Stores logs on the local disk with a {@link FileChannel} per stream, without
+ * a Hadoop <tt>FileSystem</tt> or <tt>Configuration</tt>. Writes are buffered
+ * until they are flushed, and a sync forces the data of the file, but not its
+ * other metadata, to disk. Unlike Hadoop's local file system, no checksum
+ * files are written, and the <tt>.NAME.crc</tt> checksum file that an earlier
+ * release left beside a log is deleted once the log is written, moved or
+ * deleted here, since it would no longer match the log if Hadoop read it again.
+ * Checksum files are never listed.
+ */
+class LocalLogStorage implements LogStorage {
+
+  /** The size of the buffer of each stream. */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private static class ChannelSource extends LogInput.Source {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    /** The offset in the file of the start of the buffer. */
+    private long bufferStart;
+    private int limit;
+    private int index;
+
+    ChannelSource(RandomAccessFile file) {
+      this.file = file;
+      this.channel = file.getChannel();
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (index == limit && !fill()) {
+        return -1;
+      }
+      return buffer[index++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (index == limit && !fill()) {
+        return -1;
+      }
+      int read = Math.min(len, limit - index);
+      System.arraycopy(buffer, index, b, off, read);
+      index += read;
+      return read;
+    }
+
+    /**
+     * Reads the bytes that follow the buffer into it.
+     *
+     * @return <tt>false</tt> at the end of the file.
+     */
+    private boolean fill() throws IOException {
+      bufferStart += limit;
+      index = 0;
+      limit = 0;
+      wrapped.clear();
+      int read = channel.read(wrapped, bufferStart);
+      if (read <= 0) {
+        return false;
+      }
+      limit = read;
+      return true;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+      seek(getPos() + n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return limit - index;
+    }
+
+    @Override
+    long getPos() {
+      return bufferStart + index;
+    }
+
+    @Override
+    void seek(long pos) throws IOException {
+      if (pos < 0) {
+        throw new IOException("Cannot seek to " + pos);
+      }
+      if (pos >= bufferStart && pos <= bufferStart + limit) {
+        index = (int) (pos - bufferStart);
+      } else {
+        bufferStart = pos;
+        limit = 0;
+        index = 0;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+
+  private static class ChannelSink extends LogOutput.Sink {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    /** Wraps the buffer, so that flushing it allocates nothing. */
+    private final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private int count;
+    /** The offset in the file of the end of what has left the buffer. */
+    private long position;
+
+    ChannelSink(RandomAccessFile file, long position) throws IOException {
+      this.file = file;
+      this.channel = file.getChannel();
+      this.position = position;
+      channel.position(position);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        flushBuffer();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > buffer.length - count) {
+        flushBuffer();
+        if (len >= buffer.length) {
+          writeFully(ByteBuffer.wrap(b, off, len));
+          return;
+        }
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    private void flushBuffer() throws IOException {
+      if (count > 0) {
+        wrapped.clear();
+        wrapped.limit(count);
+        writeFully(wrapped);
+        count = 0;
+      }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+      while (bytes.hasRemaining()) {
+        position += channel.write(bytes);
+      }
+    }
+
+    @Override
+    long getPos() {
+      return position + count;
+    }
+
+    @Override
+    void hflush() throws IOException {
+      flushBuffer();
+    }
+
+    @Override
+    void hsync() throws IOException {
+      flushBuffer();
+      channel.force(false);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flushBuffer();
+      } finally {
+        file.close();
+      }
+    }
+  }
+
+  private static File toFile(Path path) {
+    return new File(path.toUri().getPath());
+  }
+
+  private static boolean isChecksum(String name) {
+    return name.startsWith(".") && name.endsWith(".crc");
+  }
+
+  /**
+   * Deletes the checksum file Hadoop's local file system kept for a file, if
+   * there is one.
+   */
+  private static void deleteChecksum(File file) {
+    new File(file.getParentFile(), "." + file.getName() + ".crc").delete();
+  }
+
+  public boolean exists(Path path) {
+    return toFile(path).exists();
+  }
+
+  public long getLength(Path path) throws IOException {
+    File file = toFile(path);
+    if (!file.exists()) {
+      throw new FileNotFoundException(path.toString());
+    }
+    return file.length();
+  }
+
+  public FileStatus[] listStatus(Path directory, PathFilter filter)
+      throws IOException {
+    File[] files = toFile(directory).listFiles();
+    if (files == null) {
+      if (!toFile(directory).exists()) {
+        throw new FileNotFoundException(directory.toString());
+      }
+      throw new IOException("Unable to list " + directory);
+    }
+    List<FileStatus> statuses = new ArrayList<FileStatus>();
+    for (File file : files) {
+      if (isChecksum(file.getName())) {
+        continue;
+      }
+      Path path = new Path(directory, file.getName());
+      if (filter.accept(path)) {
+        statuses.add(new FileStatus(file.length(), file.isDirectory(), 1, 0,
+            file.lastModified(), path));
+      }
+    }
+    return statuses.toArray(new FileStatus[statuses.size()]);
+  }
+
+  public LogOutput create(Path path, boolean overwrite) throws IOException {
+    File file = toFile(path);
+    File parent = file.getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    if (!file.createNewFile() && !overwrite) {
+      throw new IOException(path + " already exists.");
+    }
+    deleteChecksum(file);
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(0);
+      return new LogOutput(new ChannelSink(out, 0));
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  public LogOutput append(Path path) throws IOException {
+    File file = toFile(path);
+    if (!file.isFile()) {
+      throw new FileNotFoundException(path.toString());
+    }
+    deleteChecksum(file);
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      return new LogOutput(new ChannelSink(out, out.length()));
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  public LogInput open(Path path) throws IOException {
+    return new LogInput(new ChannelSource(new RandomAccessFile(toFile(path),
+        "r")));
+  }
+
+  public boolean rename(Path from, Path to) {
+    File source = toFile(from);
+    File target = toFile(to);
+    if (!source.renameTo(target)) {
+      return false;
+    }
+    deleteChecksum(source);
+    deleteChecksum(target);
+    return true;
+  }
+
+  public void replace(Path from, Path to) throws IOException {
+    // rename(2) replaces the target atomically
+    if (!rename(from, to)) {
+      throw new IOException("Unable to move " + from + " to " + to);
+    }
+  }
+
+  public boolean delete(Path path) {
+    File file = toFile(path);
+    if (!file.delete()) {
+      return false;
+    }
+    deleteChecksum(file);
+    return true;
+  }
+
+  public boolean mkdirs(Path directory) {
+    File file = toFile(directory);
+    return file.mkdirs() || file.isDirectory();
+  }
+
+}
@@ -0,0 +1,39 @@
+package com.bah.geterdun;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stream over a stored file that can be repositioned, which is what reading
+ * a log from a summary or in byte ranges needs.
+ */
+class LogInput extends DataInputStream {
+
+  /**
+   * The bytes of the file, as provided by a {@link LogStorage}.
+   */
+  abstract static class Source extends InputStream {
+
+    /**
+     * @return The offset in the file of the next byte to be read.
+     */
+    abstract long getPos() throws IOException;
+
+    abstract void seek(long pos) throws IOException;
+
+  }
+
+  LogInput(Source source) {
+    super(source);
+  }
+
+  public long getPos() throws IOException {
+    return ((Source) in).getPos();
+  }
+
+  public void seek(long pos) throws IOException {
+    ((Source) in).seek(pos);
+  }
+
+}
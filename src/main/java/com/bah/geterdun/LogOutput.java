@@ -0,0 +1,52 @@
+package com.bah.geterdun;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream that writes a stored file and can push what has been written to
+ * readers or to disk, in the manner of Hadoop's <tt>Syncable</tt>.
+ */
+class LogOutput extends DataOutputStream {
+
+  /**
+   * Where the bytes go, as provided by a {@link LogStorage}.
+   */
+  abstract static class Sink extends OutputStream {
+
+    /**
+     * @return The number of bytes written, counted from where the stream was
+     *         opened or from the start of the file.
+     */
+    abstract long getPos() throws IOException;
+
+    /**
+     * Makes everything written so far visible to new readers.
+     */
+    abstract void hflush() throws IOException;
+
+    /**
+     * Makes everything written so far visible and durable.
+     */
+    abstract void hsync() throws IOException;
+
+  }
+
+  LogOutput(Sink sink) {
+    super(sink);
+  }
+
+  public long getPos() throws IOException {
+    return ((Sink) out).getPos();
+  }
+
+  public void hflush() throws IOException {
+    ((Sink) out).hflush();
+  }
+
+  public void hsync() throws IOException {
+    ((Sink) out).hsync();
+  }
+
+}
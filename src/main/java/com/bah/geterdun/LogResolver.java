@@ -1,11 +1,13 @@
 package com.bah.geterdun;
 
+import java.io.DataInput;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
 /**
  * Populates a map of created events that are uncommited.
@@ -45,37 +47,349 @@ class LogResolver<EVENT> {
   public LogResolver() {
   }
 
-  public int resolveUncommittedEvents(FSDataInputStream stream,
-      Map<Integer, EVENT> eventMap, Class<EVENT> eventClass, long streamLength,
-      String location) throws IOException, CorruptLogException {
-    int code, id = 0;
+  /**
+   * Reads records from the current position of the stream to its end.
+   * 
+   * @param state
+   *          Receives the events that have been begun but not committed.
+   * @param counter
+   *          The last event ID created before the current position.
+   * @param version
+   *          The version of the header of the log, which decides the format of
+   *          the records.
+   * @return The last event ID created in the log.
+   */
+  public long resolveUncommittedEvents(LogInput stream,
+      LogState<EVENT> state, Class<EVENT> eventClass, long streamLength,
+      String location, long counter, int version)
+      throws IOException, CorruptLogException {
+    return resolveRange(stream, state, eventClass, streamLength, location,
+        counter, version, null, Long.MAX_VALUE);
+  }
+
+  /**
+   * Reads records from the current position of the stream until the first
+   * sync record at or after <tt>end</tt>, or the end of the stream. Together
+   * with {@link #syncTo(LogInput, byte[], int, long, long)} this
+   * reads each record of a log exactly once when the log is split into byte
+   * ranges.
+   * 
+   * @param syncMarker
+   *          The sync marker of the log, used to check sync records, or
+   *          <tt>null</tt> to not check them.
+   * @return The last event ID created in the range, or the last one created
+   *         before it if none was.
+   */
+  public long resolveRange(LogInput stream, LogState<EVENT> state,
+      Class<EVENT> eventClass, long streamLength, String location,
+      long counter, int version, byte[] syncMarker, long end)
+      throws IOException, CorruptLogException {
+    boolean compact = version >= HeaderWritable.COMPACT_VERSION;
+    boolean timestamped = version >= HeaderWritable.TIMESTAMP_VERSION;
+    int code;
+    long id = counter;
+    byte[] marker = new byte[HeaderWritable.SYNC_HASH_SIZE];
     while (true) {
+      long position = stream.getPos();
       try {
-        code = stream.readInt();
+        code = readType(stream, compact);
       } catch (EOFException e) {
         // if we've reached the end of the file we're done
         return id;
       }
       try {
         if (code == WriteAheadLog.TYPE_BEGIN) {
-          id = stream.readInt();
-          EVENT event;
-          try {
-            event = eventClass.newInstance();
-          } catch (InstantiationException e) {
-            throw new IOException(e);
-          } catch (IllegalAccessException e) {
-            throw new IOException(e);
-          }
-          ((Writable) event).readFields(stream);
-          eventMap.put(id, event);
+          id = readId(stream, compact);
+          long beginTime = readBeginTime(stream, timestamped);
+          state.begin(id, readEvent(stream, eventClass), position, beginTime);
         } else if (code == WriteAheadLog.TYPE_COMMIT) {
-          int commitId = stream.readInt();
-          eventMap.remove(commitId);
+          state.commit(readRelativeId(stream, compact, id));
+        } else if (code == WriteAheadLog.TYPE_COMMIT_BLOCK) {
+          int ranges = compact ? WritableUtils.readVInt(stream) : stream
+              .readInt();
+          for (int i = 0; i < ranges; i++) {
+            long start = readRelativeId(stream, compact, id);
+            long length = compact ? WritableUtils.readVLong(stream) : stream
+                .readInt();
+            for (long commitId = start; commitId < start + length; commitId++) {
+              state.commit(commitId);
+            }
+          }
+        } else if (code == WriteAheadLog.TYPE_ATTEMPT) {
+          long attemptId = readRelativeId(stream, compact, id);
+          int attempts = compact ? WritableUtils.readVInt(stream) : stream
+              .readInt();
+          long firstAttemptTime = compact ? WritableUtils.readVLong(stream)
+              : stream.readLong();
+          state.attempted(attemptId, attempts, firstAttemptTime);
+        } else if (code == WriteAheadLog.TYPE_SYNC) {
+          stream.readFully(marker);
+          if (syncMarker != null && !Arrays.equals(marker, syncMarker)) {
+            throw new IOException("Invalid sync marker");
+          }
+          if (compact) {
+            // the IDs of the records that follow are relative to this one
+            id = WritableUtils.readVLong(stream);
+          }
+          if (position >= end) {
+            return id;
+          }
+        } else {
+          throw new IOException("Unknown record type " + code);
+        }
+      } catch (IOException e) {
+        throw new CorruptLogException(stream.getPos(), streamLength, location);
+      }
+    }
+  }
+
+  private static int readType(DataInput in, boolean compact)
+      throws IOException {
+    return compact ? in.readByte() : in.readInt();
+  }
+
+  private static long readId(DataInput in, boolean compact)
+      throws IOException {
+    return compact ? WritableUtils.readVLong(in) : in.readInt();
+  }
+
+  /**
+   * @return The time stored in a BEGIN record, or <tt>0</tt> if the format
+   *         has none.
+   */
+  private static long readBeginTime(DataInput in, boolean timestamped)
+      throws IOException {
+    return timestamped ? WritableUtils.readVLong(in) : 0;
+  }
+
+  /**
+   * Reads the ID of an event that has already been created, which compact
+   * records store as its distance from the last event ID created.
+   */
+  private static long readRelativeId(DataInput in, boolean compact,
+      long counter) throws IOException {
+    return compact ? counter - WritableUtils.readVLong(in) : in.readInt();
+  }
+
+  /**
+   * Positions a stream at the first sync record that starts at or after
+   * <tt>start</tt> and before <tt>end</tt>.
+   * 
+   * @return <tt>false</tt> if there is no such sync record.
+   */
+  public boolean syncTo(LogInput stream, byte[] syncMarker,
+      int version, long start, long end) throws IOException {
+    byte[] pattern;
+    if (version >= HeaderWritable.COMPACT_VERSION) {
+      pattern = new byte[1 + syncMarker.length];
+      pattern[0] = WriteAheadLog.TYPE_SYNC;
+    } else {
+      pattern = new byte[HeaderWritable.SYNC_SIZE];
+      pattern[3] = WriteAheadLog.TYPE_SYNC;
+    }
+    System.arraycopy(syncMarker, 0, pattern, pattern.length
+        - syncMarker.length, syncMarker.length);
+    // a circular buffer of the last pattern.length bytes read
+    byte[] window = new byte[pattern.length];
+    stream.seek(start);
+    long read = 0;
+    int b;
+    while (start + read + 1 - window.length < end
+        && (b = stream.read()) != -1) {
+      window[(int) (read++ % window.length)] = (byte) b;
+      if (read >= window.length && matches(window, read, pattern)) {
+        stream.seek(start + read - window.length);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(byte[] window, long read, byte[] pattern) {
+    for (int i = 0; i < pattern.length; i++) {
+      if (window[(int) ((read + i) % window.length)] != pattern[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the uncommitted events listed in a summary of the log, followed by
+   * any records that were written after the summary.
+   * 
+   * @return The last event ID created in the log.
+   * @throws CorruptLogException
+   *           If the summary does not match the contents of the log, in which
+   *           case the state may have been partially populated.
+   */
+  public long resolveFromSummary(LogInput stream, LogSummary summary,
+      LogState<EVENT> state, Class<EVENT> eventClass, long streamLength,
+      String location, int version)
+      throws IOException, CorruptLogException {
+    boolean compact = version >= HeaderWritable.COMPACT_VERSION;
+    boolean timestamped = version >= HeaderWritable.TIMESTAMP_VERSION;
+    if (summary.getWatermark() > streamLength) {
+      throw new CorruptLogException(summary.getWatermark(), streamLength,
+          location);
+    }
+    for (int i = 0; i < summary.size(); i++) {
+      long offset = summary.getOffset(i);
+      try {
+        stream.seek(offset);
+        if (readType(stream, compact) != WriteAheadLog.TYPE_BEGIN
+            || readId(stream, compact) != summary.getId(i)) {
+          throw new IOException("Summary does not match log");
+        }
+        long beginTime = readBeginTime(stream, timestamped);
+        state.begin(summary.getId(i), readEvent(stream, eventClass), offset,
+            beginTime);
+        if (summary.getAttempts(i) > 0) {
+          state.attempted(summary.getId(i), summary.getAttempts(i),
+              summary.getFirstAttemptTime(i));
+        }
+      } catch (IOException e) {
+        throw new CorruptLogException(offset, streamLength, location);
+      }
+    }
+    stream.seek(summary.getWatermark());
+    return resolveUncommittedEvents(stream, state, eventClass, streamLength,
+        location, summary.getCounter(), version);
+  }
+
+  /**
+   * Streams the events of the BEGIN records from the current position of the
+   * stream to its end to a processor, without holding them in memory. Only
+   * logs made of BEGIN records, such as dead letter logs, can be replayed.
+   * 
+   * @return <tt>true</tt> if every event was processed, or <tt>false</tt> if
+   *         the processor returned <tt>false</tt> for an event.
+   */
+  public boolean replayEvents(LogInput stream,
+      Class<EVENT> eventClass, EventProcessor<EVENT> processor,
+      long streamLength, String location, int version) throws Exception {
+    boolean compact = version >= HeaderWritable.COMPACT_VERSION;
+    while (true) {
+      int code;
+      try {
+        code = readType(stream, compact);
+      } catch (EOFException e) {
+        return true;
+      }
+      EVENT event;
+      try {
+        if (code == WriteAheadLog.TYPE_SYNC) {
+          stream.skipBytes(HeaderWritable.SYNC_HASH_SIZE);
+          if (compact) {
+            WritableUtils.readVLong(stream);
+          }
+          continue;
+        } else if (code != WriteAheadLog.TYPE_BEGIN) {
+          throw new IOException("Unexpected record type " + code);
         }
+        readId(stream, compact);
+        readBeginTime(stream,
+            version >= HeaderWritable.TIMESTAMP_VERSION);
+        event = readEvent(stream, eventClass);
       } catch (IOException e) {
         throw new CorruptLogException(stream.getPos(), streamLength, location);
       }
+      if (!processor.processEvent(event)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Reads the changes of a log for a {@link ChangeFeed} from the current
+   * position of the stream, until its end or until <tt>max</tt> changes have
+   * been read. A record cut off by the end of the stream is still being
+   * written, so it is left for the next read.
+   * 
+   * @param position
+   *          Where the stream is positioned and the last event ID created
+   *          before it, which are moved past each whole record that is read.
+   * @param commits
+   *          Whether to read COMMIT changes as well as BEGIN changes.
+   */
+  public void readChanges(LogInput stream, Class<EVENT> eventClass,
+      int version, ChangeFeed.Position position, String lane, String logId,
+      boolean commits, List<ChangeFeed.Change<EVENT>> changes, int max,
+      long streamLength, String location) throws IOException,
+      CorruptLogException {
+    boolean compact = version >= HeaderWritable.COMPACT_VERSION;
+    boolean timestamped = version >= HeaderWritable.TIMESTAMP_VERSION;
+    byte[] marker = new byte[HeaderWritable.SYNC_HASH_SIZE];
+    while (changes.size() < max) {
+      int read = changes.size();
+      long id = position.counter;
+      try {
+        int code = readType(stream, compact);
+        if (code == WriteAheadLog.TYPE_BEGIN) {
+          id = readId(stream, compact);
+          long beginTime = readBeginTime(stream, timestamped);
+          changes.add(new ChangeFeed.Change<EVENT>(ChangeFeed.Type.BEGIN,
+              lane, logId, id, beginTime, readEvent(stream, eventClass)));
+        } else if (code == WriteAheadLog.TYPE_COMMIT) {
+          long commitId = readRelativeId(stream, compact, id);
+          if (commits) {
+            changes.add(new ChangeFeed.Change<EVENT>(ChangeFeed.Type.COMMIT,
+                lane, logId, commitId, 0, null));
+          }
+        } else if (code == WriteAheadLog.TYPE_COMMIT_BLOCK) {
+          int ranges = compact ? WritableUtils.readVInt(stream) : stream
+              .readInt();
+          for (int i = 0; i < ranges; i++) {
+            long start = readRelativeId(stream, compact, id);
+            long length = compact ? WritableUtils.readVLong(stream) : stream
+                .readInt();
+            for (long commitId = start; commits && commitId < start + length;
+                commitId++) {
+              changes.add(new ChangeFeed.Change<EVENT>(ChangeFeed.Type.COMMIT,
+                  lane, logId, commitId, 0, null));
+            }
+          }
+        } else if (code == WriteAheadLog.TYPE_ATTEMPT) {
+          readRelativeId(stream, compact, id);
+          if (compact) {
+            WritableUtils.readVInt(stream);
+            WritableUtils.readVLong(stream);
+          } else {
+            stream.readInt();
+            stream.readLong();
+          }
+        } else if (code == WriteAheadLog.TYPE_SYNC) {
+          stream.readFully(marker);
+          if (compact) {
+            id = WritableUtils.readVLong(stream);
+          }
+        } else {
+          throw new CorruptLogException(position.offset, streamLength,
+              location);
+        }
+      } catch (EOFException e) {
+        // the end of the log, or of what has been flushed of a record
+        changes.subList(read, changes.size()).clear();
+        return;
+      } catch (IOException e) {
+        throw new CorruptLogException(position.offset, streamLength, location);
+      }
+      position.offset = stream.getPos();
+      position.counter = id;
+    }
+  }
+
+  private EVENT readEvent(LogInput stream, Class<EVENT> eventClass)
+      throws IOException {
+    EVENT event;
+    try {
+      event = eventClass.newInstance();
+    } catch (InstantiationException e) {
+      throw new IOException(e);
+    } catch (IllegalAccessException e) {
+      throw new IOException(e);
     }
+    ((Writable) event).readFields(stream);
+    return event;
   }
 }
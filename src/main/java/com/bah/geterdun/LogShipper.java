@@ -0,0 +1,251 @@
+package com.bah.geterdun;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replicates the logs of a lane from a local directory, where they are
+ * written, to a remote directory, usually on HDFS. Logs are renamed as they
+ * are rotated, so each one is stored remotely as <tt>segment.&lt;sync
+ * marker&gt;</tt>, which does not change. Logs are only ever appended to, so
+ * whenever a log has grown only the bytes past the end of its segment are
+ * appended to the segment, and a segment is deleted once its local log has
+ * been fully committed and deleted. Logs written before sync markers existed
+ * have no segment name, and are not replicated.
+ * <p>
+ * On restart, segments that are missing or shorter locally, for example
+ * because the node was replaced, are copied back into the local directory
+ * before the logs are opened.
+ */
+class LogShipper {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LogShipper.class);
+  static final String SEGMENT_PREFIX = "segment.";
+  private static final String RESTORED_PREFIX = "part.restored.";
+  private static final String CURRENT = "part.current";
+  private static final PathFilter LOGS = new PathFilter() {
+    public boolean accept(Path path) {
+      return path.getName().startsWith("part.");
+    }
+  };
+  private static final PathFilter SEGMENTS = new PathFilter() {
+    public boolean accept(Path path) {
+      return path.getName().startsWith(SEGMENT_PREFIX);
+    }
+  };
+
+  private final IoContext io;
+  private final Path local;
+  private final Path remote;
+  private final boolean shipCurrent;
+  /** The local logs without a sync marker that have been warned about. */
+  private final Set<String> unversioned = new HashSet<String>();
+
+  /**
+   * @param shipCurrent
+   *          Whether the log that is still being written is replicated too, or
+   *          only logs that have been rotated out.
+   */
+  LogShipper(IoContext io, Path local, Path remote, boolean shipCurrent) {
+    this.io = io;
+    this.local = local;
+    this.remote = remote;
+    this.shipCurrent = shipCurrent;
+  }
+
+  public Path getRemote() {
+    return remote;
+  }
+
+  /**
+   * Lists the local logs to replicate by segment name. The caller must make
+   * sure the logs are not being rotated.
+   */
+  public synchronized Map<String, FileStatus> listLocal() throws IOException {
+    LogStorage localStorage = io.getStorage(local);
+    Map<String, FileStatus> logs = new HashMap<String, FileStatus>();
+    if (!localStorage.exists(local)) {
+      return logs;
+    }
+    Set<String> stillUnversioned = new HashSet<String>();
+    for (FileStatus status : localStorage.listStatus(local, LOGS)) {
+      String name = status.getPath().getName();
+      if (!shipCurrent && name.equals(CURRENT)) {
+        continue;
+      }
+      HeaderWritable header = readHeader(localStorage, status.getPath());
+      if (header == null) {
+        continue;
+      }
+      if (header.getSyncMarker() == null) {
+        stillUnversioned.add(name);
+        if (!unversioned.contains(name)) {
+          LOG.warn(status.getPath() + " was written by a release without sync"
+              + " markers and will not be replicated to " + remote + ".");
+        }
+        continue;
+      }
+      logs.put(segmentName(header.getSyncMarker()), status);
+    }
+    unversioned.retainAll(stillUnversioned);
+    unversioned.addAll(stillUnversioned);
+    return logs;
+  }
+
+  /**
+   * Appends what the local logs have gained since their remote segments were
+   * last written, and deletes remote segments whose logs are gone.
+   *
+   * @param logs
+   *          The local logs, as returned by {@link #listLocal()}.
+   */
+  public synchronized void ship(Map<String, FileStatus> logs)
+      throws IOException {
+    LogStorage localStorage = io.getStorage(local);
+    LogStorage remoteStorage = io.getStorage(remote);
+    remoteStorage.mkdirs(remote);
+    Map<String, FileStatus> segments = listSegments(remoteStorage);
+    for (Entry<String, FileStatus> log : logs.entrySet()) {
+      FileStatus segment = segments.get(log.getKey());
+      if (segment != null && segment.getLen() >= log.getValue().getLen()) {
+        continue;
+      }
+      try {
+        copy(localStorage, log.getValue().getPath(), log.getValue().getLen(),
+            remoteStorage, new Path(remote, log.getKey()), segment == null ? 0
+                : segment.getLen());
+      } catch (FileNotFoundException e) {
+        // fully committed and deleted since it was listed
+        continue;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Replicated " + log.getValue().getPath() + " to "
+            + log.getKey());
+      }
+    }
+    for (String segment : segments.keySet()) {
+      if (!logs.containsKey(segment)) {
+        remoteStorage.delete(new Path(remote, segment));
+      }
+    }
+  }
+
+  /**
+   * Copies remote segments into the local directory where the local log is
+   * missing or shorter. Must be called before the local logs are opened.
+   */
+  public void reconcile() throws IOException {
+    LogStorage localStorage = io.getStorage(local);
+    LogStorage remoteStorage = io.getStorage(remote);
+    localStorage.mkdirs(local);
+    if (!remoteStorage.exists(remote)) {
+      return;
+    }
+    Map<String, FileStatus> logs = new HashMap<String, FileStatus>();
+    for (FileStatus status : localStorage.listStatus(local, LOGS)) {
+      HeaderWritable header = readHeader(localStorage, status.getPath());
+      if (header != null && header.getSyncMarker() != null) {
+        logs.put(segmentName(header.getSyncMarker()), status);
+      }
+    }
+    for (Entry<String, FileStatus> segment : listSegments(remoteStorage).entrySet()) {
+      FileStatus log = logs.get(segment.getKey());
+      if (log != null && log.getLen() >= segment.getValue().getLen()) {
+        continue;
+      }
+      Path target = log != null ? log.getPath() : new Path(local,
+          RESTORED_PREFIX
+              + segment.getKey().substring(SEGMENT_PREFIX.length()));
+      copy(remoteStorage, segment.getValue().getPath(), segment.getValue()
+          .getLen(), localStorage, target, log == null ? 0 : log.getLen());
+      // the summary may describe the shorter log
+      LogSummary.delete(localStorage, target);
+      LOG.warn("Restored " + target + " from " + segment.getValue().getPath());
+    }
+  }
+
+  private Map<String, FileStatus> listSegments(LogStorage remoteStorage)
+      throws IOException {
+    Map<String, FileStatus> segments = new HashMap<String, FileStatus>();
+    if (remoteStorage.exists(remote)) {
+      for (FileStatus status : remoteStorage.listStatus(remote, SEGMENTS)) {
+        segments.put(status.getPath().getName(), status);
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * @return The header of a log, or <tt>null</tt> if it is not readable yet.
+   */
+  private static HeaderWritable readHeader(LogStorage storage, Path log)
+      throws IOException {
+    HeaderWritable header = new HeaderWritable();
+    LogInput in;
+    try {
+      in = storage.open(log);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    try {
+      header.readFields(in);
+    } catch (IOException e) {
+      return null;
+    } finally {
+      in.close();
+    }
+    return header;
+  }
+
+  private static String segmentName(byte[] marker) {
+    StringBuilder name = new StringBuilder(SEGMENT_PREFIX);
+    for (byte b : marker) {
+      name.append(Character.forDigit((b >> 4) & 0xf, 16));
+      name.append(Character.forDigit(b & 0xf, 16));
+    }
+    return name.toString();
+  }
+
+  /**
+   * Copies the bytes of a file from <tt>start</tt> up to <tt>length</tt> onto
+   * the end of a copy that already holds the bytes before <tt>start</tt>. An
+   * interrupted append leaves a shorter copy, which the next pass finishes. A
+   * new copy is written to a temporary file and then moved into place, so that
+   * a partial copy is never taken for a complete one, and an existing copy is
+   * never replaced.
+   */
+  private static void copy(LogStorage fromStorage, Path from, long length,
+      LogStorage toStorage, Path to, long start) throws IOException {
+    Path tmp = new Path(to.getParent(), "." + to.getName() + ".tmp");
+    LogInput in = fromStorage.open(from);
+    try {
+      in.seek(start);
+      LogOutput out = start == 0 ? toStorage.create(tmp, true) : toStorage
+          .append(to);
+      try {
+        IOUtils.copyBytes(in, out, length - start, false);
+        out.hsync();
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    if (start == 0 && !toStorage.rename(tmp, to)) {
+      throw new IOException("Unable to move " + tmp + " to " + to);
+    }
+  }
+
+}
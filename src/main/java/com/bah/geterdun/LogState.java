@@ -0,0 +1,227 @@
+package com.bah.geterdun;
+
+import java.util.Arrays;
+
+import net.openhft.koloboke.collect.map.LongLongCursor;
+import net.openhft.koloboke.collect.map.LongObjCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+
+/**
+ * The in-memory state of the uncommitted events in a write ahead log, as
+ * rebuilt by a {@link LogResolver} and maintained by a {@link WriteAheadLog}.
+ * Not thread safe.
+ * <p>
+ * A partial state holds the records of one byte range of a log. Since the
+ * events that its commits and attempts refer to may have begun in an earlier
+ * range, it remembers those until it is {@link #merge(LogState) merged} into
+ * the state of the earlier ranges.
+ * <p>
+ * A state that does not retain events only tracks the IDs, offsets and
+ * attempts of the uncommitted events, for reading logs that are too large to
+ * hold in memory.
+ * <p>
+ * The time each uncommitted event was posted is tracked for logs whose BEGIN
+ * records hold one.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ */
+class LogState<EVENT> {
+
+  /**
+   * The failed processing attempts of an event.
+   */
+  static class Attempts {
+    private int count;
+    private final long firstAttemptTime;
+
+    Attempts(int count, long firstAttemptTime) {
+      this.count = count;
+      this.firstAttemptTime = firstAttemptTime;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public long getFirstAttemptTime() {
+      return firstAttemptTime;
+    }
+  }
+
+  private final HashLongObjMap<EVENT> events = HashLongObjMaps.newMutableMap();
+  private final HashLongLongMap offsets = HashLongLongMaps.newMutableMap();
+  /** The BEGIN times of the uncommitted events that have one. */
+  private final HashLongLongMap beginTimes = HashLongLongMaps.newMutableMap();
+  private final HashLongObjMap<Attempts> attempts = HashLongObjMaps
+      .newMutableMap();
+  private final boolean partial;
+  private final boolean retainEvents;
+  private long[] orphanCommits;
+  private int orphanCommitCount;
+  private HashLongObjMap<Attempts> orphanAttempts;
+
+  LogState() {
+    this(false);
+  }
+
+  LogState(boolean partial) {
+    this(partial, true);
+  }
+
+  LogState(boolean partial, boolean retainEvents) {
+    this.partial = partial;
+    this.retainEvents = retainEvents;
+    if (partial) {
+      orphanCommits = new long[16];
+      orphanAttempts = HashLongObjMaps.newMutableMap();
+    }
+  }
+
+  void begin(long id, EVENT event, long offset) {
+    begin(id, event, offset, 0);
+  }
+
+  /**
+   * @param beginTime
+   *          The time the event was posted, or <tt>0</tt> if it is not known.
+   */
+  void begin(long id, EVENT event, long offset, long beginTime) {
+    if (retainEvents) {
+      events.put(id, event);
+    }
+    offsets.put(id, offset);
+    if (beginTime != 0) {
+      beginTimes.put(id, beginTime);
+    }
+  }
+
+  void commit(long id) {
+    // every uncommitted event has an offset, whether or not it is retained
+    boolean uncommitted = offsets.containsKey(id);
+    events.remove(id);
+    if (!uncommitted && partial) {
+      if (orphanCommitCount == orphanCommits.length) {
+        orphanCommits = Arrays.copyOf(orphanCommits, orphanCommitCount * 2);
+      }
+      orphanCommits[orphanCommitCount++] = id;
+      orphanAttempts.remove(id);
+    }
+    offsets.remove(id);
+    beginTimes.remove(id);
+    attempts.remove(id);
+  }
+
+  /**
+   * Records the number of failed attempts for an event. Attempts for events
+   * that are not uncommitted are ignored.
+   */
+  void attempted(long id, int count, long firstAttemptTime) {
+    if (offsets.containsKey(id)) {
+      attempts.put(id, new Attempts(count, firstAttemptTime));
+    } else if (partial) {
+      orphanAttempts.put(id, new Attempts(count, firstAttemptTime));
+    }
+  }
+
+  /**
+   * Applies the partial state of the byte range that follows the ranges this
+   * state was built from.
+   */
+  void merge(LogState<EVENT> later) {
+    LongLongCursor cursor = later.offsets.cursor();
+    while (cursor.moveNext()) {
+      begin(cursor.key(), later.events.get(cursor.key()), cursor.value(),
+          later.getBeginTime(cursor.key()));
+      Attempts laterAttempts = later.attempts.get(cursor.key());
+      if (laterAttempts != null) {
+        attempts.put(cursor.key(), laterAttempts);
+      }
+    }
+    LongObjCursor<Attempts> orphans = later.orphanAttempts.cursor();
+    while (orphans.moveNext()) {
+      attempted(orphans.key(), orphans.value().count,
+          orphans.value().firstAttemptTime);
+    }
+    for (int i = 0; i < later.orphanCommitCount; i++) {
+      commit(later.orphanCommits[i]);
+    }
+  }
+
+  /**
+   * Counts a new failed attempt for an event.
+   *
+   * @return The attempts of the event, including the new one.
+   */
+  Attempts attempted(long id, long now) {
+    Attempts previous = attempts.get(id);
+    if (previous == null) {
+      previous = new Attempts(0, now);
+      attempts.put(id, previous);
+    }
+    previous.count++;
+    return previous;
+  }
+
+  void clear() {
+    events.clear();
+    offsets.clear();
+    beginTimes.clear();
+    attempts.clear();
+    if (partial) {
+      orphanCommitCount = 0;
+      orphanAttempts.clear();
+    }
+  }
+
+  HashLongObjMap<EVENT> getEvents() {
+    return events;
+  }
+
+  HashLongLongMap getOffsets() {
+    return offsets;
+  }
+
+  /**
+   * @return The time an uncommitted event was posted, or <tt>0</tt> if it is
+   *         not known.
+   */
+  long getBeginTime(long id) {
+    // the default value of the map is 0
+    return beginTimes.get(id);
+  }
+
+  /**
+   * @return The earliest time an uncommitted event was posted, or <tt>0</tt>
+   *         if no uncommitted event has a known time.
+   */
+  long getOldestBeginTime() {
+    long oldest = 0;
+    LongLongCursor cursor = beginTimes.cursor();
+    while (cursor.moveNext()) {
+      if (oldest == 0 || cursor.value() < oldest) {
+        oldest = cursor.value();
+      }
+    }
+    return oldest;
+  }
+
+  Attempts getAttempts(long id) {
+    return attempts.get(id);
+  }
+
+  /**
+   * @return The number of uncommitted events.
+   */
+  int size() {
+    return offsets.size();
+  }
+
+  boolean isEmpty() {
+    return offsets.isEmpty();
+  }
+
+}
@@ -0,0 +1,81 @@
+package com.bah.geterdun;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/**
+ * The few file operations the logs of a {@link GeterDun} are written and read
+ * with. Local logs are stored with {@link LocalLogStorage}, which needs
+ * nothing from Hadoop but its path and file status types, and every other
+ * location with {@link HadoopLogStorage}. {@link IoContext#getStorage(Path)}
+ * chooses between them.
+ */
+interface LogStorage {
+
+  boolean exists(Path path) throws IOException;
+
+  /**
+   * @throws FileNotFoundException
+   *           If the file does not exist.
+   */
+  long getLength(Path path) throws IOException;
+
+  /**
+   * @return The files in a directory that the filter accepts.
+   * @throws FileNotFoundException
+   *           If the directory does not exist.
+   */
+  FileStatus[] listStatus(Path directory, PathFilter filter)
+      throws IOException;
+
+  /**
+   * Creates a file, and any missing parent directories.
+   *
+   * @param overwrite
+   *          Whether an existing file is replaced, rather than an error.
+   */
+  LogOutput create(Path path, boolean overwrite) throws IOException;
+
+  /**
+   * Opens an existing file for writing at its end. Positions of the returned
+   * stream may be relative to where it was opened rather than to the start
+   * of the file.
+   */
+  LogOutput append(Path path) throws IOException;
+
+  /**
+   * @throws FileNotFoundException
+   *           If the file does not exist.
+   */
+  LogInput open(Path path) throws IOException;
+
+  /**
+   * @return <tt>false</tt> if the file could not be renamed.
+   */
+  boolean rename(Path from, Path to) throws IOException;
+
+  /**
+   * Renames a file over another file, which is replaced in one step, so that
+   * a reader finds either the old file or the new one and a crash never
+   * leaves neither.
+   *
+   * @throws IOException
+   *           If the file could not be renamed, in which case the other file
+   *           is left as it was.
+   */
+  void replace(Path from, Path to) throws IOException;
+
+  /**
+   * Deletes a file or an empty directory.
+   *
+   * @return <tt>false</tt> if there was nothing to delete.
+   */
+  boolean delete(Path path) throws IOException;
+
+  boolean mkdirs(Path directory) throws IOException;
+
+}
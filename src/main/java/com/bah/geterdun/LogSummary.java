@@ -0,0 +1,181 @@
+package com.bah.geterdun;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.openhft.koloboke.collect.map.LongLongCursor;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+
+import com.bah.geterdun.LogState.Attempts;
+
+/**
+ * A sidecar file that summarizes the state of a write ahead log when it was
+ * last closed, so that reopening it does not require reading every record.
+ * The summary records the length of the log when it was written (the
+ * watermark), the last event ID that was created and the offset of the BEGIN
+ * record and the failed attempts of every event that was still uncommitted. Every other ID up to the
+ * counter is committed. Records past the watermark were written after the
+ * summary and are resolved normally.
+ * <p>
+ * Version 2 holds 64 bit IDs. Version 1 summaries, which hold 32 bit IDs, can
+ * still be read.
+ */
+class LogSummary implements Writable {
+
+  static final String PREFIX = "summary.";
+  private final int version = 2;
+  private long watermark;
+  private long counter;
+  private long[] ids = new long[0];
+  private long[] offsets = new long[0];
+  private int[] attempts = new int[0];
+  private long[] firstAttemptTimes = new long[0];
+
+  LogSummary() {
+  }
+
+  LogSummary(long watermark, long counter, LogState<?> state) {
+    this.watermark = watermark;
+    this.counter = counter;
+    int size = state.getOffsets().size();
+    ids = new long[size];
+    offsets = new long[size];
+    attempts = new int[size];
+    firstAttemptTimes = new long[size];
+    LongLongCursor cursor = state.getOffsets().cursor();
+    for (int i = 0; cursor.moveNext(); i++) {
+      ids[i] = cursor.key();
+      offsets[i] = cursor.value();
+      Attempts eventAttempts = state.getAttempts(ids[i]);
+      if (eventAttempts != null) {
+        attempts[i] = eventAttempts.getCount();
+        firstAttemptTimes[i] = eventAttempts.getFirstAttemptTime();
+      }
+    }
+  }
+
+  /**
+   * @return The location of the summary for the given log.
+   */
+  static Path summaryPath(Path log) {
+    return new Path(log.getParent(), PREFIX + log.getName());
+  }
+
+  /**
+   * Reads the summary of a log.
+   *
+   * @return The summary, or <tt>null</tt> if there is no usable summary.
+   */
+  static LogSummary load(LogStorage storage, Path log) {
+    Path path = summaryPath(log);
+    try {
+      if (!storage.exists(path)) {
+        return null;
+      }
+      LogInput in = storage.open(path);
+      try {
+        LogSummary summary = new LogSummary();
+        summary.readFields(in);
+        return summary;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // an unreadable summary just means the whole log has to be resolved
+      WriteAheadLogManager.LOG.warn("Ignoring unreadable log summary " + path,
+          e);
+      return null;
+    }
+  }
+
+  /**
+   * Writes the summary to a temporary file and then moves it over any old
+   * summary, so that a crash never leaves a partial summary behind.
+   */
+  void store(LogStorage storage, Path log) throws IOException {
+    Path path = summaryPath(log);
+    Path tmp = new Path(path.getParent(), "." + path.getName() + ".tmp");
+    LogOutput out = storage.create(tmp, true);
+    try {
+      write(out);
+      out.hsync();
+    } finally {
+      out.close();
+    }
+    storage.replace(tmp, path);
+  }
+
+  static void delete(LogStorage storage, Path log) throws IOException {
+    Path path = summaryPath(log);
+    if (storage.exists(path)) {
+      storage.delete(path);
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version < 1 || version > this.version) {
+      throw new IOException("Version mismatch, expected at most "
+          + this.version + " got " + version);
+    }
+    boolean wide = version >= 2;
+    watermark = in.readLong();
+    counter = wide ? in.readLong() : in.readInt();
+    int size = in.readInt();
+    ids = new long[size];
+    offsets = new long[size];
+    attempts = new int[size];
+    firstAttemptTimes = new long[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = wide ? in.readLong() : in.readInt();
+      offsets[i] = in.readLong();
+      attempts[i] = in.readInt();
+      firstAttemptTimes[i] = in.readLong();
+    }
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(version);
+    out.writeLong(watermark);
+    out.writeLong(counter);
+    out.writeInt(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      out.writeLong(ids[i]);
+      out.writeLong(offsets[i]);
+      out.writeInt(attempts[i]);
+      out.writeLong(firstAttemptTimes[i]);
+    }
+  }
+
+  public long getWatermark() {
+    return watermark;
+  }
+
+  public long getCounter() {
+    return counter;
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  public long getId(int i) {
+    return ids[i];
+  }
+
+  public long getOffset(int i) {
+    return offsets[i];
+  }
+
+  public int getAttempts(int i) {
+    return attempts[i];
+  }
+
+  public long getFirstAttemptTime(int i) {
+    return firstAttemptTimes[i];
+  }
+
+}
@@ -0,0 +1,348 @@
+package com.bah.geterdun;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.openhft.koloboke.collect.map.LongLongCursor;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bah.geterdun.LogResolver.CorruptLogException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Works on the logs of a {@link GeterDun} directory from outside the service,
+ * for example to work through the backlog left by an outage. It must only be
+ * used on a directory that no running instance is using.
+ * <p>
+ * Inspecting a directory reads every log in parallel and reports its length,
+ * uncommitted events, range of uncommitted IDs, the time the oldest
+ * uncommitted event was posted if the log is timestamped and any corruption,
+ * without
+ * holding the events in memory. Replaying a directory pushes the uncommitted
+ * events of each log through an {@link EventProcessor} on many threads,
+ * commits the ones that are processed and deletes the logs that become fully
+ * committed.
+ * <p>
+ * From the command line:
+ *
+ * <pre>
+ * LogTool inspect &lt;directory&gt; [threads]
+ * LogTool replay &lt;directory&gt; &lt;event class&gt; &lt;processor class&gt; [threads]
+ * </pre>
+ *
+ * The processor class needs a public constructor without arguments.
+ */
+public class LogTool implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LogTool.class);
+  private static final PathFilter LOGS = new PathFilter() {
+    public boolean accept(Path path) {
+      return path.getName().startsWith("part.");
+    }
+  };
+
+  /**
+   * What an inspection found in one log.
+   */
+  public static class LogReport {
+    private final Path path;
+    private final long length;
+    private final int version;
+    private final int uncommitted;
+    private final long firstUncommittedId;
+    private final long lastUncommittedId;
+    private final long oldestBeginTime;
+    private final CorruptLogException corruption;
+
+    LogReport(Path path, long length, int version, int uncommitted,
+        long firstUncommittedId, long lastUncommittedId, long oldestBeginTime,
+        CorruptLogException corruption) {
+      this.path = path;
+      this.length = length;
+      this.version = version;
+      this.uncommitted = uncommitted;
+      this.firstUncommittedId = firstUncommittedId;
+      this.lastUncommittedId = lastUncommittedId;
+      this.oldestBeginTime = oldestBeginTime;
+      this.corruption = corruption;
+    }
+
+    public Path getPath() {
+      return path;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return The version of the header of the log, or -1 if it could not be
+     *         read.
+     */
+    public int getVersion() {
+      return version;
+    }
+
+    /**
+     * @return The number of uncommitted events, up to the corruption if there
+     *         is one.
+     */
+    public int getUncommitted() {
+      return uncommitted;
+    }
+
+    /**
+     * @return The lowest uncommitted ID, or 0 if there are none.
+     */
+    public long getFirstUncommittedId() {
+      return firstUncommittedId;
+    }
+
+    /**
+     * @return The highest uncommitted ID, or 0 if there are none.
+     */
+    public long getLastUncommittedId() {
+      return lastUncommittedId;
+    }
+
+    /**
+     * @return The time the oldest uncommitted event was posted, or 0 if there
+     *         are none or the log is not timestamped.
+     */
+    public long getOldestBeginTime() {
+      return oldestBeginTime;
+    }
+
+    /**
+     * @return Where the log is corrupt, or <tt>null</tt> if it could be read
+     *         to the end.
+     */
+    public CorruptLogException getCorruption() {
+      return corruption;
+    }
+
+    @Override
+    public String toString() {
+      return path + " bytes=" + length + " version=" + version
+          + " uncommitted=" + uncommitted + " ids=" + firstUncommittedId + "-"
+          + lastUncommittedId
+          + (oldestBeginTime == 0 ? "" : " oldest=" + new Date(oldestBeginTime))
+          + (corruption == null ? "" : " corrupt at " + corruption.getPosition());
+    }
+  }
+
+  private final IoContext io = new IoContext();
+  private final ExecutorService executor;
+
+  /**
+   * @param threads
+   *          The number of logs inspected, or events replayed, at a time.
+   */
+  public LogTool(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("The tool needs at least one thread.");
+    }
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setDaemon(true).setNameFormat("GeterDun log tool %d").build());
+  }
+
+  /**
+   * Reads every log in a directory.
+   *
+   * @return A report for each log, in the order of their names.
+   */
+  public List<LogReport> inspect(String directory) throws IOException {
+    List<Future<LogReport>> pending = new ArrayList<Future<LogReport>>();
+    for (final FileStatus status : listLogs(directory)) {
+      pending.add(executor.submit(new Callable<LogReport>() {
+        public LogReport call() throws IOException {
+          return inspect(status);
+        }
+      }));
+    }
+    List<LogReport> reports = new ArrayList<LogReport>();
+    for (Future<LogReport> report : pending) {
+      reports.add(get(report));
+    }
+    return reports;
+  }
+
+  private LogReport inspect(FileStatus status) throws IOException {
+    Path path = status.getPath();
+    LogInput in = io.getStorage(path).open(path);
+    try {
+      HeaderWritable header = new HeaderWritable();
+      Class<Object> eventClass;
+      try {
+        header.readFields(in);
+        eventClass = eventClass(header.getClassName());
+      } catch (IOException e) {
+        LOG.warn("Unable to read the header of " + path, e);
+        return new LogReport(path, status.getLen(), -1, 0, 0, 0, 0,
+            new CorruptLogException(0, status.getLen(), path.toString()));
+      }
+      LogState<Object> state = new LogState<Object>(false, false);
+      CorruptLogException corruption = null;
+      try {
+        new LogResolver<Object>().resolveUncommittedEvents(in, state,
+            eventClass, status.getLen(), path.toString(), 0,
+            header.getReadVersion());
+      } catch (CorruptLogException e) {
+        corruption = e;
+      }
+      long first = 0, last = 0;
+      LongLongCursor cursor = state.getOffsets().cursor();
+      while (cursor.moveNext()) {
+        first = first == 0 ? cursor.key() : Math.min(first, cursor.key());
+        last = Math.max(last, cursor.key());
+      }
+      return new LogReport(path, status.getLen(), header.getReadVersion(),
+          state.size(), first, last, state.getOldestBeginTime(), corruption);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Processes the uncommitted events of every log in a directory, one log at
+   * a time. Events that are processed are committed, and logs that are then
+   * fully committed are deleted. Events that the processor rejects or throws
+   * on are left uncommitted, and corrupt logs are skipped.
+   *
+   * @return The number of events committed.
+   */
+  public <EVENT> long replay(String directory, Class<EVENT> eventClass,
+      final EventProcessor<EVENT> processor) throws IOException {
+    // commits are batched, since losing one only means processing an event
+    // again
+    GeterDunOptions options = new GeterDunOptions().setCommitBatchSize(1024)
+        .setCommitBatchDelay(1000);
+    long committed = 0;
+    for (FileStatus status : listLogs(directory)) {
+      final Path path = status.getPath();
+      final boolean[] corrupt = new boolean[1];
+      CorruptionHandler corruptionHandler = new CorruptionHandler() {
+        public void handleCorruption(CorruptLogException e) {
+          LOG.warn("Skipping corrupt log " + path + " at " + e.getPosition());
+          corrupt[0] = true;
+        }
+      };
+      final WriteAheadLog<EVENT> log = new WriteAheadLog.Factory<EVENT>(
+          eventClass, corruptionHandler, options, null, io).getLog(path
+          .toUri().toString());
+      if (corrupt[0]) {
+        continue;
+      }
+      UncommittedEvents<EVENT> events = log.getUncommittedEvents();
+      List<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < events.size(); i++) {
+        final long id = events.getId(i);
+        final EVENT event = events.getEvent(i);
+        pending.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() throws Exception {
+            if (!processor.processEvent(event)) {
+              return false;
+            }
+            log.commit(id);
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : pending) {
+        try {
+          if (Uninterruptibles.getUninterruptibly(result)) {
+            committed++;
+          }
+        } catch (ExecutionException e) {
+          LOG.warn("Unable to replay an event of " + path, e.getCause());
+        }
+      }
+      log.close();
+      if (log.isFullyCommitted()) {
+        io.getStorage(path).delete(path);
+      }
+      LOG.info("Replayed " + path + ", " + pending.size() + " events.");
+    }
+    return committed;
+  }
+
+  private FileStatus[] listLogs(String directory) throws IOException {
+    Path path = new Path(directory);
+    path = io.qualify(path);
+    FileStatus[] logs = io.getStorage(path).listStatus(path, LOGS);
+    Arrays.sort(logs);
+    return logs;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Class<Object> eventClass(String name) throws IOException {
+    try {
+      return (Class<Object>) Class.forName(name, true, Thread.currentThread()
+          .getContextClassLoader());
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unknown event class " + name, e);
+    }
+  }
+
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  public void close() throws IOException {
+    executor.shutdown();
+    io.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws Exception {
+    boolean inspect = args.length >= 2 && args[0].equals("inspect");
+    boolean replay = args.length >= 4 && args[0].equals("replay");
+    if (!inspect && !replay) {
+      System.err.println("Usage: LogTool inspect <directory> [threads]");
+      System.err.println("       LogTool replay <directory> <event class> "
+          + "<processor class> [threads]");
+      System.exit(2);
+    }
+    int threadsArg = inspect ? 2 : 4;
+    int threads = args.length > threadsArg ? Integer.parseInt(args[threadsArg])
+        : Runtime.getRuntime().availableProcessors();
+    LogTool tool = new LogTool(threads);
+    try {
+      if (inspect) {
+        for (LogReport report : tool.inspect(args[1])) {
+          System.out.println(report);
+        }
+      } else {
+        EventProcessor<Object> processor = (EventProcessor<Object>) Class
+            .forName(args[3]).newInstance();
+        long committed = tool.replay(args[1], eventClass(args[2]), processor);
+        System.out.println("Committed " + committed + " events.");
+      }
+    } finally {
+      tool.close();
+    }
+  }
+
+}
@@ -0,0 +1,254 @@
+package com.bah.geterdun;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A preallocated ring of slots that BEGIN records are staged in before a
+ * single writer thread appends them to a {@link WriteAheadLog}, in the style
+ * of the LMAX Disruptor.
+ * <p>
+ * A producer claims the next sequence number, which also fixes the ID of its
+ * event, encodes the record into the slot for that sequence without taking
+ * any lock, and publishes the slot. The writer appends every contiguous
+ * published slot under one acquisition of the log's write lock, syncs once for
+ * the whole batch, and then wakes the producers whose records are durable.
+ * <p>
+ * Once a batch has failed, the log may be missing records, so the writer only
+ * fails the slots that are published after it, and producers are told that
+ * the log needs rotating, which replaces the log and its ring.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ */
+class RecordRing<EVENT> {
+
+  private static class Slot<EVENT> {
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    EVENT event;
+    long id;
+    long beginTime;
+  }
+
+  private final WriteAheadLog<EVENT> log;
+  private final Slot<EVENT>[] slots;
+  private final int mask;
+  /** The IDs of the events staged in this ring start after this one. */
+  private final long idBase;
+  /** The next sequence number to claim. */
+  private final AtomicLong claimed = new AtomicLong();
+  /** The sequence number each slot was last published with. */
+  private final AtomicLongArray published;
+  /** The last sequence number the writer has taken out of the ring. */
+  private volatile long consumed = -1;
+  /** The last sequence number that has been written durably. */
+  private long durable = -1;
+  private IOException failure;
+  /** Whether a batch has failed, which the failure records. */
+  private volatile boolean failed;
+  private final Object durability = new Object();
+  private volatile boolean closing;
+  private final Thread writer;
+
+  /**
+   * @param capacity
+   *          The number of slots, rounded up to a power of two.
+   * @param idBase
+   *          The last event ID in the log before the ring was started.
+   */
+  @SuppressWarnings("unchecked")
+  RecordRing(WriteAheadLog<EVENT> log, int capacity, long idBase) {
+    this.log = log;
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    slots = new Slot[size];
+    published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot<EVENT>();
+      published.set(i, -1);
+    }
+    mask = size - 1;
+    this.idBase = idBase;
+    writer = new Thread(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, "GeterDun log writer (" + log.getPath() + ")");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Stages a BEGIN record and waits until the writer has written it with the
+   * BEGIN durability.
+   *
+   * @return The ID of the event.
+   */
+  public long begin(EVENT event) throws IOException,
+      WriteAheadLog.NeedsRotationException {
+    long sequence = claimed.getAndIncrement();
+    Slot<EVENT> slot = slots[(int) sequence & mask];
+    while (sequence - consumed > slots.length) {
+      // the ring is full
+      LockSupport.parkNanos(this, 1000);
+    }
+    long id = idBase + sequence + 1;
+    if (closing || failed || id > log.getMaxId()) {
+      // publish an empty slot so that the writer can move past it
+      slot.event = null;
+      publish(sequence);
+      if (closing) {
+        throw new IOException("Write ahead log " + log.getPath()
+            + " is not open.");
+      }
+      throw new WriteAheadLog.NeedsRotationException();
+    }
+    try {
+      slot.id = id;
+      slot.event = event;
+      slot.beginTime = log.beginTime();
+      if (slot.buffer.getData().length > WriteAheadLog.MAX_RETAINED_BUFFER) {
+        // do not hold on to the space of an unusually large event
+        slot.buffer = new DataOutputBuffer();
+      } else {
+        slot.buffer.reset();
+      }
+      log.writeBeginPrefix(slot.buffer, id, slot.beginTime);
+      ((Writable) event).write(slot.buffer);
+    } catch (IOException e) {
+      slot.event = null;
+      publish(sequence);
+      throw e;
+    }
+    publish(sequence);
+    awaitDurable(sequence);
+    // the slot may already hold another event by now
+    return id;
+  }
+
+  private void publish(long sequence) {
+    published.lazySet((int) sequence & mask, sequence);
+    LockSupport.unpark(writer);
+  }
+
+  private void awaitDurable(long sequence) throws IOException {
+    boolean interrupted = false;
+    try {
+      synchronized (durability) {
+        while (durable < sequence && failure == null) {
+          try {
+            durability.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (durable < sequence) {
+          throw new IOException("Unable to write to " + log.getPath(),
+              failure);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void drain() {
+    long next = 0;
+    while (true) {
+      if (published.get((int) next & mask) != next) {
+        if (closing && claimed.get() == next) {
+          return;
+        }
+        LockSupport.park(this);
+        continue;
+      }
+      long last = next;
+      while (last - next < mask
+          && published.get((int) (last + 1) & mask) == last + 1) {
+        last++;
+      }
+      IOException error = null;
+      if (!failed) {
+        try {
+          log.appendStaged(this, next, last);
+        } catch (IOException e) {
+          error = e;
+        } catch (Throwable t) {
+          // the producers would otherwise wait for the writer forever
+          error = new IOException("Unable to write to " + log.getPath(), t);
+        }
+      }
+      for (long sequence = next; sequence <= last; sequence++) {
+        slots[(int) sequence & mask].event = null;
+      }
+      consumed = last;
+      synchronized (durability) {
+        // once a batch has failed, later batches are not reported as durable
+        // either, since the log may be missing records
+        if (error != null && failure == null) {
+          failure = error;
+          failed = true;
+        } else if (failure == null) {
+          durable = last;
+        }
+        durability.notifyAll();
+      }
+      next = last + 1;
+    }
+  }
+
+  /**
+   * @return <tt>true</tt> if a batch could not be written, so the log has to
+   *         be rotated before more events can be staged.
+   */
+  boolean hasFailed() {
+    return failed;
+  }
+
+  /**
+   * @return The event staged with a sequence number, or <tt>null</tt> if the
+   *         slot was published empty.
+   */
+  EVENT getEvent(long sequence) {
+    return slots[(int) sequence & mask].event;
+  }
+
+  long getId(long sequence) {
+    return slots[(int) sequence & mask].id;
+  }
+
+  long getBeginTime(long sequence) {
+    return slots[(int) sequence & mask].beginTime;
+  }
+
+  DataOutputBuffer getRecord(long sequence) {
+    return slots[(int) sequence & mask].buffer;
+  }
+
+  /**
+   * Stops staging new records and waits until the writer has written every
+   * record that was already staged.
+   */
+  public void close() {
+    closing = true;
+    LockSupport.unpark(writer);
+    boolean interrupted = false;
+    while (writer.isAlive()) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
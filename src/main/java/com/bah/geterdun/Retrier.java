@@ -1,17 +1,29 @@
 package com.bah.geterdun;
 
+import static com.google.common.util.concurrent.Futures.successfulAsList;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static java.lang.Thread.yield;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.bah.geterdun.WriteAheadLog.NeedsRotationException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
 /**
  * Retries events and removes the file if
  */
@@ -20,13 +32,54 @@ class Retrier<EVENT> {
   private static final Logger LOG = LoggerFactory.getLogger(Retrier.class);
   private final TryHandler<EVENT> tryHandler;
   private FailureHandler<EVENT> failureHandler;
+  private final WeightedFairScheduler scheduler;
+  private final ListeningExecutorService recoveryExecutor;
+  private final Coalescer<EVENT> coalescer;
+  private final boolean oldestFirst;
 
   Retrier(TryHandler<EVENT> tryHandler, FailureHandler<EVENT> failureHandler) {
+    this(tryHandler, failureHandler, null, null, null, false);
+  }
+
+  /**
+   * @param scheduler
+   *          Shares retry attempts between the lanes of the managers this
+   *          retrier cleans up, or <tt>null</tt> if there is only one lane.
+   * @param recoveryExecutor
+   *          Retries the events of a log in parallel when they are processed
+   *          by an {@link EventProcessor}, or <tt>null</tt> to retry them on
+   *          the cleanup thread.
+   * @param coalescer
+   *          Collapses the events of a log that share a key before they are
+   *          retried, or <tt>null</tt>.
+   * @param oldestFirst
+   *          Whether old logs are retried in age order and their events in
+   *          BEGIN order, rather than a random log in any order.
+   */
+  Retrier(TryHandler<EVENT> tryHandler, FailureHandler<EVENT> failureHandler,
+      WeightedFairScheduler scheduler,
+      ListeningExecutorService recoveryExecutor, Coalescer<EVENT> coalescer,
+      boolean oldestFirst) {
     this.tryHandler = tryHandler;
     this.failureHandler = failureHandler;
+    this.scheduler = scheduler;
+    this.recoveryExecutor = recoveryExecutor;
+    this.coalescer = coalescer;
+    this.oldestFirst = oldestFirst;
   }
 
-  public void cleanup(WriteAheadLogManager<EVENT> manager) {
+  /**
+   * Retries the uncommitted events of one old log of a manager, and deletes
+   * the log if they have all been committed. Once the manager starts closing
+   * no more attempts are started, and the log is closed with the rest of its
+   * events left for the next start.
+   * 
+   * @return <tt>false</tt> if the manager had no old logs.
+   */
+  public boolean cleanup(WriteAheadLogManager<EVENT> manager) {
+    if (manager.getDispatcher() != null) {
+      return cleanupInKeyOrder(manager);
+    }
     manager.pauseRotation();
     WriteAheadLog<EVENT> logToCleanup;
     try {
@@ -34,47 +87,70 @@ class Retrier<EVENT> {
         LOG.debug(getClass().getSimpleName() + " paused rotation.");
       }
       try {
-        logToCleanup = manager.getRandomOldLog();
+        logToCleanup = oldestFirst ? manager.getNextOldLog() : manager
+            .getRandomOldLog();
       } catch (IOException e1) {
         LOG.error("Unable to get log to clean up");
-        return;
+        return false;
       }
       if (LOG.isDebugEnabled() && logToCleanup != null) {
         LOG.debug("Got log to cleanup " + logToCleanup.getPath());
       }
       if (logToCleanup != null) {
-        Iterable<Entry<Integer, EVENT>> entries = logToCleanup
-            .getUncommittedEvents();
+        UncommittedEvents<EVENT> entries = coalesce(logToCleanup,
+            logToCleanup.getUncommittedEvents());
+        if (oldestFirst) {
+          entries.sortById();
+        }
         if (LOG.isDebugEnabled()) {
-          if (entries instanceof Collection) {
-            LOG.debug(((Collection<?>) entries).size() + " entries to cleanup.");
-          } else {
-            LOG.debug("Cannot find the size of non-collection iterable representing cleanup entries");
-          }
+          LOG.debug(entries.size() + " entries to cleanup.");
         }
-        for (Entry<Integer, EVENT> entry : entries) {
-          try {
-            tryHandler.tryProcess(entry.getValue(), entry.getKey(),
-                logToCleanup);
-          } catch (FinalFailureException e) {
-            try {
-              logToCleanup.commit(entry.getKey());
-            } catch (IOException e1) {
-              LOG.error(
-                  "Unable to commit final failed processing of log event id:"
-                      + entry.getKey() + " event:" + entry.getValue(), e1);
+        List<ListenableFuture<Boolean>> pending = new ArrayList<ListenableFuture<Boolean>>();
+        for (int i = 0; i < entries.size() && !manager.isClosing(); i++) {
+          final long id = entries.getId(i);
+          final EVENT event = entries.getEvent(i);
+          if (tryHandler.isAsync()) {
+            if (scheduler != null) {
+              scheduler.acquire(manager.getLane());
             }
-            failureHandler.handleFailure(entry.getValue());
+            pending.add(retryAsync(id, event, logToCleanup));
+            continue;
+          }
+          if (recoveryExecutor != null) {
+            final WriteAheadLog<EVENT> log = logToCleanup;
+            final Lane lane = manager.getLane();
+            pending.add(recoveryExecutor.submit(new Callable<Boolean>() {
+              public Boolean call() {
+                retry(id, event, log, lane);
+                return true;
+              }
+            }));
+            continue;
           }
+          retry(id, event, logToCleanup, manager.getLane());
           yield();
         }
+        try {
+          // the log has to stay open until every attempt has been recorded
+          getUninterruptibly(successfulAsList(pending));
+        } catch (ExecutionException e) {
+          LOG.error("Unable to wait for retries of " + logToCleanup.getPath(),
+              e);
+        }
+        try {
+          // closing the log writes its summary, so the next pass over it does
+          // not have to read the whole log again
+          logToCleanup.close();
+        } catch (IOException e) {
+          LOG.error("Unable to close log:" + logToCleanup.getPath(), e);
+        }
+        manager.logClosed(logToCleanup);
         if (logToCleanup.isFullyCommitted()) {
-          Path path = new Path(logToCleanup.getPath());
           try {
-            FileSystem fs = path.getFileSystem(new Configuration());
-            fs.delete(path, false);
+            manager.deleteCommittedLog(logToCleanup);
           } catch (IOException e) {
-            LOG.error("Unable to clean up fully-committed log:" + path);
+            LOG.error("Unable to clean up fully-committed log:"
+                + logToCleanup.getPath());
           }
         }
       }
@@ -89,10 +165,245 @@ class Retrier<EVENT> {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Waiting until next rotation.");
       }
-      manager.waitUntilNextRotation();
-      return;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Retries the uncommitted events of every old log of a manager that orders
+   * events by key, from the oldest log to the newest and in BEGIN order within
+   * each log. Different keys are retried in parallel when there is a recovery
+   * executor. Once an event of a key fails, the later events of the key are
+   * left for the next pass. The logs of the pass are marked in use rather than
+   * holding rotation off, so the dispatcher learns which keys have nothing
+   * older left in the old logs while posting carries on.
+   * 
+   * @return <tt>true</tt> if events were left uncommitted.
+   */
+  private boolean cleanupInKeyOrder(WriteAheadLogManager<EVENT> manager) {
+    final KeyedDispatcher<EVENT> dispatcher = manager.getDispatcher();
+    final Set<Object> blocked = Collections
+        .synchronizedSet(new HashSet<Object>());
+    final Lane lane = manager.getLane();
+    List<WriteAheadLog<EVENT>> used = new ArrayList<WriteAheadLog<EVENT>>();
+    boolean complete;
+    manager.pauseRotation();
+    try {
+      // a log still pinned by an attempt is skipped, so the pass cannot
+      // release any key
+      complete = !manager.hasLogsInUse();
+      dispatcher.passStarted();
+    } finally {
+      manager.resumeRotation();
+    }
+    try {
+      while (true) {
+        if (manager.isClosing()) {
+          return false;
+        }
+        final WriteAheadLog<EVENT> log = manager.useNextOldLog();
+        if (log == null) {
+          break;
+        }
+        used.add(log);
+        UncommittedEvents<EVENT> entries = coalesce(log,
+            log.getUncommittedEvents());
+        entries.sortById();
+        Map<Object, List<Integer>> keys = groupByKey(entries, dispatcher);
+        List<ListenableFuture<Boolean>> pending = new ArrayList<ListenableFuture<Boolean>>();
+        for (Map.Entry<Object, List<Integer>> key : keys.entrySet()) {
+          if (blocked.contains(key.getKey())) {
+            continue;
+          }
+          Callable<Boolean> retries = retryInOrder(key.getKey(),
+              key.getValue(), entries, log, manager, blocked);
+          if (recoveryExecutor != null) {
+            pending.add(recoveryExecutor.submit(retries));
+          } else {
+            retries.call();
+          }
+        }
+        try {
+          getUninterruptibly(successfulAsList(pending));
+        } catch (ExecutionException e) {
+          LOG.error("Unable to wait for retries of " + log.getPath(), e);
+        }
+        try {
+          manager.closeLogInUse(log);
+        } catch (IOException e) {
+          LOG.error("Unable to close log:" + log.getPath(), e);
+        }
+      }
+      if (complete) {
+        // otherwise the pinned log asks for another pass once it is closed
+        dispatcher.passCompleted(blocked);
+      }
+    } catch (Exception e) {
+      // the keys of an unreadable log are unknown, so none can be released
+      // until a pass after the next rotation succeeds
+      LOG.error("Unable to clean up the logs of lane " + lane, e);
+      return false;
+    } finally {
+      manager.releaseLogs(used);
     }
+    return !blocked.isEmpty();
+  }
 
+  /**
+   * @return The positions of the events with each key, in the order of the
+   *         events.
+   */
+  private static <EVENT> Map<Object, List<Integer>> groupByKey(
+      UncommittedEvents<EVENT> entries, KeyExtractor<EVENT> keyExtractor) {
+    Map<Object, List<Integer>> keys = new LinkedHashMap<Object, List<Integer>>();
+    for (int i = 0; i < entries.size(); i++) {
+      Object key = keyExtractor.getKey(entries.getEvent(i));
+      List<Integer> events = keys.get(key);
+      if (events == null) {
+        events = new ArrayList<Integer>();
+        keys.put(key, events);
+      }
+      events.add(i);
+    }
+    return keys;
+  }
+
+  /**
+   * Merges the uncommitted events of a log that share a coalescing key, in
+   * BEGIN order. A merged event that is not simply the newest original is
+   * begun in the log first, with the begin time of the oldest original, so it
+   * is durable before the originals are committed as superseded.
+   * 
+   * @return The events left to retry.
+   */
+  private UncommittedEvents<EVENT> coalesce(WriteAheadLog<EVENT> log,
+      UncommittedEvents<EVENT> entries) {
+    if (coalescer == null || entries.size() < 2) {
+      return entries;
+    }
+    entries.sortById();
+    List<Long> ids = new ArrayList<Long>();
+    List<Object> events = new ArrayList<Object>();
+    int superseded = 0;
+    for (List<Integer> key : groupByKey(entries, coalescer).values()) {
+      int newest = key.get(key.size() - 1);
+      EVENT merged = entries.getEvent(key.get(0));
+      for (int i = 1; i < key.size(); i++) {
+        merged = coalescer.merge(merged, entries.getEvent(key.get(i)));
+      }
+      long mergedId = entries.getId(newest);
+      if (merged != entries.getEvent(newest)) {
+        try {
+          mergedId = log.beginMerged(merged, entries.getId(key.get(0)));
+        } catch (IOException e) {
+          LOG.warn("Unable to log a merged event in " + log.getPath(), e);
+          mergedId = -1;
+        } catch (NeedsRotationException e) {
+          mergedId = -1;
+        }
+      }
+      if (mergedId < 0) {
+        // retry the originals as they are
+        for (int i : key) {
+          ids.add(entries.getId(i));
+          events.add(entries.getEvent(i));
+        }
+        continue;
+      }
+      for (int i : key) {
+        if (entries.getId(i) == mergedId) {
+          continue;
+        }
+        try {
+          log.commit(entries.getId(i));
+          superseded++;
+        } catch (IOException e) {
+          LOG.warn("Unable to commit a superseded event of " + log.getPath()
+              + ", it will be coalesced again.", e);
+        }
+      }
+      ids.add(mergedId);
+      events.add(merged);
+    }
+    if (superseded > 0 && LOG.isDebugEnabled()) {
+      LOG.debug("Committed " + superseded + " superseded events of "
+          + log.getPath());
+    }
+    long[] remaining = new long[ids.size()];
+    for (int i = 0; i < remaining.length; i++) {
+      remaining[i] = ids.get(i);
+    }
+    return new UncommittedEvents<EVENT>(remaining, events.toArray());
+  }
+
+  /**
+   * @return A task that retries the events of one key in order, and stops at
+   *         the first one that is not committed.
+   */
+  private Callable<Boolean> retryInOrder(final Object key,
+      final List<Integer> events, final UncommittedEvents<EVENT> entries,
+      final WriteAheadLog<EVENT> log,
+      final WriteAheadLogManager<EVENT> manager, final Set<Object> blocked) {
+    return new Callable<Boolean>() {
+      public Boolean call() {
+        for (int i : events) {
+          if (manager.isClosing()
+              || !retry(entries.getId(i), entries.getEvent(i), log,
+                  manager.getLane())) {
+            blocked.add(key);
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @return <tt>true</tt> if the event was committed.
+   */
+  private boolean retry(long id, EVENT event, WriteAheadLog<EVENT> log,
+      Lane lane) {
+    if (scheduler != null) {
+      scheduler.acquire(lane);
+    }
+    try {
+      return tryHandler.tryProcess(event, id, log, false);
+    } catch (FinalFailureException e) {
+      try {
+        log.commit(id);
+      } catch (IOException e1) {
+        LOG.error("Unable to commit final failed processing of log event id:"
+            + id + " event:" + event, e1);
+      }
+      failureHandler.handleFailure(event);
+      return true;
+    } finally {
+      if (scheduler != null) {
+        scheduler.release();
+      }
+    }
+  }
+
+  /**
+   * Starts an asynchronous retry of an event, once the number of events in
+   * flight allows it. The scheduler slot, if any, is held until the attempt
+   * completes.
+   */
+  private ListenableFuture<Boolean> retryAsync(long id, EVENT event,
+      WriteAheadLog<EVENT> log) {
+    tryHandler.acquire(false);
+    ListenableFuture<Boolean> attempt = tryHandler.tryProcessAsync(event, id,
+        log);
+    if (scheduler != null) {
+      attempt.addListener(new Runnable() {
+        public void run() {
+          scheduler.release();
+        }
+      }, sameThreadExecutor());
+    }
+    return attempt;
   }
 
 }
@@ -1,15 +1,49 @@
 package com.bah.geterdun;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.bah.geterdun.LogState.Attempts;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 /**
  * Tries to process an event using an {@link EventProcessor}. If the event
  * processes successfully, the event is committed to the log. If not, then no
  * action is taken on the log. If the event fails permenantly then a
  * {@link FinalFailureException} is thrown.
+ * <p>
+ * When it is created with an {@link AsyncEventProcessor} instead, events are
+ * tried with {@link #tryProcessAsync(Object, long, WriteAheadLog)} and the log
+ * is updated when processing completes. The number of events being processed
+ * at once is bounded, and callers must {@link #acquire(boolean)} a slot before trying
+ * each event.
+ * <p>
+ * Each attempt may be given a deadline, after which it counts as a recoverable
+ * failure and the event is left for a background retry, and may be hedged by
+ * starting a second attempt once the first has run longer than a percentile of
+ * recent attempts. The first attempt to succeed decides the outcome, and an
+ * event only fails once every attempt started for it has failed. Attempts that
+ * are still running at the deadline are left to finish on their own, and what
+ * they come to is recorded then, so an event that was processed after all is
+ * committed rather than counted as a failed attempt.
+ * <p>
+ * With a {@link ConcurrencyLimiter}, each attempt also waits for the limiter,
+ * and its latency and outcome adjust the limit. Attempts on newly posted
+ * events are marked live so the limiter can put them ahead of retries. An
+ * attempt that passes its deadline adjusts the limit as a failure right away,
+ * but holds its place in the limit until it returns, so that a hung downstream
+ * is never called by more threads than the limit allows.
  * 
  * @param <EVENT>
  */
@@ -18,12 +52,160 @@ class TryHandler<EVENT> {
   private static final Logger LOG = LoggerFactory.getLogger(TryHandler.class);
 
   private final EventProcessor<EVENT> processor;
+  private final AsyncEventProcessor<EVENT> asyncProcessor;
   private FailureHandler<EVENT> failureHandler;
+  private final int maxAttempts;
+  private final long maxAge;
+  private final DeadLetterLog<EVENT> deadLetters;
+  private final Semaphore inFlight;
+  private final int maxInFlight;
+  private final long attemptTimeout;
+  private final LatencyTracker latencies;
+  private final GeterDunRuntime runtime;
+  private final ConcurrencyLimiter limiter;
 
   TryHandler(EventProcessor<EVENT> processor,
       FailureHandler<EVENT> failureHandler) {
+    this(processor, failureHandler, 0, 0, null);
+  }
+
+  TryHandler(EventProcessor<EVENT> processor,
+      FailureHandler<EVENT> failureHandler, int maxAttempts, long maxAge,
+      DeadLetterLog<EVENT> deadLetters) {
+    this(processor, failureHandler, maxAttempts, maxAge, deadLetters, 0, null,
+        null, null);
+  }
+
+  /**
+   * @param maxAttempts
+   *          The number of recoverable failures after which an event is moved
+   *          to the dead letter log, or <tt>0</tt> for no limit.
+   * @param maxAge
+   *          The number of milliseconds after the first recoverable failure
+   *          after which an event is moved to the dead letter log, or
+   *          <tt>0</tt> for no limit.
+   * @param attemptTimeout
+   *          The number of milliseconds after which an attempt counts as a
+   *          recoverable failure, or <tt>0</tt> for no limit.
+   * @param latencies
+   *          Tracks the latency after which attempts are hedged, or
+   *          <tt>null</tt> to not hedge attempts.
+   * @param runtime
+   *          Runs attempts that have a deadline or are hedged.
+   * @param limiter
+   *          Limits the number of attempts at once, or <tt>null</tt> for no
+   *          limit.
+   */
+  TryHandler(EventProcessor<EVENT> processor,
+      FailureHandler<EVENT> failureHandler, int maxAttempts, long maxAge,
+      DeadLetterLog<EVENT> deadLetters, long attemptTimeout,
+      LatencyTracker latencies, GeterDunRuntime runtime,
+      ConcurrencyLimiter limiter) {
+    this(processor, null, failureHandler, maxAttempts, maxAge, deadLetters,
+        null, attemptTimeout, latencies, runtime, limiter);
+  }
+
+  /**
+   * @param maxInFlight
+   *          The most events that may be processing at once.
+   */
+  TryHandler(AsyncEventProcessor<EVENT> asyncProcessor,
+      FailureHandler<EVENT> failureHandler, int maxAttempts, long maxAge,
+      DeadLetterLog<EVENT> deadLetters, int maxInFlight,
+      long attemptTimeout, LatencyTracker latencies, GeterDunRuntime runtime,
+      ConcurrencyLimiter limiter) {
+    this(null, asyncProcessor, failureHandler, maxAttempts, maxAge,
+        deadLetters, new Semaphore(maxInFlight), attemptTimeout, latencies,
+        runtime, limiter);
+  }
+
+  private TryHandler(EventProcessor<EVENT> processor,
+      AsyncEventProcessor<EVENT> asyncProcessor,
+      FailureHandler<EVENT> failureHandler, int maxAttempts, long maxAge,
+      DeadLetterLog<EVENT> deadLetters, Semaphore inFlight,
+      long attemptTimeout, LatencyTracker latencies, GeterDunRuntime runtime,
+      ConcurrencyLimiter limiter) {
     this.failureHandler = failureHandler;
     this.processor = processor;
+    this.asyncProcessor = asyncProcessor;
+    this.maxAttempts = maxAttempts;
+    this.maxAge = maxAge;
+    this.deadLetters = deadLetters;
+    this.inFlight = inFlight;
+    this.maxInFlight = inFlight == null ? 0 : inFlight.availablePermits();
+    this.attemptTimeout = attemptTimeout;
+    this.latencies = latencies;
+    this.runtime = runtime;
+    this.limiter = limiter;
+  }
+
+  public FailureHandler<EVENT> getFailureHandler() {
+    return failureHandler;
+  }
+
+  private boolean isSupervised() {
+    return attemptTimeout > 0 || latencies != null;
+  }
+
+  /**
+   * @return <tt>true</tt> if events must be tried with
+   *         {@link #tryProcessAsync(Object, long, WriteAheadLog)}.
+   */
+  public boolean isAsync() {
+    return asyncProcessor != null;
+  }
+
+  /**
+   * Waits for a free slot to process an event asynchronously.
+   * 
+   * @param live
+   *          Whether the event was just posted, rather than being retried.
+   */
+  public void acquire(boolean live) {
+    inFlight.acquireUninterruptibly();
+    if (limiter != null) {
+      limiter.acquire(live);
+    }
+  }
+
+  /**
+   * Waits until no events are processing asynchronously.
+   * 
+   * @return <tt>false</tt> if events were still processing after the timeout.
+   */
+  public boolean awaitIdle(long timeoutNanos) {
+    if (inFlight == null) {
+      return true;
+    }
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          if (!inFlight.tryAcquire(maxInFlight, timeoutNanos,
+              TimeUnit.NANOSECONDS)) {
+            return false;
+          }
+          inFlight.release(maxInFlight);
+          return true;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Frees a slot acquired with {@link #acquire(boolean)} that was not used.
+   */
+  public void release() {
+    if (limiter != null) {
+      limiter.cancel();
+    }
+    inFlight.release();
   }
 
   /**
@@ -32,27 +214,390 @@ class TryHandler<EVENT> {
    * unhandled exception is thrown from the event, then it is propagated as a
    * <tt>FinalFailureException</tt>. If the event fails to process but no
    * unhandled exception is thrown, then the framework will continue to attempt
-   * to process the event at a future time.
+   * to process the event at a future time, unless the event has exhausted its
+   * retry policy, in which case it is moved to the dead letter log.
    * 
    * @param event
    * @param eventId
+   * @param live
+   *          Whether the event was just posted, rather than being retried.
+   * @return <tt>true</tt> if the event was committed, because it was either
+   *         processed or moved to the dead letter log.
    * @throws FinalFailureException
    *           If the event cannot be processed.
    */
-  public void tryProcess(EVENT event, int eventId, WriteAheadLog<EVENT> log)
-      throws FinalFailureException {
+  public boolean tryProcess(EVENT event, long eventId,
+      WriteAheadLog<EVENT> log, boolean live) throws FinalFailureException {
+    boolean processed = false;
     try {
-      if(processor.processEvent(event)){
+      if (isSupervised()) {
+        if (limiter != null) {
+          // the race gives up its place in the limit once its attempts return
+          limiter.acquire(live);
+        }
+        Race race = attempt(event);
+        processed = getOutcome(race.outcome);
+        if (!processed && !race.settled.isDone()) {
+          recordWhenSettled(race, event, eventId, log);
+          return false;
+        }
+      } else {
+        processed = process(event, live);
+      }
+      if (processed) {
         log.commit(eventId);
       }
     } catch (Exception e) {
-      try {
+      recordFailure(event, eventId, log);
+      throw new FinalFailureException(event, e, eventId, log.getPath());
+    }
+    if (!processed && (maxAttempts > 0 || maxAge > 0)) {
+      return countFailedAttempt(event, eventId, log);
+    }
+    return processed;
+  }
+
+  /**
+   * Processes an event on the calling thread, within the concurrency limit if
+   * there is one.
+   */
+  private boolean process(EVENT event, boolean live) throws Exception {
+    if (limiter != null) {
+      limiter.acquire(live);
+    }
+    long started = System.nanoTime();
+    boolean processed = false;
+    try {
+      processed = processor.processEvent(event);
+      return processed;
+    } finally {
+      if (limiter != null) {
+        limiter.release(System.nanoTime() - started, processed);
+      }
+    }
+  }
+
+  /**
+   * Starts processing an event asynchronously, in a slot that the caller has
+   * already {@link #acquire(boolean) acquired}. When processing completes the event
+   * is committed, counted as a failed attempt, or committed and handed to the
+   * failure handler, just as with {@link #tryProcess(Object, long, WriteAheadLog, boolean)},
+   * and then the slot is released. If the log has been closed by then, the
+   * outcome is not recorded and the event will be processed again later.
+   * 
+   * @return A future that completes once the outcome has been recorded, with
+   *         <tt>true</tt> if the event was processed successfully.
+   */
+  public ListenableFuture<Boolean> tryProcessAsync(final EVENT event,
+      final long eventId, final WriteAheadLog<EVENT> log) {
+    final SettableFuture<Boolean> handled = SettableFuture.create();
+    final long started = System.nanoTime();
+    final Race race = isSupervised() ? attempt(event) : null;
+    ListenableFuture<Boolean> processing = race != null ? race.outcome : start(
+        event, null);
+    Futures.addCallback(processing, new FutureCallback<Boolean>() {
+      public void onSuccess(Boolean processed) {
+        boolean success = Boolean.TRUE.equals(processed);
+        try {
+          if (success) {
+            log.commit(eventId);
+          } else if (race != null && !race.settled.isDone()) {
+            recordWhenSettled(race, event, eventId, log);
+          } else if (maxAttempts > 0 || maxAge > 0) {
+            countFailedAttempt(event, eventId, log);
+          }
+        } catch (IOException e) {
+          LOG.warn("Unable to commit log event id:" + eventId + " of "
+              + log.getPath() + ", it will be processed again.", e);
+        } finally {
+          releaseSlot(started, success);
+          handled.set(success);
+        }
+      }
+
+      public void onFailure(Throwable t) {
+        try {
+          LOG.debug("Event permanently failed to process.", t);
+          recordFailure(event, eventId, log);
+        } finally {
+          releaseSlot(started, false);
+          handled.set(false);
+        }
+      }
+    });
+    return handled;
+  }
+
+  /**
+   * Records the outcome of an event whose deadline passed while attempts were
+   * still running, once they have all returned. The event is committed if one
+   * of them succeeded, counted as a failed attempt if one failed, and
+   * otherwise handed to the failure handler. If the log has been closed by
+   * then, the event will be processed again later.
+   */
+  private void recordWhenSettled(Race race, final EVENT event,
+      final long eventId, final WriteAheadLog<EVENT> log) {
+    Futures.addCallback(race.settled, new FutureCallback<Boolean>() {
+      public void onSuccess(Boolean processed) {
+        try {
+          if (Boolean.TRUE.equals(processed)) {
+            log.commit(eventId);
+          } else if (maxAttempts > 0 || maxAge > 0) {
+            countFailedAttempt(event, eventId, log);
+          }
+        } catch (IOException e) {
+          LOG.warn("Unable to commit log event id:" + eventId + " of "
+              + log.getPath() + ", it will be processed again.", e);
+        }
+      }
+
+      public void onFailure(Throwable t) {
+        LOG.debug("Event permanently failed to process.", t);
+        recordFailure(event, eventId, log);
+      }
+    });
+  }
+
+  /**
+   * Commits an event that failed permanently and hands it to the failure
+   * handler.
+   */
+  private void recordFailure(EVENT event, long eventId, WriteAheadLog<EVENT> log) {
+    try {
+      log.commit(eventId);
+    } catch (IOException e1) {
+      LOG.error("Unable to commit failure due to IOException.", e1);
+    }
+    failureHandler.handleFailure(event);
+  }
+
+  private void releaseSlot(long started, boolean succeeded) {
+    if (limiter != null && !isSupervised()) {
+      limiter.release(System.nanoTime() - started, succeeded);
+    }
+    inFlight.release();
+  }
+
+  /**
+   * Waits for the outcome of a supervised attempt.
+   * 
+   * @throws Exception
+   *           The exception thrown by the processor.
+   */
+  private static boolean getOutcome(ListenableFuture<Boolean> outcome)
+      throws Exception {
+    try {
+      return Boolean.TRUE.equals(Uninterruptibles.getUninterruptibly(outcome));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Starts processing an event, with a deadline and a hedged attempt if they
+   * are configured.
+   * 
+   * @return The attempts, whose outcome is that of the first attempt to
+   *         succeed or, if every attempt failed, of the first to fail, or
+   *         <tt>false</tt> if the deadline passed first.
+   */
+  private Race attempt(EVENT event) {
+    final Race race = new Race(event);
+    race.start();
+    if (attemptTimeout > 0) {
+      runtime.schedule(new Runnable() {
+        public void run() {
+          if (race.expire() && LOG.isDebugEnabled()) {
+            LOG.debug("Attempt timed out after " + attemptTimeout + "ms.");
+          }
+        }
+      }, attemptTimeout);
+    }
+    long hedgeDelay = latencies == null ? 0 : latencies.getThresholdMillis();
+    if (hedgeDelay > 0) {
+      runtime.schedule(new Runnable() {
+        public void run() {
+          race.start();
+        }
+      }, hedgeDelay);
+    }
+    return race;
+  }
+
+  /**
+   * The attempts started to process one event: the first attempt and, once it
+   * has run long enough, a hedge. The outcome is decided by the first attempt
+   * to succeed, by the deadline, or once every attempt started has failed, and
+   * the limiter adjusts to it then. The race is settled, and its place in the
+   * limit given up, once the outcome is decided and no attempt is still
+   * running.
+   */
+  private class Race {
+    private final EVENT event;
+    private final long started = System.nanoTime();
+    final SettableFuture<Boolean> outcome = SettableFuture.create();
+    /**
+     * Whether any attempt succeeded, once the race is settled, or the
+     * exception of the first attempt if every attempt threw one.
+     */
+    final SettableFuture<Boolean> settled = SettableFuture.create();
+    private boolean decided;
+    private int running;
+    private boolean succeeded;
+    private boolean failed;
+    private Throwable thrown;
+
+    Race(EVENT event) {
+      this.event = event;
+    }
+
+    /**
+     * Starts an attempt, unless the outcome has already been decided.
+     */
+    void start() {
+      synchronized (this) {
+        if (decided) {
+          return;
+        }
+        running++;
+      }
+      Futures.addCallback(TryHandler.this.start(event, outcome),
+          new FutureCallback<Boolean>() {
+            public void onSuccess(Boolean processed) {
+              finish(Boolean.TRUE.equals(processed), null);
+            }
+
+            public void onFailure(Throwable t) {
+              finish(false, t);
+            }
+          });
+    }
+
+    /**
+     * Decides the outcome as a recoverable failure, unless it has already been
+     * decided.
+     * 
+     * @return <tt>true</tt> if this decided the outcome.
+     */
+    boolean expire() {
+      synchronized (this) {
+        if (decided) {
+          return false;
+        }
+        decided = true;
+      }
+      adjust(false);
+      outcome.set(false);
+      return true;
+    }
+
+    private void finish(boolean processed, Throwable t) {
+      boolean decide;
+      boolean settle;
+      synchronized (this) {
+        running--;
+        if (t != null) {
+          if (thrown == null) {
+            thrown = t;
+          }
+        } else if (processed) {
+          succeeded = true;
+        } else {
+          failed = true;
+        }
+        decide = !decided && (processed || running == 0);
+        decided |= decide;
+        settle = decided && running == 0;
+      }
+      // once settled, or decided by a success, the race no longer changes
+      if (decide) {
+        adjust(processed);
+      }
+      if (settle) {
+        if (limiter != null) {
+          limiter.cancel();
+        }
+        complete(settled);
+      }
+      if (decide) {
+        if (processed) {
+          outcome.set(true);
+        } else {
+          complete(outcome);
+        }
+      }
+    }
+
+    private void adjust(boolean processed) {
+      long latency = System.nanoTime() - started;
+      if (limiter != null) {
+        limiter.record(latency, processed);
+      }
+      if (processed && latencies != null) {
+        latencies.record(latency);
+      }
+    }
+
+    private void complete(SettableFuture<Boolean> future) {
+      if (succeeded || failed) {
+        future.set(succeeded);
+      } else {
+        future.setException(thrown);
+      }
+    }
+  }
+
+  /**
+   * Starts one attempt to process an event, on an attempt thread if the
+   * processor is synchronous.
+   * 
+   * @param outcome
+   *          The outcome the attempt races for, or <tt>null</tt>. An attempt
+   *          that is still queued for a thread once the outcome is decided is
+   *          skipped.
+   */
+  private ListenableFuture<Boolean> start(final EVENT event,
+      final Future<Boolean> outcome) {
+    try {
+      if (asyncProcessor != null) {
+        return asyncProcessor.processEvent(event);
+      }
+      return runtime.getAttemptExecutor().submit(new Callable<Boolean>() {
+        public Boolean call() throws Exception {
+          if (outcome != null && outcome.isDone()) {
+            return false;
+          }
+          return processor.processEvent(event);
+        }
+      });
+    } catch (Exception e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * @return <tt>true</tt> if the event was moved to the dead letter log.
+   */
+  private boolean countFailedAttempt(EVENT event, long eventId,
+      WriteAheadLog<EVENT> log) {
+    try {
+      Attempts attempts = log.recordFailedAttempt(eventId);
+      if ((maxAttempts > 0 && attempts.getCount() >= maxAttempts)
+          || (maxAge > 0 && System.currentTimeMillis()
+              - attempts.getFirstAttemptTime() >= maxAge)) {
+        deadLetters.add(event);
         log.commit(eventId);
-      } catch (IOException e1) {
-        LOG.error("Unable to commit failure due to IOException.", e1);
+        LOG.warn("Moved event to the dead letter log after "
+            + attempts.getCount() + " attempts: " + event);
+        return true;
       }
-      failureHandler.handleFailure(event);
-      throw new FinalFailureException(event, e, eventId, log.getPath());
+    } catch (IOException e) {
+      LOG.error("Unable to record failed attempt of log event id:" + eventId
+          + " event:" + event, e);
     }
+    return false;
   }
 }
@@ -0,0 +1,65 @@
+package com.bah.geterdun;
+
+import java.util.Arrays;
+
+import net.openhft.koloboke.collect.map.LongObjCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+
+/**
+ * A copy of the uncommitted events of a log, held as parallel arrays of IDs
+ * and events so that taking and walking it does not box the IDs or create an
+ * entry per event.
+ *
+ * @param <EVENT>
+ *          The type of the event.
+ */
+class UncommittedEvents<EVENT> {
+
+  private final long[] ids;
+  private final Object[] events;
+
+  UncommittedEvents(HashLongObjMap<EVENT> uncommitted) {
+    ids = new long[uncommitted.size()];
+    events = new Object[ids.length];
+    LongObjCursor<EVENT> cursor = uncommitted.cursor();
+    for (int i = 0; cursor.moveNext(); i++) {
+      ids[i] = cursor.key();
+      events[i] = cursor.value();
+    }
+  }
+
+  UncommittedEvents(long[] ids, Object[] events) {
+    this.ids = ids;
+    this.events = events;
+  }
+
+  /**
+   * Puts the events in the order they were begun. The IDs are unique, so each
+   * event is moved to where a binary search finds its ID once the IDs are
+   * sorted, without boxing an index per event.
+   */
+  public void sortById() {
+    long[] sortedIds = ids.clone();
+    Arrays.sort(sortedIds);
+    Object[] sortedEvents = new Object[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      sortedEvents[Arrays.binarySearch(sortedIds, ids[i])] = events[i];
+    }
+    System.arraycopy(sortedIds, 0, ids, 0, ids.length);
+    System.arraycopy(sortedEvents, 0, events, 0, ids.length);
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  public long getId(int i) {
+    return ids[i];
+  }
+
+  @SuppressWarnings("unchecked")
+  public EVENT getEvent(int i) {
+    return (EVENT) events[i];
+  }
+
+}
@@ -0,0 +1,65 @@
+package com.bah.geterdun;
+
+import java.util.List;
+
+/**
+ * Shares a fixed number of concurrent background retry attempts between
+ * {@link Lane lanes} in proportion to their weights, using stride scheduling.
+ * Each lane has a pass value that advances by the inverse of its weight every
+ * time it is granted an attempt, and the waiting lane with the lowest pass
+ * goes next. A lane that has been idle is brought up to the current virtual
+ * time, so it cannot save up credit while it has nothing to retry.
+ */
+class WeightedFairScheduler {
+
+  private static final long STRIDE = 1L << 20;
+  private final List<Lane> lanes;
+  private int available;
+  private long virtualTime;
+
+  WeightedFairScheduler(List<Lane> lanes, int permits) {
+    this.lanes = lanes;
+    this.available = permits;
+  }
+
+  /**
+   * Waits until the lane may make a retry attempt. Every call must be
+   * followed by a call to {@link #release()}.
+   */
+  public synchronized void acquire(Lane lane) {
+    if (lane.waiting++ == 0 && lane.pass < virtualTime) {
+      lane.pass = virtualTime;
+    }
+    boolean interrupted = false;
+    while (available == 0 || !isNext(lane)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    available--;
+    lane.waiting--;
+    virtualTime = lane.pass;
+    lane.pass += STRIDE / lane.getWeight();
+    notifyAll();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public synchronized void release() {
+    available++;
+    notifyAll();
+  }
+
+  private boolean isNext(Lane lane) {
+    for (Lane other : lanes) {
+      if (other != lane && other.waiting > 0 && other.pass < lane.pass) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -1,24 +1,28 @@
 package com.bah.geterdun;
 
 import java.io.Closeable;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
-
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.FsConstants;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
 import com.bah.geterdun.HeaderManagement.HeaderBasedInitialization;
 import com.bah.geterdun.LogResolver.CorruptLogException;
+import com.bah.geterdun.LogState.Attempts;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 class WriteAheadLog<EVENT> implements Closeable {
 
@@ -34,146 +38,999 @@ class WriteAheadLog<EVENT> implements Closeable {
     private final HeaderManagement headerManagement;
     private final LogResolver<EVENT> logResolver;
     private final CorruptionHandler corruptionHandler;
+    private final GeterDunOptions options;
+    private final ExecutorService recoveryExecutor;
+    private final IoContext io;
+    private final LatencyDistribution commitLatency = new LatencyDistribution();
+    private final AppendNotifier appendNotifier = new AppendNotifier();
 
+    /**
+     * @param recoveryExecutor
+     *          Resolves the byte ranges of large logs in parallel, or
+     *          <tt>null</tt> to always resolve logs on the calling thread.
+     * @param io
+     *          The file systems shared by every log of the instance.
+     */
     Factory(Class<EVENT> eventClass, HeaderManagement headerManagement,
-        LogResolver<EVENT> logResolver, CorruptionHandler corruptionHandler) {
+        LogResolver<EVENT> logResolver, CorruptionHandler corruptionHandler,
+        GeterDunOptions options, ExecutorService recoveryExecutor, IoContext io) {
       this.eventClass = eventClass;
       this.headerManagement = headerManagement;
       this.logResolver = logResolver;
       this.corruptionHandler = corruptionHandler;
+      this.options = options;
+      this.recoveryExecutor = recoveryExecutor;
+      this.io = io;
+    }
+
+    Factory(Class<EVENT> eventClass, CorruptionHandler corruptionHandler,
+        GeterDunOptions options, ExecutorService recoveryExecutor, IoContext io) {
+      this(eventClass, new HeaderManagement(new HeaderWritable(
+          getVersion(options))), new LogResolver<EVENT>(), corruptionHandler,
+          options, recoveryExecutor, io);
+    }
+
+    /**
+     * @return The version of the new logs written with the options.
+     */
+    private static int getVersion(GeterDunOptions options) {
+      if (options.isTimestampingEvents()) {
+        return HeaderWritable.TIMESTAMP_VERSION;
+      }
+      return options.isCompactRecords() ? HeaderWritable.COMPACT_VERSION
+          : HeaderWritable.SYNC_MARKER_VERSION;
     }
 
-    Factory(Class<EVENT> eventClass, CorruptionHandler corruptionHandler) {
-      this(eventClass, new HeaderManagement(), new LogResolver<EVENT>(),
-          corruptionHandler);
+    Factory(Class<EVENT> eventClass, CorruptionHandler corruptionHandler,
+        GeterDunOptions options) {
+      this(eventClass, corruptionHandler, options, null, new IoContext());
     }
 
     public WriteAheadLog<EVENT> getLog(String location) throws IOException {
       return new WriteAheadLog<EVENT>(location, eventClass, headerManagement,
-          logResolver, corruptionHandler);
+          logResolver, corruptionHandler, options, recoveryExecutor, io,
+          commitLatency, appendNotifier, false);
+    }
+
+    /**
+     * Opens the current log of a lane, which is the only log that stages its
+     * BEGIN records in a ring when the options have staging slots.
+     */
+    public WriteAheadLog<EVENT> getCurrentLog(String location)
+        throws IOException {
+      return new WriteAheadLog<EVENT>(location, eventClass, headerManagement,
+          logResolver, corruptionHandler, options, recoveryExecutor, io,
+          commitLatency, appendNotifier, true);
+    }
+
+    public Class<EVENT> getEventClass() {
+      return eventClass;
+    }
+
+    public IoContext getIoContext() {
+      return io;
+    }
+
+    /**
+     * @return The time from BEGIN to COMMIT of the timestamped events
+     *         committed in every log this factory has opened.
+     */
+    public LatencyDistribution getCommitLatency() {
+      return commitLatency;
+    }
+
+    /**
+     * @return What is told whenever records are pushed out to a log this
+     *         factory has opened.
+     */
+    public AppendNotifier getAppendNotifier() {
+      return appendNotifier;
     }
   }
 
   static final int TYPE_BEGIN = 0;
   static final int TYPE_COMMIT = 1;
+  /**
+   * A block of commits, encoded as a count of ranges followed by the first ID
+   * and length of each range of consecutive committed IDs.
+   */
+  static final int TYPE_COMMIT_BLOCK = 2;
+  /**
+   * The number of failed processing attempts of an event and the time of the
+   * first one.
+   */
+  static final int TYPE_ATTEMPT = 3;
+  /**
+   * The sync marker of the log, written every so often so that a reader can
+   * find a record boundary from any offset.
+   */
+  static final int TYPE_SYNC = 4;
+  /**
+   * The smallest byte range of a log that is resolved on its own thread.
+   */
+  static final long MIN_SPLIT_SIZE = 512 * 1024;
+  /**
+   * Encode buffers that grow past this size are not kept for the next event.
+   */
+  static final int MAX_RETAINED_BUFFER = 64 * 1024;
+  /**
+   * The most bytes the type, ID and time of a BEGIN record take, in any
+   * format.
+   */
+  static final int MAX_BEGIN_PREFIX = 1 + 9 + 9;
+  private static final byte[] BEGIN_PREFIX_SPACE = new byte[MAX_BEGIN_PREFIX];
 
-  private String location;
-  private FSDataOutputStream output;
-  private int counter;
-  private Map<Integer, EVENT> uncommittedEvents = HashIntObjMaps
-      .newMutableMap();
+  /**
+   * Per-thread buffers that BEGIN records are encoded into before the write
+   * lock is taken, so that each record reaches the output in a single write.
+   */
+  private static final ThreadLocal<DataOutputBuffer> beginBuffers = new ThreadLocal<DataOutputBuffer>() {
+    @Override
+    protected DataOutputBuffer initialValue() {
+      return new DataOutputBuffer();
+    }
+  };
+
+  private volatile String location;
+  private LogOutput output;
+  private long counter;
+  private LogState<EVENT> state = new LogState<EVENT>();
+  private final LogStorage storage;
+  private volatile Path path;
+  /**
+   * The offset in the file of position zero of the output stream, which
+   * depends on how the file system opens streams for append.
+   */
+  private long positionBase;
   private Lock writeLock = new ReentrantLock();
+  private final Durability beginDurability;
+  private final Durability commitDurability;
+  private long lastSyncTime = System.currentTimeMillis();
+  private long syncedPosition;
+  /**
+   * Syncs the log once it has been idle for the periodic sync interval, or
+   * <tt>null</tt> if neither durability syncs based on time.
+   */
+  private final ScheduledFuture<?> syncTask;
+  private final long[] pendingCommits;
+  private int pendingCommitCount;
+  private long firstPendingCommitTime;
+  private final long commitBatchDelay;
+  /**
+   * Writes the pending commits once they have waited for the batch delay, or
+   * <tt>null</tt> if commits are not batched.
+   */
+  private final ScheduledFuture<?> flushTask;
+  private byte[] syncMarker;
+  private long lastSyncMarkPosition;
+  private final int syncInterval;
+  /** The version of the header, which decides the format of the records. */
+  private final int version;
+  private final boolean compact;
+  /**
+   * Whether the version knows COMMIT_BLOCK and ATTEMPT records. Older logs get
+   * a COMMIT record per event and no attempt records.
+   */
+  private final boolean batchRecords;
+  /** Whether BEGIN records hold the time the event was posted. */
+  private final boolean timestamped;
+  private final LatencyDistribution commitLatency = new LatencyDistribution();
+  private final LatencyDistribution sharedCommitLatency;
+  private final AppendNotifier appendNotifier;
+  private final int recoveryParallelism;
+  private final ExecutorService recoveryExecutor;
+  /** Encodes the other records, guarded by the write lock. */
+  private final DataOutputBuffer record = new DataOutputBuffer();
+  private final int stagingSlots;
+  private final Object ringLock = new Object();
+  /**
+   * Stages BEGIN records when staging is enabled, set while holding ringLock.
+   */
+  private volatile RecordRing<EVENT> ring;
+  private boolean ringClosed;
+  /** The attempts that hold the log open, guarded by the write lock. */
+  private int pins;
+  /** Whether the log has been closed, or will be once it is unpinned. */
+  private boolean closeRequested;
 
   WriteAheadLog(String location, Class<EVENT> eventClass,
       HeaderManagement headerManagement, LogResolver<EVENT> logResolver,
-      CorruptionHandler corruptionHandler) throws IOException {
+      CorruptionHandler corruptionHandler, GeterDunOptions options,
+      ExecutorService recoveryExecutor, IoContext io,
+      LatencyDistribution sharedCommitLatency, AppendNotifier appendNotifier,
+      boolean staging) throws IOException {
     this.location = location;
-    Path path = new Path(location);
-    FileSystem fs;
-    if (location.startsWith("file:/")) {
-      fs = new RawLocalFileSystem() {
-        {
-          setConf(new Configuration());
-          initialize(FsConstants.LOCAL_FS_URI, getConf());
-        }
-      };
-
-      fs.setConf(new Configuration());
-    } else {
-      fs = path.getFileSystem(new Configuration());
-    }
+    this.sharedCommitLatency = sharedCommitLatency;
+    this.appendNotifier = appendNotifier;
+    this.beginDurability = options.getBeginDurability();
+    this.commitDurability = options.getCommitDurability();
+    this.pendingCommits = new long[options.getCommitBatchSize()];
+    this.commitBatchDelay = options.getCommitBatchDelay();
+    this.syncInterval = options.getSyncInterval();
+    this.recoveryParallelism = options.getRecoveryParallelism();
+    this.recoveryExecutor = recoveryExecutor;
+    this.stagingSlots = staging ? options.getStagingSlots() : 0;
+    path = new Path(location);
+    storage = io.getStorage(path);
     HeaderBasedInitialization inOut;
-    if (!fs.exists(path)) {
-      inOut = headerManagement.createAndWriteHeader(fs, path, eventClass);
+    if (!storage.exists(path)) {
+      inOut = headerManagement.createAndWriteHeader(storage, path, eventClass);
     } else {
-      inOut = headerManagement.verifyHeaderAndOpen(fs, path, eventClass);
+      inOut = headerManagement
+          .verifyHeaderAndOpen(storage, path, eventClass);
     }
+    syncMarker = inOut.getSyncMarker();
+    version = inOut.getVersion();
+    compact = version >= HeaderWritable.COMPACT_VERSION;
+    batchRecords = version >= HeaderWritable.BATCH_RECORDS_VERSION;
+    timestamped = version >= HeaderWritable.TIMESTAMP_VERSION;
     try {
-      counter = logResolver.resolveUncommittedEvents(inOut.getIn(), uncommittedEvents,
-          eventClass, fs.getFileStatus(path).getLen(), location);
+      long length = storage.getLength(path);
+      counter = resolve(inOut.getIn(), logResolver, eventClass, length);
       inOut.getIn().close();
       output = inOut.getOut();
+      positionBase = length - output.getPos();
+      syncedPosition = output.getPos();
+      lastSyncMarkPosition = length;
     } catch (CorruptLogException e) {
       corruptionHandler.handleCorruption(e);
     }
+    final long syncIntervalMillis = Durability.getSyncIntervalMillis(
+        beginDurability, commitDurability);
+    if (syncIntervalMillis > 0) {
+      syncTask = options.getRuntime().scheduleRotation(new Runnable() {
+        public void run() {
+          syncIfIdle(syncIntervalMillis);
+        }
+      }, syncIntervalMillis);
+    } else {
+      syncTask = null;
+    }
+    if (pendingCommits.length > 1 && commitBatchDelay > 0) {
+      flushTask = options.getRuntime().scheduleRotation(new Runnable() {
+        public void run() {
+          flushPendingCommitsIfDue();
+        }
+      }, commitBatchDelay);
+    } else {
+      flushTask = null;
+    }
+  }
 
+  /**
+   * Populates the uncommitted events, reading only the tail of the log if it
+   * has a usable summary.
+   */
+  private long resolve(LogInput in, LogResolver<EVENT> logResolver,
+      Class<EVENT> eventClass, long length) throws IOException,
+      CorruptLogException {
+    long recordsStart = in.getPos();
+    LogSummary summary = LogSummary.load(storage, path);
+    if (summary != null) {
+      try {
+        return logResolver.resolveFromSummary(in, summary, state, eventClass,
+            length, location, version);
+      } catch (CorruptLogException e) {
+        WriteAheadLogManager.LOG.warn("Summary of " + location
+            + " does not match the log, resolving the whole log.");
+        state.clear();
+        in.seek(recordsStart);
+      }
+    }
+    if (syncMarker != null && recoveryExecutor != null
+        && recoveryParallelism > 1 && length - recordsStart >= 2 * MIN_SPLIT_SIZE) {
+      return resolveInParallel(recordsStart, logResolver, eventClass, length);
+    }
+    return logResolver.resolveUncommittedEvents(in, state, eventClass, length,
+        location, 0, version);
+
+  }
+
+  /**
+   * Splits the records of the log into byte ranges, resolves each range with
+   * its own stream on the recovery executor and merges the results in order.
+   */
+  private long resolveInParallel(long recordsStart,
+      final LogResolver<EVENT> logResolver, final Class<EVENT> eventClass,
+      final long length) throws IOException, CorruptLogException {
+    int splits = (int) Math.min(recoveryParallelism, (length - recordsStart)
+        / MIN_SPLIT_SIZE);
+    long splitSize = (length - recordsStart) / splits;
+    List<Future<LogState<EVENT>>> ranges = new ArrayList<Future<LogState<EVENT>>>();
+    final long[] counters = new long[splits];
+    for (int i = 0; i < splits; i++) {
+      final int split = i;
+      final long start = recordsStart + i * splitSize;
+      final long end = i == splits - 1 ? Long.MAX_VALUE : start + splitSize;
+      ranges.add(recoveryExecutor.submit(new Callable<LogState<EVENT>>() {
+        public LogState<EVENT> call() throws Exception {
+          LogState<EVENT> range = new LogState<EVENT>(true);
+          LogInput in = storage.open(path);
+          try {
+            // the first range starts on a record boundary, the others start
+            // at the first sync record in the range
+            if (split == 0) {
+              in.seek(start);
+            } else if (!logResolver.syncTo(in, syncMarker, version, start, end)) {
+              return range;
+            }
+            counters[split] = logResolver.resolveRange(in, range, eventClass,
+                length, location, 0, version, syncMarker, end);
+          } finally {
+            in.close();
+          }
+          return range;
+        }
+      }));
+    }
+    long lastCounter = 0;
+    for (int i = 0; i < splits; i++) {
+      LogState<EVENT> range;
+      try {
+        range = Uninterruptibles.getUninterruptibly(ranges.get(i));
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof CorruptLogException) {
+          throw (CorruptLogException) e.getCause();
+        }
+        throw new IOException("Unable to resolve " + location, e.getCause());
+      }
+      if (i == 0) {
+        state = range;
+      } else {
+        state.merge(range);
+      }
+      lastCounter = Math.max(lastCounter, counters[i]);
+    }
+    return lastCounter;
   }
 
-  public void commit(int eventId) throws IOException {
+  public void commit(long eventId) throws IOException {
     writeLock.lock();
     try {
+      checkOpen();
       if (eventId > counter) {
         throw new IOException("Cannot commit an ID that has not been created.");
       }
-      output.writeInt(TYPE_COMMIT);
-      output.writeInt(eventId);
-      output.hsync();
-      uncommittedEvents.remove(eventId);
+      if (pendingCommits.length == 1 || !batchRecords) {
+        record.reset();
+        writeType(record, TYPE_COMMIT);
+        writeRelativeId(record, eventId);
+        writeRecord(record);
+        sync(commitDurability);
+      } else {
+        long now = System.currentTimeMillis();
+        if (pendingCommitCount == 0) {
+          firstPendingCommitTime = now;
+        }
+        pendingCommits[pendingCommitCount++] = eventId;
+        if (pendingCommitCount == pendingCommits.length
+            || now - firstPendingCommitTime >= commitBatchDelay) {
+          writeCommitBlock();
+          sync(commitDurability);
+        }
+      }
+      long beginTime = state.getBeginTime(eventId);
+      state.commit(eventId);
+      if (beginTime != 0) {
+        long latency = System.currentTimeMillis() - beginTime;
+        commitLatency.record(latency);
+        sharedCommitLatency.record(latency);
+      }
     } finally {
       writeLock.unlock();
     }
   }
 
+  /**
+   * Writes the pending commits if the first of them has waited for the batch
+   * delay, since no later commit has come along to write them.
+   */
+  private void flushPendingCommitsIfDue() {
+    if (!writeLock.tryLock()) {
+      return;
+    }
+    try {
+      long waited = System.currentTimeMillis() - firstPendingCommitTime;
+      if (output != null && pendingCommitCount > 0
+          && waited >= commitBatchDelay) {
+        writeCommitBlock();
+        sync(commitDurability);
+      }
+    } catch (IOException e) {
+      WriteAheadLogManager.LOG.warn("Unable to write the pending commits of "
+          + location, e);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (output == null) {
+      throw new IOException("Write ahead log " + location + " is not open.");
+    }
+  }
+
+  /**
+   * Writes an encoded record, preceded by a sync record if one is due. Must be
+   * called while holding the write lock.
+   */
+  private void writeRecord(DataOutputBuffer encoded) throws IOException {
+    writeSyncMarkIfDue();
+    output.write(encoded.getData(), 0, encoded.getLength());
+  }
+
+  /**
+   * Writes a sync record if enough has been written since the last one. Must
+   * be called while holding the write lock, before writing a record.
+   */
+  private void writeSyncMarkIfDue() throws IOException {
+    long position = positionBase + output.getPos();
+    if (syncMarker != null && position - lastSyncMarkPosition >= syncInterval) {
+      writeType(output, TYPE_SYNC);
+      output.write(syncMarker);
+      if (compact) {
+        // gives a reader that starts here a base for the relative IDs
+        WritableUtils.writeVLong(output, counter);
+      }
+      lastSyncMarkPosition = position;
+    }
+  }
+
+  private void writeType(DataOutput out, int type) throws IOException {
+    if (compact) {
+      out.writeByte(type);
+    } else {
+      out.writeInt(type);
+    }
+  }
+
+  private void writeCount(DataOutput out, int count) throws IOException {
+    if (compact) {
+      WritableUtils.writeVInt(out, count);
+    } else {
+      out.writeInt(count);
+    }
+  }
+
+  /**
+   * Writes the ID of an event that has already been created. Compact records
+   * store it as its distance from the last event ID created, which is small
+   * for the events that are usually committed. Must be called while holding
+   * the write lock.
+   */
+  private void writeRelativeId(DataOutput out, long eventId)
+      throws IOException {
+    if (compact) {
+      WritableUtils.writeVLong(out, counter - eventId);
+    } else {
+      out.writeInt((int) eventId);
+    }
+  }
+
+  /**
+   * Writes the type, ID and, if the log is timestamped, the time of a BEGIN
+   * record, which take at most {@link #MAX_BEGIN_PREFIX} bytes.
+   */
+  void writeBeginPrefix(DataOutput out, long eventId, long beginTime)
+      throws IOException {
+    writeType(out, TYPE_BEGIN);
+    if (compact) {
+      WritableUtils.writeVLong(out, eventId);
+    } else {
+      out.writeInt((int) eventId);
+    }
+    if (timestamped) {
+      WritableUtils.writeVLong(out, beginTime);
+    }
+  }
+
+  /**
+   * @return The time to record for an event that is being begun, or
+   *         <tt>0</tt> if the log is not timestamped.
+   */
+  long beginTime() {
+    return timestamped ? System.currentTimeMillis() : 0;
+  }
+
+  /**
+   * Records a failed attempt to process an event. Losing an attempt record only
+   * means the event may be retried once more than its policy allows, so it is
+   * written with the COMMIT durability, and a log whose version predates
+   * attempt records only counts attempts in memory.
+   * 
+   * @return The attempts of the event, including this one.
+   */
+  public Attempts recordFailedAttempt(long eventId) throws IOException {
+    writeLock.lock();
+    try {
+      checkOpen();
+      Attempts attempts = state.attempted(eventId, System.currentTimeMillis());
+      if (!batchRecords) {
+        return attempts;
+      }
+      record.reset();
+      writeType(record, TYPE_ATTEMPT);
+      writeRelativeId(record, eventId);
+      writeCount(record, attempts.getCount());
+      if (compact) {
+        WritableUtils.writeVLong(record, attempts.getFirstAttemptTime());
+      } else {
+        record.writeLong(attempts.getFirstAttemptTime());
+      }
+      writeRecord(record);
+      sync(commitDurability);
+      return attempts;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Writes any pending commits as a single commit block. Must be called while
+   * holding the write lock.
+   */
+  private void writeCommitBlock() throws IOException {
+    if (pendingCommitCount == 0) {
+      return;
+    }
+    Arrays.sort(pendingCommits, 0, pendingCommitCount);
+    int ranges = 1;
+    for (int i = 1; i < pendingCommitCount; i++) {
+      if (pendingCommits[i] != pendingCommits[i - 1] + 1) {
+        ranges++;
+      }
+    }
+    record.reset();
+    writeType(record, TYPE_COMMIT_BLOCK);
+    writeCount(record, ranges);
+    int start = 0;
+    for (int i = 1; i <= pendingCommitCount; i++) {
+      if (i == pendingCommitCount
+          || pendingCommits[i] != pendingCommits[i - 1] + 1) {
+        writeRelativeId(record, pendingCommits[start]);
+        writeCount(record, i - start);
+        start = i;
+      }
+    }
+    writeRecord(record);
+    pendingCommitCount = 0;
+  }
+
   public String getPath() {
     return location;
   }
 
-  public int begin(EVENT event) throws IOException, NeedsRotationException {
+  public long begin(EVENT event) throws IOException, NeedsRotationException {
+    if (stagingSlots > 0) {
+      return getRing().begin(event);
+    }
+    return beginDirect(event, 0);
+  }
+
+  /**
+   * Begins an event that merges uncommitted events of this log, with the time
+   * the first of them was begun, so that merging does not make the backlog
+   * look younger than it is. The record is written directly rather than
+   * staged, so a log that is only being retried never starts a writer thread.
+   * 
+   * @param firstId
+   *          The ID of the first of the events that were merged.
+   * @throws IOException
+   *           If the log stages its BEGIN records, which take their IDs from
+   *           the ring.
+   */
+  public long beginMerged(EVENT merged, long firstId) throws IOException,
+      NeedsRotationException {
+    if (ring != null) {
+      throw new IOException("Cannot begin a merged event in " + location
+          + " while it stages BEGIN records.");
+    }
+    return beginDirect(merged, firstId);
+  }
+
+  /**
+   * Encodes and writes a BEGIN record on the calling thread.
+   * 
+   * @param firstId
+   *          The ID of an uncommitted event whose begin time the event takes,
+   *          or <tt>0</tt> for the current time.
+   */
+  private long beginDirect(EVENT event, long firstId) throws IOException,
+      NeedsRotationException {
+    DataOutputBuffer encoded = beginBuffers.get();
+    encoded.reset();
+    // the type and ID are filled in at the end of this space once the ID is
+    // known
+    encoded.write(BEGIN_PREFIX_SPACE);
+    // TODO: support other types besides writable
+    ((Writable) event).write(encoded);
+    long beginTime = beginTime();
     writeLock.lock();
     try {
       if (needsRotation()) {
         throw new NeedsRotationException();
       }
-      int eventId = ++counter;
-      output.writeInt(TYPE_BEGIN);
-      output.writeInt(eventId);
-      // TODO: support other types besides writable
-      ((Writable) event).write(output);
-      output.hsync();
-      uncommittedEvents.put(eventId, event);
+      checkOpen();
+      if (firstId > 0 && state.getBeginTime(firstId) != 0) {
+        beginTime = state.getBeginTime(firstId);
+      }
+      long eventId = ++counter;
+      record.reset();
+      writeBeginPrefix(record, eventId, beginTime);
+      int from = MAX_BEGIN_PREFIX - record.getLength();
+      byte[] data = encoded.getData();
+      System.arraycopy(record.getData(), 0, data, from, record.getLength());
+      writeSyncMarkIfDue();
+      long offset = positionBase + output.getPos();
+      output.write(data, from, encoded.getLength() - from);
+      sync(beginDurability);
+      state.begin(eventId, event, offset, beginTime);
       return eventId;
+    } finally {
+      writeLock.unlock();
+      if (encoded.getData().length > MAX_RETAINED_BUFFER) {
+        beginBuffers.remove();
+      }
+    }
+  }
+
+  /**
+   * Begins several events with one write and one sync. With staging slots the
+   * events are staged one at a time instead. If the log fills up part way
+   * through, only the events that fit are begun, and the rest have to be begun
+   * in the next log.
+   * 
+   * @return The IDs of the events that were begun, in order.
+   * @throws NeedsRotationException
+   *           If not even the first event fits.
+   */
+  public long[] beginAll(List<EVENT> events) throws IOException,
+      NeedsRotationException {
+    long[] ids = new long[events.size()];
+    if (stagingSlots > 0) {
+      for (int i = 0; i < ids.length; i++) {
+        try {
+          ids[i] = getRing().begin(events.get(i));
+        } catch (NeedsRotationException e) {
+          if (i == 0) {
+            throw e;
+          }
+          return Arrays.copyOf(ids, i);
+        }
+      }
+      return ids;
+    }
+    DataOutputBuffer encoded = beginBuffers.get();
+    encoded.reset();
+    int[] ends = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      encoded.write(BEGIN_PREFIX_SPACE);
+      ((Writable) events.get(i)).write(encoded);
+      ends[i] = encoded.getLength();
+    }
+    long beginTime = beginTime();
+    writeLock.lock();
+    try {
+      if (needsRotation()) {
+        throw new NeedsRotationException();
+      }
+      checkOpen();
+      int fits = (int) Math.min(ids.length, getMaxId() - counter);
+      byte[] data = encoded.getData();
+      int start = 0;
+      for (int i = 0; i < fits; i++) {
+        ids[i] = ++counter;
+        record.reset();
+        writeBeginPrefix(record, ids[i], beginTime);
+        int from = start + MAX_BEGIN_PREFIX - record.getLength();
+        System.arraycopy(record.getData(), 0, data, from, record.getLength());
+        writeSyncMarkIfDue();
+        long offset = positionBase + output.getPos();
+        output.write(data, from, ends[i] - from);
+        state.begin(ids[i], events.get(i), offset, beginTime);
+        start = ends[i];
+      }
+      sync(beginDurability);
+      return fits == ids.length ? ids : Arrays.copyOf(ids, fits);
+    } finally {
+      writeLock.unlock();
+      if (encoded.getData().length > MAX_RETAINED_BUFFER) {
+        beginBuffers.remove();
+      }
+    }
+  }
+
+  /**
+   * @return The ring BEGIN records are staged in, which is started with the
+   *         first event so that logs that are only being retried do not get a
+   *         writer thread.
+   */
+  private RecordRing<EVENT> getRing() throws IOException {
+    synchronized (ringLock) {
+      if (ring == null) {
+        if (ringClosed) {
+          throw new IOException("Write ahead log " + location
+              + " is not open.");
+        }
+        writeLock.lock();
+        try {
+          checkOpen();
+          ring = new RecordRing<EVENT>(this, stagingSlots, counter);
+        } finally {
+          writeLock.unlock();
+        }
+      }
+      return ring;
+    }
+  }
+
+  /**
+   * Appends the BEGIN records staged in a ring from one sequence number to
+   * another, inclusive, and syncs them once with the BEGIN durability. Called
+   * by the writer thread of the ring.
+   */
+  void appendStaged(RecordRing<EVENT> staged, long from, long to)
+      throws IOException {
+    writeLock.lock();
+    try {
+      checkOpen();
+      for (long sequence = from; sequence <= to; sequence++) {
+        EVENT event = staged.getEvent(sequence);
+        if (event == null) {
+          continue;
+        }
+        DataOutputBuffer encoded = staged.getRecord(sequence);
+        writeSyncMarkIfDue();
+        long offset = positionBase + output.getPos();
+        output.write(encoded.getData(), 0, encoded.getLength());
+        counter = staged.getId(sequence);
+        state.begin(counter, event, offset, staged.getBeginTime(sequence));
+      }
+      sync(beginDurability);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Pushes the records written so far as far towards the disk as the given
+   * durability level requires. Must be called while holding the write lock.
+   */
+  private void sync(Durability durability) throws IOException {
+    long now = System.currentTimeMillis();
+    if (durability.isSyncDue(lastSyncTime, output.getPos() - syncedPosition,
+        now)) {
+      output.hsync();
+      lastSyncTime = now;
+      syncedPosition = output.getPos();
+    } else {
+      output.hflush();
+    }
+    appendNotifier.appended();
+  }
+
+  /**
+   * Syncs records that have waited longer than the interval because nothing
+   * has been written since. A log that is being written to is left to the
+   * writer, which checks the interval itself.
+   */
+  private void syncIfIdle(long intervalMillis) {
+    if (!writeLock.tryLock()) {
+      return;
+    }
+    try {
+      long now = System.currentTimeMillis();
+      if (output != null && output.getPos() > syncedPosition
+          && now - lastSyncTime >= intervalMillis) {
+        output.hsync();
+        lastSyncTime = now;
+        syncedPosition = output.getPos();
+      }
+    } catch (IOException e) {
+      WriteAheadLogManager.LOG.warn("Unable to sync " + location, e);
     } finally {
       writeLock.unlock();
     }
   }
 
   public boolean needsRotation() {
-    return counter == Integer.MAX_VALUE || counter < 0;
+    RecordRing<EVENT> staged = ring;
+    return counter == getMaxId() || counter < 0
+        || (staged != null && staged.hasFailed());
+  }
+
+  /**
+   * @return The largest event ID the format of the log can hold.
+   */
+  long getMaxId() {
+    return compact ? Long.MAX_VALUE : Integer.MAX_VALUE;
   }
 
+  /**
+   * Closes the log. If the log still has uncommitted events a summary is
+   * written next to it so that it can be reopened quickly, otherwise any
+   * previous summary is removed.
+   */
   public void close() throws IOException {
+    writeLock.lock();
+    try {
+      closeRequested = true;
+      if (pins > 0) {
+        // the last attempt to unpin the log closes it
+        return;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    closeUnpinned();
+  }
+
+  private void closeUnpinned() throws IOException {
+    if (syncTask != null) {
+      syncTask.cancel(false);
+    }
+    if (flushTask != null) {
+      flushTask.cancel(false);
+    }
+    RecordRing<EVENT> staged;
+    synchronized (ringLock) {
+      staged = ring;
+      ringClosed = true;
+    }
+    if (staged != null) {
+      // the writer needs the write lock to finish writing staged records
+      staged.close();
+    }
     writeLock.lock();
     try {
       if (output != null) {
+        writeCommitBlock();
+        if (output.getPos() > syncedPosition) {
+          output.hsync();
+          appendNotifier.appended();
+        }
+        long watermark = positionBase + output.getPos();
         output.close();
+        output = null;
+        if (isFullyCommitted()) {
+          LogSummary.delete(storage, path);
+        } else {
+          new LogSummary(watermark, counter, state).store(storage, path);
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Keeps the log open while an event of it is being attempted without
+   * rotation being held off, so that a rotation in the meantime only closes it
+   * once the attempt is over.
+   * 
+   * @return <tt>false</tt> if the log has already been closed.
+   */
+  public boolean pin() {
+    writeLock.lock();
+    try {
+      if (closeRequested) {
+        return false;
       }
+      pins++;
+      return true;
     } finally {
       writeLock.unlock();
     }
   }
 
   /**
-   * Returns a deep copy of the uncommitted events for this write ahead log at
-   * the time of method invocation.
+   * Releases a {@link #pin()}, and closes the log if it was closed while it
+   * was pinned.
    * 
-   * @return An iterable copy of the uncommitted events for this write ahead
-   *         log.
+   * @return <tt>true</tt> if this closed the log.
    */
-  public Iterable<Entry<Integer, EVENT>> getUncommittedEvents() {
+  public boolean unpin() throws IOException {
     writeLock.lock();
     try {
-      return HashIntObjMaps.newImmutableMap(uncommittedEvents).entrySet();
+      if (--pins > 0 || !closeRequested) {
+        return false;
+      }
     } finally {
       writeLock.unlock();
     }
+    closeUnpinned();
+    return true;
+  }
+
+  /**
+   * @return <tt>true</tt> once the log has been closed, and not just asked to
+   *         close while it is pinned.
+   */
+  public boolean isClosed() {
+    writeLock.lock();
+    try {
+      return closeRequested && pins == 0;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Follows the file of the log to the name rotation has given it, while the
+   * log is in use without rotation being held off.
+   */
+  void moved(Path newPath) {
+    writeLock.lock();
+    try {
+      path = newPath;
+      location = newPath.toUri().toString();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Returns a copy of the uncommitted events for this write ahead log at the
+   * time of method invocation.
+   * 
+   * @return A copy of the uncommitted events for this write ahead log.
+   */
+  public UncommittedEvents<EVENT> getUncommittedEvents() {
+    writeLock.lock();
+    try {
+      return new UncommittedEvents<EVENT>(state.getEvents());
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of events in the log that have not been committed.
+   */
+  public int getUncommittedCount() {
+    writeLock.lock();
+    try {
+      return state.size();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @return The earliest time an uncommitted event of the log was posted, or
+   *         <tt>0</tt> if the log is not timestamped or fully committed.
+   */
+  public long getOldestBeginTime() {
+    writeLock.lock();
+    try {
+      return state.getOldestBeginTime();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @return The time from BEGIN to COMMIT of the events committed since the
+   *         log was opened, if it is timestamped.
+   */
+  public LatencyDistribution getCommitLatency() {
+    return commitLatency;
   }
 
   public boolean isFullyCommitted() {
-    return uncommittedEvents.size() == 0;
+    return state.isEmpty();
   }
 
-  public int getCounter() {
+  public long getCounter() {
     return counter;
   }
 
+  /**
+   * @return The sync marker of the log, which identifies it whatever it is
+   *         renamed to, or <tt>null</tt> if the log predates sync markers.
+   */
+  public byte[] getSyncMarker() {
+    return syncMarker;
+  }
+
 }
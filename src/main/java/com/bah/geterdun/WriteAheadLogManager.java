@@ -1,21 +1,22 @@
 package com.bah.geterdun;
 
-import static com.google.common.collect.Lists.reverse;
-import static com.google.common.util.concurrent.Uninterruptibles.joinUninterruptibly;
-import static java.util.Arrays.asList;
-
 import java.io.Closeable;
 import java.io.IOException;
 import java.security.SecureRandom;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.locks.Condition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.slf4j.Logger;
@@ -23,9 +24,8 @@ import org.slf4j.LoggerFactory;
 
 class WriteAheadLogManager<EVENT> implements Closeable {
 
-  private class LogRotatationTimer extends TimerTask {
+  private class LogRotatationTimer implements Runnable {
 
-    @Override
     public void run() {
       try {
         if (LOG.isDebugEnabled()) {
@@ -44,48 +44,208 @@ class WriteAheadLogManager<EVENT> implements Closeable {
 
   }
 
-  private class CleanupThread extends Thread {
-    {
-      this.setName("GeterDun log retrier");
-      this.setDaemon(true);
+  /**
+   * One cleanup pass, which queues itself again while there are old logs left
+   * or the logs have been rotated since it started.
+   */
+  private class CleanupPass implements Runnable {
+
+    public void run() {
+      boolean more = false;
+      try {
+        synchronized (cleanupLock) {
+          cleanupRequested = false;
+        }
+        if (!stopCleanup) {
+          more = retrier.cleanup(WriteAheadLogManager.this);
+        }
+      } catch (RuntimeException e) {
+        LOG.error("Unable to clean up " + path, e);
+      }
+      boolean again;
+      synchronized (cleanupLock) {
+        again = !stopCleanup && (more || cleanupRequested);
+        if (!again) {
+          cleanupScheduled = false;
+          cleanupLock.notifyAll();
+        }
+      }
+      if (again) {
+        submitCleanup();
+      }
     }
+  }
+
+  /**
+   * Replicates the local logs of a tiered manager.
+   */
+  private class ReplicationTimer implements Runnable {
 
-    @Override
     public void run() {
-      while (!stopCleanup) {
-        retrier.cleanup(WriteAheadLogManager.this);
-        Thread.yield();
+      if (!stopCleanup) {
+        replicate();
       }
     }
   }
 
-  static final Timer logRotator = new Timer(
-      "Write ahead logging rotation thread", true);
   static final Logger LOG = LoggerFactory.getLogger(WriteAheadLogManager.class);
+  static final String CURRENT = "part.current";
+  private static final PathFilter LOGS = new PathFilter() {
+    public boolean accept(Path path) {
+      return path.getName().startsWith("part.");
+    }
+  };
+  /**
+   * Orders logs from oldest to newest: logs restored from the remote location,
+   * whose age is unknown, then the numbered logs, then the current log.
+   */
+  private static final Comparator<FileStatus> AGE = new Comparator<FileStatus>() {
+    public int compare(FileStatus a, FileStatus b) {
+      return compareAge(a.getPath(), b.getPath());
+    }
+  };
   private final Path path;
-  private final FileSystem fs;
+  private final LogStorage storage;
   private WriteAheadLog<EVENT> currentLog;
   private final ReadWriteLock currentLogLock = new ReentrantReadWriteLock();
-  private final Condition logsRotated = currentLogLock.writeLock()
-      .newCondition();
   private final WriteAheadLog.Factory<EVENT> logFactory;
   private final Retrier<EVENT> retrier;
   private final SecureRandom random = new SecureRandom();
-  private final CleanupThread cleanupThread;
-  private final LogRotatationTimer rotationTimerTask;
-  private boolean stopCleanup = false;
+  private final GeterDunRuntime runtime;
+  private final CleanupPass cleanupPass = new CleanupPass();
+  private final Object cleanupLock = new Object();
+  /** Whether a cleanup pass is queued or running, guarded by cleanupLock. */
+  private boolean cleanupScheduled;
+  /** Whether another pass is needed after the current one. */
+  private boolean cleanupRequested;
+  private ScheduledFuture<?> rotationTimerTask;
+  private final LogShipper shipper;
+  private ScheduledFuture<?> replicationTimerTask;
+  private volatile boolean stopCleanup = false;
+  private final Lane lane;
+  private final KeyedDispatcher<EVENT> dispatcher;
+  /**
+   * The time the oldest uncommitted event of each old log was posted, by the
+   * name of the log, as of the last time the log was closed.
+   */
+  private final Map<String, Long> oldestBeginTimes = new ConcurrentHashMap<String, Long>();
+  /** The old log that was last handed out in age order. */
+  private Path lastOldLog;
+  /**
+   * The sync markers of the fully committed logs that are kept because a
+   * {@link ChangeFeed} has yet to read them, by the name of the log.
+   */
+  private final Map<String, byte[]> retainedLogs = new ConcurrentHashMap<String, byte[]>();
+  /**
+   * The logs that are used without rotation being held off, by name: the old
+   * logs of a cleanup pass in key order, and rotated out logs whose close
+   * waits for a pinned attempt. Rotation renames them along with their files,
+   * and they are not handed out as old logs.
+   */
+  private final ConcurrentMap<String, WriteAheadLog<EVENT>> logsInUse = new ConcurrentHashMap<String, WriteAheadLog<EVENT>>();
+  /** The number of times the logs have been rotated, and so renamed. */
+  private volatile long rotations;
 
   WriteAheadLogManager(String location, long frequency,
       WriteAheadLog.Factory<EVENT> logFactory, Retrier<EVENT> retrier,
       CorruptionHandler corruptionHandler) throws IOException {
-    path = new Path(location);
+    this(location, frequency, logFactory, retrier, corruptionHandler,
+        new Lane(Lane.DEFAULT, 1), GeterDunRuntime.getDefault(), null, 0, null);
+  }
+
+  /**
+   * @param location
+   *          Where the logs are written, which for a tiered manager is the
+   *          local location.
+   * @param shipper
+   *          Replicates the logs of a tiered manager, or <tt>null</tt>.
+   * @param replicationInterval
+   *          The number of milliseconds between replication passes.
+   * @param dispatcher
+   *          Processes the events of the lane in order by key, or
+   *          <tt>null</tt> if events are not ordered.
+   */
+  WriteAheadLogManager(String location, long frequency,
+      WriteAheadLog.Factory<EVENT> logFactory, Retrier<EVENT> retrier,
+      CorruptionHandler corruptionHandler, Lane lane, GeterDunRuntime runtime,
+      LogShipper shipper, long replicationInterval,
+      KeyedDispatcher<EVENT> dispatcher) throws IOException {
+    this.lane = lane;
+    this.dispatcher = dispatcher;
+    if (dispatcher != null) {
+      dispatcher.attach(this);
+    }
+    this.runtime = runtime;
+    this.shipper = shipper;
+    path = new Path(lane.getLocation(location));
     this.retrier = retrier;
     this.logFactory = logFactory;
-    fs = path.getFileSystem(new Configuration());
+    storage = logFactory.getIoContext().getStorage(path);
+    storage.mkdirs(path);
+    if (shipper != null) {
+      shipper.reconcile();
+    }
     rotateLogs();
-    rotationTimerTask = new LogRotatationTimer();
-    logRotator.scheduleAtFixedRate(rotationTimerTask, frequency, frequency);
-    (cleanupThread = new CleanupThread()).start();
+    rotationTimerTask = runtime.scheduleRotation(new LogRotatationTimer(),
+        frequency);
+    if (shipper != null) {
+      replicationTimerTask = runtime.scheduleReplication(new ReplicationTimer(),
+          replicationInterval);
+    }
+  }
+
+  public Lane getLane() {
+    return lane;
+  }
+
+  /**
+   * @return The dispatcher that orders events by key, or <tt>null</tt>.
+   */
+  public KeyedDispatcher<EVENT> getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * @return The directory of the logs of the lane.
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  public LogStorage getStorage() {
+    return storage;
+  }
+
+  public WriteAheadLog.Factory<EVENT> getLogFactory() {
+    return logFactory;
+  }
+
+  /**
+   * @return The number of times the logs have been rotated, which only
+   *         changes while rotation is not paused.
+   */
+  public long getRotations() {
+    return rotations;
+  }
+
+  private static int compareAge(Path a, Path b) {
+    long ageA = age(a), ageB = age(b);
+    if (ageA != ageB) {
+      return ageA < ageB ? -1 : 1;
+    }
+    return a.getName().compareTo(b.getName());
+  }
+
+  private static long age(Path log) {
+    String name = log.getName();
+    if (name.equals(CURRENT)) {
+      return Long.MAX_VALUE;
+    }
+    try {
+      return Long.parseLong(name.substring("part.".length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
   }
 
   public void rotateLogs() throws IOException {
@@ -94,41 +254,123 @@ class WriteAheadLogManager<EVENT> implements Closeable {
       LOG.debug("Rotating logs");
     }
     try {
+      if (dispatcher != null) {
+        dispatcher.detach();
+      }
       // there will be no current log on the first rotation
       if (currentLog != null) {
         currentLog.close();
-        // if the current log is fully committed there's no reason to hang on to
-        // it
-        if (currentLog.isFullyCommitted()) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Current log was fully committed.");
+        if (!currentLog.isClosed()) {
+          // an attempt has it pinned, and closes it when it finishes
+          logsInUse.put(CURRENT, currentLog);
+        } else {
+          logClosed(currentLog);
+          // if the current log is fully committed there's no reason to hang on
+          // to it
+          if (currentLog.isFullyCommitted()) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Current log was fully committed.");
+            }
+            deleteCommittedLog(currentLog);
           }
-          fs.delete(new Path(currentLog.getPath()), false);
         }
       }
+      rotations++;
 
-      FileStatus[] fileStatuses = fs.listStatus(path, new PathFilter() {
-        public boolean accept(Path path) {
-          return path.getName().startsWith("part.");
-        }
-      });
-      int part = fileStatuses.length - 1;
+      FileStatus[] fileStatuses = storage.listStatus(path, LOGS);
+      Arrays.sort(fileStatuses, AGE);
       if (LOG.isDebugEnabled()) {
         LOG.debug("Found " + fileStatuses.length + " uncommitted logs.");
       }
-      for (FileStatus status : reverse(asList(fileStatuses))) {
-        Path newPath = new Path(path, "part." + part--);
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Renaming " + status.getPath() + " to " + newPath);
+      // number the logs by age without gaps. Logs that move up are renamed
+      // newest first and then logs that move down oldest first, so that no
+      // rename replaces a log that has not been moved yet
+      for (int part = fileStatuses.length - 1; part >= 0; part--) {
+        if (age(fileStatuses[part].getPath()) < part) {
+          renameLog(fileStatuses[part].getPath(), part);
+        }
+      }
+      for (int part = 0; part < fileStatuses.length; part++) {
+        if (age(fileStatuses[part].getPath()) > part) {
+          renameLog(fileStatuses[part].getPath(), part);
         }
-        fs.rename(status.getPath(), newPath);
       }
-      currentLog = logFactory.getLog(new Path(path, "part.current").toUri()
+      currentLog = logFactory.getCurrentLog(new Path(path, CURRENT).toUri()
           .toString());
-      logsRotated.signalAll();
     } finally {
       currentLogLock.writeLock().unlock();
     }
+    requestCleanup();
+  }
+
+  /**
+   * Rotates the logs if a log that refused an event because it was full is
+   * still the current log, so that the threads that found it full rotate it
+   * only once. Rotation must not be paused by the calling thread.
+   */
+  public void rotateFullLog(WriteAheadLog<EVENT> full) throws IOException {
+    currentLogLock.writeLock().lock();
+    try {
+      if (currentLog == full) {
+        rotateLogs();
+      }
+    } finally {
+      currentLogLock.writeLock().unlock();
+    }
+  }
+
+  private void renameLog(Path log, int part) throws IOException {
+    Path newPath = new Path(path, "part." + part);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Renaming " + log + " to " + newPath);
+    }
+    storage.rename(log, newPath);
+    Long oldest = oldestBeginTimes.remove(log.getName());
+    if (oldest != null) {
+      oldestBeginTimes.put(newPath.getName(), oldest);
+    }
+    byte[] retained = retainedLogs.remove(log.getName());
+    if (retained != null) {
+      retainedLogs.put(newPath.getName(), retained);
+    }
+    WriteAheadLog<EVENT> inUse = logsInUse.remove(log.getName());
+    if (inUse != null) {
+      inUse.moved(newPath);
+      logsInUse.put(newPath.getName(), inUse);
+    }
+    Path summary = LogSummary.summaryPath(log);
+    if (storage.exists(summary)) {
+      storage.rename(summary, LogSummary.summaryPath(newPath));
+    }
+  }
+
+  /**
+   * Makes sure a cleanup pass will run after the current one, if any.
+   */
+  private void requestCleanup() {
+    synchronized (cleanupLock) {
+      if (stopCleanup) {
+        return;
+      }
+      cleanupRequested = true;
+      if (cleanupScheduled) {
+        return;
+      }
+      cleanupScheduled = true;
+    }
+    submitCleanup();
+  }
+
+  private void submitCleanup() {
+    try {
+      runtime.submitCleanup(cleanupPass);
+    } catch (RejectedExecutionException e) {
+      LOG.error("The runtime of " + path + " has been closed.");
+      synchronized (cleanupLock) {
+        cleanupScheduled = false;
+        cleanupLock.notifyAll();
+      }
+    }
   }
 
   /**
@@ -170,41 +412,361 @@ class WriteAheadLogManager<EVENT> implements Closeable {
   }
 
   public WriteAheadLog<EVENT> getRandomOldLog() throws IOException {
-    FileStatus[] fileStatuses = fs.listStatus(path, new PathFilter() {
-      public boolean accept(Path path) {
-        return path.getName().startsWith("part.")
-            && !path.getName().equals("part.current");
-      }
-    });
-    if (fileStatuses.length > 0) {
-      FileStatus fs = fileStatuses[random.nextInt(fileStatuses.length)];
-      return logFactory.getLog(fs.getPath().toUri().toString());
+    List<Path> logs = getOldLogs();
+    if (logs.size() > 0) {
+      return getLog(logs.get(random.nextInt(logs.size())));
     } else {
       return null;
     }
   }
 
-  public void waitUntilNextRotation() {
-    currentLogLock.writeLock().lock();
+  /**
+   * Hands out the old logs one per call from the oldest to the newest, and
+   * then starts again from the oldest, so that the oldest events are retried
+   * first without a log that keeps failing holding back the others. Called by
+   * the cleanup pass.
+   */
+  public WriteAheadLog<EVENT> getNextOldLog() throws IOException {
+    List<Path> logs = getOldLogs();
+    if (logs.isEmpty()) {
+      return null;
+    }
+    Path next = logs.get(0);
+    if (lastOldLog != null) {
+      for (Path log : logs) {
+        if (compareAge(log, lastOldLog) > 0) {
+          next = log;
+          break;
+        }
+      }
+    }
+    lastOldLog = next;
+    return getLog(next);
+  }
+
+  /**
+   * Remembers how old the oldest uncommitted event of a log that has just
+   * been closed is, so that the age of the backlog is known without opening
+   * every old log.
+   */
+  public void logClosed(WriteAheadLog<EVENT> log) {
+    String name = new Path(log.getPath()).getName();
+    long oldest = log.getOldestBeginTime();
+    if (oldest == 0) {
+      oldestBeginTimes.remove(name);
+    } else {
+      oldestBeginTimes.put(name, oldest);
+    }
+  }
+
+  /**
+   * @return The earliest time an uncommitted event of the lane was posted, or
+   *         <tt>0</tt> if none is known. Old logs count from the last time they
+   *         were retried, or rotated out, in this run.
+   */
+  public long getOldestBeginTime() {
+    long oldest;
+    pauseRotation();
     try {
-      if (!stopCleanup) {
-        logsRotated.awaitUninterruptibly();
+      oldest = currentLog == null ? 0 : currentLog.getOldestBeginTime();
+    } finally {
+      resumeRotation();
+    }
+    for (long time : oldestBeginTimes.values()) {
+      if (oldest == 0 || time < oldest) {
+        oldest = time;
       }
+    }
+    return oldest;
+  }
+
+  /**
+   * Lists the logs that have been rotated out and still have events to retry,
+   * from oldest to newest. Rotation must be paused while they are used.
+   */
+  public List<Path> getOldLogs() throws IOException {
+    List<Path> logs = new ArrayList<Path>();
+    for (FileStatus status : listLogs()) {
+      String name = status.getPath().getName();
+      if (!name.equals(CURRENT) && !retainedLogs.containsKey(name)
+          && !logsInUse.containsKey(name)) {
+        logs.add(status.getPath());
+      }
+    }
+    return logs;
+  }
+
+  /**
+   * Lists every log of the lane from oldest to newest, ending with the current
+   * log. Rotation must be paused while they are used.
+   */
+  public FileStatus[] listLogs() throws IOException {
+    FileStatus[] fileStatuses = storage.listStatus(path, LOGS);
+    Arrays.sort(fileStatuses, AGE);
+    return fileStatuses;
+  }
+
+  /**
+   * Deletes a closed log whose events have all been committed, unless a
+   * {@link ChangeFeed} has not read to its end yet, in which case the log is
+   * kept, but no longer retried, until every feed has saved a cursor past it.
+   */
+  public void deleteCommittedLog(WriteAheadLog<EVENT> log) throws IOException {
+    Path logPath = new Path(log.getPath());
+    byte[] syncMarker = log.getSyncMarker();
+    if (ChangeFeed.isNeeded(ChangeFeed.loadCursors(storage, path), syncMarker,
+        storage.getLength(logPath))) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Keeping " + logPath + " for change feeds.");
+      }
+      retainedLogs.put(logPath.getName(), syncMarker);
+      return;
+    }
+    storage.delete(logPath);
+    logsInUse.remove(logPath.getName(), log);
+  }
+
+  /**
+   * @return <tt>true</tt> if a log is in use without rotation being held off.
+   *         Rotation must be paused.
+   */
+  public boolean hasLogsInUse() {
+    return !logsInUse.isEmpty();
+  }
+
+  /**
+   * Opens the oldest old log that is not in use yet and marks it in use, so
+   * that its events can be retried without holding rotation off. It is
+   * renamed along with its file until it is released.
+   * 
+   * @return The log, or <tt>null</tt> if every old log is in use.
+   */
+  public WriteAheadLog<EVENT> useNextOldLog() throws IOException {
+    pauseRotation();
+    try {
+      List<Path> logs = getOldLogs();
+      if (logs.isEmpty()) {
+        return null;
+      }
+      WriteAheadLog<EVENT> log = getLog(logs.get(0));
+      logsInUse.put(logs.get(0).getName(), log);
+      return log;
     } finally {
-      currentLogLock.writeLock().unlock();
+      resumeRotation();
     }
   }
 
-  public void close() throws IOException {
-    currentLogLock.writeLock().lock();
+  /**
+   * Closes a log in use, and deletes it if it is fully committed. A log that
+   * is kept stays in use until it is released.
+   */
+  public void closeLogInUse(WriteAheadLog<EVENT> log) throws IOException {
+    pauseRotation();
     try {
-      stopCleanup = true;
-      rotationTimerTask.cancel();
-      logsRotated.signalAll();
+      log.close();
+      logClosed(log);
+      if (log.isFullyCommitted()) {
+        deleteCommittedLog(log);
+      }
     } finally {
-      currentLogLock.writeLock().unlock();
+      resumeRotation();
+    }
+  }
+
+  /**
+   * Stops following logs that were in use, so that they can be handed out
+   * again.
+   */
+  public void releaseLogs(List<WriteAheadLog<EVENT>> logs) {
+    pauseRotation();
+    try {
+      for (WriteAheadLog<EVENT> log : logs) {
+        logsInUse.remove(new Path(log.getPath()).getName(), log);
+      }
+    } finally {
+      resumeRotation();
+    }
+  }
+
+  /**
+   * Releases a {@link WriteAheadLog#pin() pin} on a log, and if rotation closed
+   * the log while it was pinned, finishes rotating it out.
+   */
+  public void unpin(WriteAheadLog<EVENT> log) throws IOException {
+    boolean closed;
+    pauseRotation();
+    try {
+      // the summary is written where the log is now
+      closed = log.unpin();
+      if (closed) {
+        logsInUse.remove(new Path(log.getPath()).getName(), log);
+        logClosed(log);
+        if (log.isFullyCommitted()) {
+          deleteCommittedLog(log);
+        }
+      }
+    } finally {
+      resumeRotation();
+    }
+    if (closed) {
+      requestCleanup();
+    }
+  }
+
+  /**
+   * Deletes the logs kept for change feeds that every feed has now read past.
+   * Called after a feed saves its cursor.
+   */
+  public void releaseRetainedLogs() throws IOException {
+    if (retainedLogs.isEmpty()) {
+      return;
     }
-    joinUninterruptibly(cleanupThread);
+    pauseRotation();
+    try {
+      List<Map<String, ChangeFeed.Position>> cursors = ChangeFeed.loadCursors(
+          storage, path);
+      for (Map.Entry<String, byte[]> retained : retainedLogs.entrySet()) {
+        Path logPath = new Path(path, retained.getKey());
+        if (!storage.exists(logPath)) {
+          retainedLogs.remove(retained.getKey());
+        } else if (!ChangeFeed.isNeeded(cursors, retained.getValue(),
+            storage.getLength(logPath))) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Change feeds have read " + logPath + ", deleting it.");
+          }
+          storage.delete(logPath);
+          retainedLogs.remove(retained.getKey());
+        }
+      }
+    } finally {
+      resumeRotation();
+    }
+  }
+
+  public WriteAheadLog<EVENT> getLog(Path log) throws IOException {
+    return logFactory.getLog(log.toUri().toString());
+  }
+
+  /**
+   * Ships what the logs have gained since the last pass to the remote
+   * location.
+   */
+  private void replicate() {
+    Map<String, FileStatus> logs;
+    pauseRotation();
+    try {
+      logs = shipper.listLocal();
+    } catch (IOException e) {
+      LOG.error("Unable to list logs to replicate in " + path, e);
+      return;
+    } finally {
+      resumeRotation();
+    }
+    try {
+      shipper.ship(logs);
+    } catch (IOException e) {
+      LOG.error("Unable to replicate " + path + " to " + shipper.getRemote(),
+          e);
+    }
+  }
+
+  /**
+   * @return <tt>true</tt> once the manager has started closing, so cleanup
+   *         passes should stop early.
+   */
+  public boolean isClosing() {
+    return stopCleanup;
+  }
+
+  public void close() throws IOException {
+    close(Long.MAX_VALUE);
+  }
+
+  /**
+   * Stops rotation and cleanup, and seals the current log by closing it, which
+   * writes its summary so the next start does not have to read it again.
+   * Cleanup passes stop after the attempts they have already started.
+   * 
+   * @param timeoutNanos
+   *          How long to wait for the cleanup pass to stop and for events being
+   *          processed inline to finish.
+   * @return <tt>false</tt> if the deadline passed first, in which case the
+   *         current log is left open rather than pulled out from under an
+   *         attempt, and is read again in full on the next start.
+   */
+  public boolean close(long timeoutNanos) throws IOException {
+    long start = System.nanoTime();
+    stopCleanup = true;
+    if (dispatcher != null) {
+      dispatcher.close();
+    }
+    if (rotationTimerTask != null) {
+      rotationTimerTask.cancel(false);
+    }
+    if (replicationTimerTask != null) {
+      replicationTimerTask.cancel(false);
+    }
+    boolean clean = true;
+    boolean interrupted = false;
+    synchronized (cleanupLock) {
+      while (cleanupScheduled) {
+        long remaining = remaining(start, timeoutNanos);
+        if (remaining <= 0) {
+          LOG.warn("Abandoning the cleanup pass of " + path);
+          clean = false;
+          break;
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(cleanupLock, remaining);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    boolean locked = false;
+    while (true) {
+      try {
+        locked = currentLogLock.writeLock().tryLock(
+            remaining(start, timeoutNanos), TimeUnit.NANOSECONDS);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (locked) {
+      try {
+        if (currentLog != null) {
+          currentLog.close();
+          if (!currentLog.isClosed()) {
+            LOG.warn("The current log of " + path
+                + " will be closed once the attempts that use it finish.");
+            logsInUse.put(CURRENT, currentLog);
+            clean = false;
+          } else if (currentLog.isFullyCommitted()) {
+            deleteCommittedLog(currentLog);
+          }
+        }
+      } finally {
+        currentLogLock.writeLock().unlock();
+      }
+    } else {
+      LOG.warn("Leaving the current log of " + path
+          + " open, events were still being processed.");
+      clean = false;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (shipper != null) {
+      // leave the remote copy as up to date as possible
+      replicate();
+    }
+    return clean;
+  }
+
+  private static long remaining(long start, long timeoutNanos) {
+    long elapsed = System.nanoTime() - start;
+    return elapsed >= timeoutNanos ? 0 : timeoutNanos - elapsed;
   }
 
 }
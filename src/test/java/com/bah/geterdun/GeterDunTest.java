@@ -4,9 +4,20 @@ import static com.bah.geterdun.GeterDun.geterDun;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.io.Writable;
 import org.junit.Assert;
@@ -15,6 +26,12 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 @RunWith(JUnit4.class)
 public class GeterDunTest {
@@ -156,6 +173,428 @@ public class GeterDunTest {
   }
   
   
+  @Test
+  public void sharesRuntimeBetweenInstances() throws Throwable {
+    final AtomicInteger processed = new AtomicInteger();
+    final boolean[] fail = { true };
+    EventProcessor<NothingWritable> processor = new EventProcessor<NothingWritable>() {
+      public boolean processEvent(NothingWritable event) throws Exception {
+        if (fail[0])
+          return false;
+        processed.incrementAndGet();
+        return true;
+      }
+    };
+    GeterDunRuntime runtime = new GeterDunRuntime(1, 1);
+    GeterDunOptions options = new GeterDunOptions().setRuntime(runtime);
+    List<GeterDun<NothingWritable>> geterDuns = new ArrayList<GeterDun<NothingWritable>>();
+    for (int i = 0; i < 3; i++) {
+      geterDuns.add(geterDun(NothingWritable.class, "file://"
+          + tempFolder.newFolder().getAbsolutePath(), processor,
+          new NullCorruptionHandler(), 500,
+          new NullFailureHandler<NothingWritable>(), options));
+    }
+    for (GeterDun<NothingWritable> geterDun : geterDuns) {
+      geterDun.geterDun(new NothingWritable());
+    }
+    fail[0] = false;
+    Thread.sleep(1500);
+    Assert.assertEquals(3, processed.get());
+    for (GeterDun<NothingWritable> geterDun : geterDuns) {
+      geterDun.close();
+    }
+    runtime.close();
+  }
+
+  @Test
+  public void timesOutHungAttempts() throws Throwable {
+    final CountDownLatch hung = new CountDownLatch(1);
+    final AtomicInteger processed = new AtomicInteger();
+    GeterDun<NothingWritable> geterDun = geterDun(NothingWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            hung.await();
+            processed.incrementAndGet();
+            return true;
+          }
+        }, new NullCorruptionHandler(), 500,
+        new NullFailureHandler<NothingWritable>(), new GeterDunOptions()
+            .setAttemptTimeout(100));
+    long start = System.currentTimeMillis();
+    geterDun.geterDun(new NothingWritable());
+    Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+    Assert.assertEquals(0, processed.get());
+    hung.countDown();
+    Thread.sleep(1000);
+    Assert.assertTrue(processed.get() >= 1);
+    geterDun.close();
+  }
+
+  @Test
+  public void commitsAttemptsThatSucceedAfterTheirDeadline() throws Throwable {
+    final AtomicInteger processed = new AtomicInteger();
+    GeterDun<NothingWritable> geterDun = geterDun(NothingWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            Thread.sleep(300);
+            processed.incrementAndGet();
+            return true;
+          }
+        }, new NullCorruptionHandler(), 60000,
+        new NullFailureHandler<NothingWritable>(), new GeterDunOptions()
+            .setAttemptTimeout(100).setMaxAttempts(1));
+    geterDun.geterDun(new NothingWritable());
+    Thread.sleep(600);
+    Assert.assertEquals(1, processed.get());
+    // the late success is committed instead of exhausting the attempts
+    Assert.assertEquals(0,
+        geterDun.replayDeadLetters(new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            return true;
+          }
+        }));
+    geterDun.close();
+  }
+
+  @Test
+  public void adaptsConcurrencyToDownstreamCapacity() throws Throwable {
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger peak = new AtomicInteger();
+    final AtomicInteger rejected = new AtomicInteger();
+    // rejects anything past four at a time, like an overloaded store
+    final GeterDun<NothingWritable> geterDun = geterDun(NothingWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            int concurrent = active.incrementAndGet();
+            try {
+              synchronized (peak) {
+                peak.set(Math.max(peak.get(), concurrent));
+              }
+              Thread.sleep(2);
+              if (concurrent > 4) {
+                rejected.incrementAndGet();
+                return false;
+              }
+              return true;
+            } finally {
+              active.decrementAndGet();
+            }
+          }
+        }, new NullCorruptionHandler(), 60000,
+        new NullFailureHandler<NothingWritable>(), new GeterDunOptions()
+            .setDurability(Durability.flush()).setMaxConcurrency(32));
+    ExecutorService posters = Executors.newFixedThreadPool(16);
+    List<Future<?>> posted = new ArrayList<Future<?>>();
+    for (int i = 0; i < 16; i++) {
+      posted.add(posters.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          for (int j = 0; j < 50; j++) {
+            geterDun.geterDun(new NothingWritable());
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<?> future : posted) {
+      future.get();
+    }
+    // sixteen posters without a limit would be rejected most of the time
+    Assert.assertTrue(peak.get() < 16);
+    Assert.assertTrue(rejected.get() < 16 * 50 / 2);
+    posters.shutdown();
+    geterDun.close();
+  }
+
+  @Test
+  public void limitsAttemptsThatOutliveTheirDeadline() throws Throwable {
+    final CountDownLatch hung = new CountDownLatch(1);
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger peak = new AtomicInteger();
+    final GeterDun<NothingWritable> geterDun = geterDun(NothingWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            int concurrent = active.incrementAndGet();
+            try {
+              synchronized (peak) {
+                peak.set(Math.max(peak.get(), concurrent));
+              }
+              hung.await();
+              return true;
+            } finally {
+              active.decrementAndGet();
+            }
+          }
+        }, new NullCorruptionHandler(), 60000,
+        new NullFailureHandler<NothingWritable>(), new GeterDunOptions()
+            .setAttemptTimeout(50).setMaxConcurrency(4));
+    ExecutorService posters = Executors.newFixedThreadPool(16);
+    List<Future<?>> posted = new ArrayList<Future<?>>();
+    for (int i = 0; i < 16; i++) {
+      posted.add(posters.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          geterDun.geterDun(new NothingWritable());
+          return null;
+        }
+      }));
+    }
+    Thread.sleep(500);
+    // timed out attempts keep their place in the limit while they hang
+    Assert.assertTrue(peak.get() <= 4);
+    hung.countDown();
+    for (Future<?> future : posted) {
+      future.get();
+    }
+    posters.shutdown();
+    geterDun.close();
+  }
+
+  @Test
+  public void processesEventsInOrderByKey() throws Throwable {
+    final Map<String, List<Integer>> processed = new HashMap<String, List<Integer>>();
+    final AtomicInteger attempts = new AtomicInteger();
+    final boolean[] down = { true };
+    GeterDun<SimpleWritable> geterDun = geterDun(SimpleWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            // key a is down, and every third attempt on the others fails
+            if ((event.getString().equals("a") && down[0])
+                || attempts.incrementAndGet() % 3 == 0) {
+              return false;
+            }
+            synchronized (processed) {
+              processed.get(event.getString()).add(event.getNumber());
+            }
+            return true;
+          }
+        }, new NullCorruptionHandler(), 300,
+        new NullFailureHandler<SimpleWritable>(), new GeterDunOptions()
+            .setDurability(Durability.flush()).setKeyRetryDelay(10)
+            .setKeyExtractor(new KeyExtractor<SimpleWritable>() {
+              public Object getKey(SimpleWritable event) {
+                return event.getString();
+              }
+            }));
+    String[] keys = { "a", "b", "c" };
+    for (String key : keys) {
+      processed.put(key, new ArrayList<Integer>());
+    }
+    // long enough to span a few rotations
+    for (int i = 0; i < 30; i++) {
+      for (String key : keys) {
+        SimpleWritable event = new SimpleWritable();
+        event.setNumber(i);
+        event.setString(key);
+        geterDun.geterDun(event);
+      }
+      Thread.sleep(20);
+    }
+    waitForInOrder(processed, "b", 30);
+    waitForInOrder(processed, "c", 30);
+    synchronized (processed) {
+      Assert.assertTrue(processed.get("a").isEmpty());
+    }
+    down[0] = false;
+    waitForInOrder(processed, "a", 30);
+    geterDun.close();
+  }
+
+  @Test
+  public void coalescesSupersededEvents() throws Throwable {
+    final List<String> processed = new ArrayList<String>();
+    final boolean[] down = { true };
+    GeterDun<SimpleWritable> geterDun = geterDun(SimpleWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            if (down[0]) {
+              return false;
+            }
+            synchronized (processed) {
+              processed.add(event.getString() + event.getNumber());
+            }
+            return true;
+          }
+        }, new NullCorruptionHandler(), 500,
+        new NullFailureHandler<SimpleWritable>(), new GeterDunOptions()
+            .setDurability(Durability.flush()).setCoalescer(
+                new Coalescer<SimpleWritable>() {
+                  public Object getKey(SimpleWritable event) {
+                    return event.getString();
+                  }
+
+                  public SimpleWritable merge(SimpleWritable older,
+                      SimpleWritable newer) {
+                    if (newer.getString().equals("a")) {
+                      return newer;
+                    }
+                    // a new event, which has to be logged
+                    SimpleWritable merged = new SimpleWritable();
+                    merged.setString(newer.getString());
+                    merged.setNumber(Math.max(older.getNumber(),
+                        newer.getNumber()));
+                    return merged;
+                  }
+                }));
+    for (int i = 0; i < 10; i++) {
+      for (String key : new String[] { "a", "b" }) {
+        SimpleWritable event = new SimpleWritable();
+        event.setNumber(i);
+        event.setString(key);
+        geterDun.geterDun(event);
+      }
+    }
+    down[0] = false;
+    for (int i = 0; i < 100; i++) {
+      synchronized (processed) {
+        if (processed.contains("a9") && processed.contains("b9")) {
+          break;
+        }
+      }
+      Thread.sleep(50);
+    }
+    synchronized (processed) {
+      Assert.assertTrue(processed.toString(), processed.contains("a9"));
+      Assert.assertTrue(processed.toString(), processed.contains("b9"));
+      // one per key, or two if a rotation split them between logs
+      Assert.assertTrue(processed.toString(), processed.size() <= 4);
+    }
+    geterDun.close();
+  }
+
+  /**
+   * Waits for a key to have processed every number up to <tt>count</tt>, in
+   * order apart from repeats of an event whose commit was lost.
+   */
+  private static void waitForInOrder(Map<String, List<Integer>> processed,
+      String key, int count) throws InterruptedException {
+    List<Integer> numbers = null;
+    for (int i = 0; i < 200; i++) {
+      synchronized (processed) {
+        numbers = new ArrayList<Integer>(processed.get(key));
+      }
+      if (numbers.size() >= count && numbers.get(numbers.size() - 1) == count - 1) {
+        break;
+      }
+      Thread.sleep(50);
+    }
+    int next = 0;
+    for (int number : numbers) {
+      if (number != next - 1) {
+        Assert.assertEquals("Out of order for " + key + ": " + numbers, next,
+            number);
+        next++;
+      }
+    }
+    Assert.assertEquals(count, next);
+  }
+
+  @Test
+  public void ingestsFromAPublisherWithinItsDemand() throws Throwable {
+    final AtomicInteger processed = new AtomicInteger();
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger peak = new AtomicInteger();
+    GeterDun<NothingWritable> geterDun = geterDun(NothingWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            int concurrent = active.incrementAndGet();
+            synchronized (peak) {
+              peak.set(Math.max(peak.get(), concurrent));
+            }
+            Thread.sleep(1);
+            active.decrementAndGet();
+            processed.incrementAndGet();
+            return true;
+          }
+        }, new NullCorruptionHandler(), 60000,
+        new NullFailureHandler<NothingWritable>(), new GeterDunOptions()
+            .setDurability(Durability.flush()));
+    final int total = 500;
+    final long[] demand = new long[1];
+    final long[] worstDemand = new long[1];
+    final CountDownLatch completed = new CountDownLatch(1);
+    // emits on the requesting thread, as many publishers do
+    Publisher<NothingWritable> publisher = new Publisher<NothingWritable>() {
+      public void subscribe(final Subscriber<? super NothingWritable> s) {
+        s.onSubscribe(new Subscription() {
+          private int sent;
+
+          public synchronized void request(long n) {
+            demand[0] += n;
+            worstDemand[0] = Math.max(worstDemand[0], demand[0]);
+            while (demand[0] > 0 && sent < total) {
+              demand[0]--;
+              sent++;
+              s.onNext(new NothingWritable());
+              if (sent == total) {
+                s.onComplete();
+                completed.countDown();
+              }
+            }
+          }
+
+          public void cancel() {
+          }
+        });
+      }
+    };
+    publisher.subscribe(geterDun.newSubscriber(16, 1000));
+    completed.await();
+    for (int i = 0; i < 100 && processed.get() < total; i++) {
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(total, processed.get());
+    Assert.assertTrue(worstDemand[0] <= 16);
+    Assert.assertTrue(peak.get() <= 16);
+    geterDun.close();
+  }
+
+  @Test
+  public void restoresReplicatedLogs() throws Throwable {
+    final AtomicInteger processed = new AtomicInteger();
+    File remote = tempFolder.newFolder();
+    File local = tempFolder.newFolder();
+    GeterDunOptions options = new GeterDunOptions()
+        .setLocalLocation("file://" + local.getAbsolutePath())
+        .setReplicationInterval(100);
+    GeterDun<NothingWritable> geterDun = geterDun(NothingWritable.class,
+        "file://" + remote.getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            return false;
+          }
+        }, new NullCorruptionHandler(), 200,
+        new NullFailureHandler<NothingWritable>(), options);
+    for (int i = 0; i < 3; i++) {
+      geterDun.geterDun(new NothingWritable());
+    }
+    Thread.sleep(1000);
+    geterDun.close();
+    Assert.assertTrue(remote.list().length > 0);
+
+    // the node is replaced, along with its local disk
+    for (File file : local.listFiles()) {
+      file.delete();
+    }
+    geterDun = geterDun(NothingWritable.class,
+        "file://" + remote.getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            processed.incrementAndGet();
+            return true;
+          }
+        }, new NullCorruptionHandler(), 200,
+        new NullFailureHandler<NothingWritable>(), options);
+    Thread.sleep(1000);
+    Assert.assertEquals(3, processed.get());
+    geterDun.close();
+  }
+
   @Test
   public void successfullyReopens() throws Throwable {
     final Map<Integer, SimpleWritable> events = new HashMap<Integer, GeterDunTest.SimpleWritable>();
@@ -194,4 +633,278 @@ public class GeterDunTest {
     geterDun.close();
   }
 
+  @Test
+  public void sealsTheCurrentLogOnClose() throws Throwable {
+    File folder = tempFolder.newFolder();
+    String location = "file://" + folder.getAbsolutePath();
+    GeterDun<SimpleWritable> geterDun = geterDun(SimpleWritable.class,
+        location, new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            return false;
+          }
+        }, new NullCorruptionHandler(), 60000,
+        new NullFailureHandler<SimpleWritable>());
+    for (int i = 0; i < 3; i++) {
+      SimpleWritable sw = new SimpleWritable();
+      sw.setNumber(i);
+      sw.setString(Integer.toString(i));
+      geterDun.geterDun(sw);
+    }
+    Assert.assertTrue(geterDun.close(5, TimeUnit.SECONDS));
+    Assert.assertTrue(new File(folder, "summary.part.current").exists());
+    try {
+      geterDun.geterDun(new SimpleWritable());
+      Assert.fail("A closed GeterDun took an event.");
+    } catch (GeterDun.CantGeterDunException e) {
+      // expected
+    }
+  }
+
+  private static GeterDun<SimpleWritable> committingGeterDun(String location)
+      throws Throwable {
+    return geterDun(SimpleWritable.class, location,
+        new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            return true;
+          }
+        }, new NullCorruptionHandler(), 60000,
+        new NullFailureHandler<SimpleWritable>());
+  }
+
+  private static List<ChangeFeed.Change<SimpleWritable>> poll(
+      ChangeFeed<SimpleWritable> feed, int count) throws Throwable {
+    List<ChangeFeed.Change<SimpleWritable>> changes = new ArrayList<ChangeFeed.Change<SimpleWritable>>();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (changes.size() < count && System.currentTimeMillis() < deadline) {
+      changes.addAll(feed.poll(count - changes.size(), 100,
+          TimeUnit.MILLISECONDS));
+    }
+    return changes;
+  }
+
+  @Test
+  public void feedsLoggedEventsFromACursor() throws Throwable {
+    File folder = tempFolder.newFolder();
+    String location = "file://" + folder.getAbsolutePath();
+    GeterDun<SimpleWritable> geterDun = committingGeterDun(location);
+    ChangeFeed<SimpleWritable> feed = geterDun.openChangeFeed("audit", true);
+    for (int i = 0; i < 10; i++) {
+      SimpleWritable sw = new SimpleWritable();
+      sw.setNumber(i);
+      sw.setString(Integer.toString(i));
+      geterDun.geterDun(sw);
+    }
+    List<ChangeFeed.Change<SimpleWritable>> changes = poll(feed, 10);
+    Assert.assertEquals(10, changes.size());
+    for (int i = 0; i < 10; i += 2) {
+      Assert.assertEquals(ChangeFeed.Type.BEGIN, changes.get(i).getType());
+      Assert.assertEquals(i / 2, changes.get(i).getEvent().getNumber());
+      Assert.assertEquals(ChangeFeed.Type.COMMIT, changes.get(i + 1).getType());
+      Assert.assertEquals(changes.get(i).getId(), changes.get(i + 1).getId());
+    }
+    feed.checkpoint();
+    // the log is fully committed, but kept for the rest of the feed
+    geterDun.close();
+    Assert.assertTrue(new File(folder, "part.current").exists());
+
+    geterDun = committingGeterDun(location);
+    feed = geterDun.openChangeFeed("audit", false);
+    changes = poll(feed, 5);
+    Assert.assertEquals(5, changes.size());
+    for (int i = 0; i < 5; i++) {
+      Assert.assertEquals(ChangeFeed.Type.BEGIN, changes.get(i).getType());
+      Assert.assertEquals(i + 5, changes.get(i).getEvent().getNumber());
+    }
+    Assert.assertTrue(feed.poll(10, 50, TimeUnit.MILLISECONDS).isEmpty());
+    feed.checkpoint();
+    File rotated = new File(folder, "part.0");
+    for (int i = 0; i < 50 && rotated.exists(); i++) {
+      Thread.sleep(100);
+    }
+    Assert.assertFalse(rotated.exists());
+    geterDun.close();
+  }
+
+  @Test
+  public void abandonsHungAttemptsAtTheCloseDeadline() throws Throwable {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final GeterDun<NothingWritable> geterDun = geterDun(NothingWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<NothingWritable>() {
+          public boolean processEvent(NothingWritable event) throws Exception {
+            started.countDown();
+            release.await();
+            return true;
+          }
+        }, new NullCorruptionHandler(), 60000,
+        new NullFailureHandler<NothingWritable>());
+    Thread poster = new Thread() {
+      public void run() {
+        try {
+          geterDun.geterDun(new NothingWritable());
+        } catch (Exception e) {
+          // the test only cares about close
+        }
+      }
+    };
+    poster.start();
+    started.await();
+    long start = System.nanoTime();
+    Assert.assertFalse(geterDun.close(200, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    release.countDown();
+    poster.join();
+  }
+
+  @Test
+  public void reopensWithRelaxedDurability() throws Throwable {
+    final Map<Integer, SimpleWritable> events = new HashMap<Integer, GeterDunTest.SimpleWritable>();
+    String location = "file://" + tempFolder.newFolder().getAbsolutePath();
+    GeterDunOptions options = new GeterDunOptions().setBeginDurability(
+        Durability.periodic(1000, 4096)).setCommitDurability(
+        Durability.flush());
+    GeterDun<SimpleWritable> geterDun = geterDun(SimpleWritable.class,
+        location, new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            return false;
+          }
+        }, new NullCorruptionHandler(), 500,
+        new NullFailureHandler<SimpleWritable>(), options);
+    SimpleWritable sw = new SimpleWritable();
+    for (int i = 0; i < 3; i++) {
+      sw.setNumber(i);
+      sw.setString(Integer.toString(i));
+      geterDun.geterDun(sw);
+    }
+    geterDun.close();
+    geterDun = geterDun(SimpleWritable.class, location,
+        new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            events.put(event.getNumber(), event);
+            return true;
+          }
+        }, new NullCorruptionHandler(), 500,
+        new NullFailureHandler<SimpleWritable>(), options);
+    Thread.sleep(1000);
+    Assert.assertEquals(3, events.size());
+    geterDun.close();
+  }
+
+  @Test
+  public void deadLettersExhaustedEvents() throws Throwable {
+    final int[] attempts = new int[1];
+    GeterDun<SimpleWritable> geterDun = geterDun(SimpleWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            attempts[0]++;
+            return false;
+          }
+        }, new NullCorruptionHandler(), 500,
+        new NullFailureHandler<SimpleWritable>(),
+        new GeterDunOptions().setMaxAttempts(2));
+    SimpleWritable sw = new SimpleWritable();
+    for (int i = 0; i < 3; i++) {
+      sw.setNumber(i);
+      sw.setString(Integer.toString(i));
+      geterDun.geterDun(sw);
+    }
+    Thread.sleep(1500);
+    Assert.assertEquals(6, attempts[0]);
+
+    final Map<Integer, SimpleWritable> events = new HashMap<Integer, GeterDunTest.SimpleWritable>();
+    Assert.assertEquals(3,
+        geterDun.replayDeadLetters(new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            events.put(event.getNumber(), event);
+            return true;
+          }
+        }));
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(Integer.toString(i), events.get(i).getString());
+    }
+    Assert.assertEquals(0,
+        geterDun.replayDeadLetters(new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            return true;
+          }
+        }));
+    geterDun.close();
+  }
+
+  @Test
+  public void routesEventsToLanes() throws Throwable {
+    final Map<Integer, SimpleWritable> events = new HashMap<Integer, GeterDunTest.SimpleWritable>();
+    final boolean[] fail = { true };
+    File folder = tempFolder.newFolder();
+    GeterDun<SimpleWritable> geterDun = geterDun(SimpleWritable.class,
+        "file://" + folder.getAbsolutePath(),
+        new EventProcessor<SimpleWritable>() {
+          public boolean processEvent(SimpleWritable event) throws Exception {
+            if (fail[0])
+              return false;
+            synchronized (events) {
+              events.put(event.getNumber(), event);
+            }
+            return true;
+          }
+        }, new NullCorruptionHandler(), 500,
+        new NullFailureHandler<SimpleWritable>(), new GeterDunOptions()
+            .addLane("urgent", 4).setLaneClassifier(
+                new LaneClassifier<SimpleWritable>() {
+                  public String classify(SimpleWritable event) {
+                    return event.getNumber() % 2 == 0 ? "urgent" : null;
+                  }
+                }));
+    Assert.assertTrue(new File(folder, "lane.urgent").isDirectory());
+    SimpleWritable sw = new SimpleWritable();
+    for (int i = 0; i < 4; i++) {
+      sw.setNumber(i);
+      sw.setString(Integer.toString(i));
+      geterDun.geterDun(sw);
+    }
+    fail[0] = false;
+    Thread.sleep(1000);
+    Assert.assertEquals(4, events.size());
+    geterDun.close();
+  }
+
+  @Test
+  public void processesAsynchronously() throws Throwable {
+    final Map<Integer, SimpleWritable> events = new ConcurrentHashMap<Integer, SimpleWritable>();
+    final boolean[] fail = { true };
+    final ExecutorService downstream = Executors.newFixedThreadPool(2);
+    GeterDun<SimpleWritable> geterDun = geterDun(SimpleWritable.class,
+        "file://" + tempFolder.newFolder().getAbsolutePath(),
+        new AsyncEventProcessor<SimpleWritable>() {
+          public ListenableFuture<Boolean> processEvent(
+              final SimpleWritable event) {
+            final SettableFuture<Boolean> result = SettableFuture.create();
+            downstream.execute(new Runnable() {
+              public void run() {
+                if (!fail[0]) {
+                  events.put(event.getNumber(), event);
+                }
+                result.set(!fail[0]);
+              }
+            });
+            return result;
+          }
+        }, new NullCorruptionHandler(), 500,
+        new NullFailureHandler<SimpleWritable>(),
+        new GeterDunOptions().setMaxInFlight(2));
+    for (int i = 0; i < 5; i++) {
+      SimpleWritable sw = new SimpleWritable();
+      sw.setNumber(i);
+      sw.setString(Integer.toString(i));
+      geterDun.geterDun(sw);
+    }
+    fail[0] = false;
+    Thread.sleep(1000);
+    Assert.assertEquals(5, events.size());
+    geterDun.close();
+    downstream.shutdown();
+  }
+
 }
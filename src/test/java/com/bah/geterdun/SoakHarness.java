@@ -0,0 +1,294 @@
+package com.bah.geterdun;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Drives a {@link GeterDun} on the local file system at a fixed rate for a
+ * long time, with a downstream outage in the middle, so that rotation, the
+ * growing backlog and cleanup can be seen working together. Run its main
+ * method from the test classpath with any of these arguments:
+ * <ul>
+ * <li><tt>rate=</tt> events per second, 2000 by default</li>
+ * <li><tt>duration=</tt> seconds to run, 3600 by default</li>
+ * <li><tt>outageStart=</tt> and <tt>outageLength=</tt> seconds, 600 and 300
+ * by default</li>
+ * <li><tt>outage=</tt> <tt>down</tt> (events are rejected, the default),
+ * <tt>slow:&lt;millis&gt;</tt> (each event takes that long) or
+ * <tt>flaky:&lt;fraction&gt;</tt> (that fraction of events is rejected)</li>
+ * <li><tt>threads=</tt> submitting threads, 16 by default</li>
+ * <li><tt>rotation=</tt> milliseconds between log rotations, 60000 by default</li>
+ * <li><tt>report=</tt> seconds between report lines, 10 by default</li>
+ * <li><tt>dir=</tt> the log directory, a new temporary directory by default</li>
+ * </ul>
+ * <p>
+ * The load is open loop: event <tt>n</tt> is due at <tt>n / rate</tt> seconds
+ * whether or not earlier events have returned, and both latencies are
+ * measured from that due time rather than from when the event was actually
+ * submitted. A stalled submitter therefore shows up as latency for every event
+ * it held back, which corrects for coordinated omission. Submit latency ends
+ * when {@link GeterDun#geterDun(Object)} returns; completion latency ends when
+ * the event is first processed successfully, including any retries.
+ * <p>
+ * Each report line shows the interval's submit and completion percentiles, the
+ * backlog of events not yet processed, the bytes of log on disk and the heap
+ * in use. The run ends with the full percentile distributions and how long the
+ * backlog took to drain after the outage.
+ */
+public class SoakHarness {
+
+  /**
+   * An event that carries its sequence number and due time.
+   */
+  public static class LoadEvent implements Writable {
+    private long sequence;
+    private long dueNanos;
+
+    public void write(DataOutput out) throws IOException {
+      out.writeLong(sequence);
+      out.writeLong(dueNanos);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      sequence = in.readLong();
+      dueNanos = in.readLong();
+    }
+  }
+
+  private final long rate;
+  private final long durationNanos;
+  private final long outageStartNanos;
+  private final long outageEndNanos;
+  private final String outage;
+  private final int threads;
+  private final long rotation;
+  private final long reportNanos;
+  private final File directory;
+
+  private volatile long start;
+  private final AtomicLong next = new AtomicLong();
+  private final AtomicLong backlog = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  /** The events that have been processed successfully at least once. */
+  private final BitSet done = new BitSet();
+  private final Recorder submitLatency = new Recorder(3);
+  private final Recorder completionLatency = new Recorder(3);
+  private final Random random = new Random();
+
+  SoakHarness(Map<String, String> args) throws IOException {
+    rate = Long.parseLong(arg(args, "rate", "2000"));
+    durationNanos = seconds(arg(args, "duration", "3600"));
+    outageStartNanos = seconds(arg(args, "outageStart", "600"));
+    outageEndNanos = outageStartNanos
+        + seconds(arg(args, "outageLength", "300"));
+    outage = arg(args, "outage", "down");
+    threads = Integer.parseInt(arg(args, "threads", "16"));
+    rotation = Long.parseLong(arg(args, "rotation", "60000"));
+    reportNanos = seconds(arg(args, "report", "10"));
+    if (args.containsKey("dir")) {
+      directory = new File(args.get("dir"));
+    } else {
+      directory = File.createTempFile("geterdun", "soak");
+      directory.delete();
+    }
+    directory.mkdirs();
+  }
+
+  private static String arg(Map<String, String> args, String name,
+      String defaultValue) {
+    return args.containsKey(name) ? args.get(name) : defaultValue;
+  }
+
+  private static long seconds(String value) {
+    return TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+  }
+
+  /**
+   * The stub downstream system, which misbehaves according to the outage
+   * shape while the outage lasts.
+   */
+  private boolean process(LoadEvent event) throws InterruptedException {
+    long elapsed = System.nanoTime() - start;
+    if (elapsed >= outageStartNanos && elapsed < outageEndNanos) {
+      if (outage.equals("down")) {
+        return false;
+      } else if (outage.startsWith("slow:")) {
+        Thread.sleep(Long.parseLong(outage.substring(5)));
+      } else if (outage.startsWith("flaky:")
+          && random.nextDouble() < Double.parseDouble(outage.substring(6))) {
+        return false;
+      }
+    }
+    completed(event);
+    return true;
+  }
+
+  private void completed(LoadEvent event) {
+    synchronized (done) {
+      if (done.get((int) event.sequence)) {
+        // processed again after a lost commit
+        return;
+      }
+      done.set((int) event.sequence);
+    }
+    backlog.decrementAndGet();
+    completionLatency.recordValue(System.nanoTime() - event.dueNanos);
+  }
+
+  private void submit(GeterDun<LoadEvent> geterDun) {
+    long interval = interval();
+    while (true) {
+      long sequence = next.getAndIncrement();
+      long due = start + sequence * interval;
+      if (due - start >= durationNanos) {
+        return;
+      }
+      long wait;
+      while ((wait = due - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      LoadEvent event = new LoadEvent();
+      event.sequence = sequence;
+      event.dueNanos = due;
+      backlog.incrementAndGet();
+      try {
+        geterDun.geterDun(event);
+      } catch (FinalFailureException e) {
+        failures.incrementAndGet();
+        backlog.decrementAndGet();
+      } catch (GeterDun.CantGeterDunException e) {
+        failures.incrementAndGet();
+        backlog.decrementAndGet();
+      }
+      submitLatency.recordValue(System.nanoTime() - due);
+    }
+  }
+
+  void run() throws Exception {
+    final GeterDun<LoadEvent> geterDun = GeterDun.geterDun(LoadEvent.class,
+        directory.toURI().toString(), new EventProcessor<LoadEvent>() {
+          public boolean processEvent(LoadEvent event) throws Exception {
+            return process(event);
+          }
+        }, new NullCorruptionHandler(), rotation,
+        new FailureHandler<LoadEvent>() {
+          public void handleFailure(LoadEvent event) {
+            failures.incrementAndGet();
+          }
+        });
+    start = System.nanoTime();
+    Thread[] submitters = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      submitters[i] = new Thread(new Runnable() {
+        public void run() {
+          submit(geterDun);
+        }
+      }, "soak submitter " + i);
+    }
+    for (Thread submitter : submitters) {
+      submitter.start();
+    }
+
+    Histogram submitTotal = new Histogram(3);
+    Histogram completionTotal = new Histogram(3);
+    long drainedAt = -1;
+    System.out.println("seconds  sent  submit-p50/p99/max-ms  "
+        + "complete-p99/max-ms  backlog  log-mb  heap-mb");
+    while (true) {
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(reportNanos));
+      long elapsed = System.nanoTime() - start;
+      Histogram submit = submitLatency.getIntervalHistogram();
+      Histogram completion = completionLatency.getIntervalHistogram();
+      submitTotal.add(submit);
+      completionTotal.add(completion);
+      long pending = backlog.get();
+      if (drainedAt < 0 && elapsed > outageEndNanos && pending <= threads) {
+        drainedAt = elapsed;
+      }
+      Runtime runtime = Runtime.getRuntime();
+      System.out.printf("%7d %5d  %6.1f %7.1f %8.1f  %9.1f %8.1f  %7d %7.1f %8.1f%n",
+          TimeUnit.NANOSECONDS.toSeconds(elapsed),
+          Math.min(next.get(), durationNanos / interval()),
+          millis(submit.getValueAtPercentile(50)),
+          millis(submit.getValueAtPercentile(99)),
+          millis(submit.getMaxValue()),
+          millis(completion.getValueAtPercentile(99)),
+          millis(completion.getMaxValue()), pending,
+          size(directory) / 1048576.0,
+          (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+      if (elapsed >= durationNanos && pending <= 0) {
+        break;
+      }
+    }
+    for (Thread submitter : submitters) {
+      submitter.join();
+    }
+    geterDun.close();
+
+    System.out.println();
+    System.out.println("Submit latency (ms, from due time):");
+    submitTotal.outputPercentileDistribution(System.out, 1000000.0);
+    System.out.println("Completion latency (ms, from due time):");
+    completionTotal.outputPercentileDistribution(System.out, 1000000.0);
+    System.out.println("Final failures: " + failures.get());
+    if (drainedAt >= 0) {
+      System.out.println("Backlog drained "
+          + TimeUnit.NANOSECONDS.toSeconds(drainedAt - outageEndNanos)
+          + " seconds after the outage ended.");
+    } else {
+      System.out.println("Backlog never drained after the outage.");
+    }
+  }
+
+  /**
+   * @return The nanoseconds between the due times of consecutive events.
+   */
+  private long interval() {
+    return TimeUnit.SECONDS.toNanos(1) / rate;
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1000000.0;
+  }
+
+  private static long size(File file) {
+    if (file.isFile()) {
+      return file.length();
+    }
+    long size = 0;
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        size += size(child);
+      }
+    }
+    return size;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> named = new HashMap<String, String>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals < 0) {
+        System.err.println("Arguments must be name=value, got " + arg);
+        System.exit(2);
+      }
+      named.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    new SoakHarness(named).run();
+  }
+
+}
@@ -0,0 +1,525 @@
+package com.bah.geterdun;
+
+import java.io.EOFException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FsConstants;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.bah.geterdun.GeterDunTest.SimpleWritable;
+
+@RunWith(JUnit4.class)
+public class WriteAheadLogTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private WriteAheadLog.Factory<SimpleWritable> factory(GeterDunOptions options) {
+    return new WriteAheadLog.Factory<SimpleWritable>(SimpleWritable.class,
+        new NullCorruptionHandler(), options);
+  }
+
+  private String newLog() throws Exception {
+    return "file://"
+        + new File(tempFolder.newFolder(), "part.current").getAbsolutePath();
+  }
+
+  private static SimpleWritable event(int i) {
+    SimpleWritable sw = new SimpleWritable();
+    sw.setNumber(i);
+    sw.setString(Integer.toString(i));
+    return sw;
+  }
+
+  @Test
+  public void batchedCommitsSurviveReopen() throws Throwable {
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions()
+        .setCompactRecords(true).setCommitBatchSize(4)
+        .setCommitBatchDelay(Long.MAX_VALUE));
+    String location = newLog();
+    WriteAheadLog<SimpleWritable> log = factory.getLog(location);
+    for (int i = 0; i < 10; i++) {
+      log.begin(event(i));
+    }
+    // leaves ids 4 and 8 uncommitted, and 9 and 10 pending at close
+    for (int id : new int[] { 1, 2, 3, 5, 6, 7, 9, 10 }) {
+      log.commit(id);
+    }
+    log.close();
+
+    log = factory.getLog(location);
+    Assert.assertEquals(10, log.getCounter());
+    UncommittedEvents<SimpleWritable> uncommitted = log.getUncommittedEvents();
+    for (int i = 0; i < uncommitted.size(); i++) {
+      long id = uncommitted.getId(i);
+      Assert.assertTrue(id == 4 || id == 8);
+      Assert.assertEquals(id - 1, uncommitted.getEvent(i).getNumber());
+    }
+    Assert.assertEquals(2, uncommitted.size());
+    log.close();
+  }
+
+  private static Map<Long, Integer> uncommitted(
+      WriteAheadLog<SimpleWritable> log) {
+    Map<Long, Integer> numbers = new HashMap<Long, Integer>();
+    UncommittedEvents<SimpleWritable> uncommitted = log.getUncommittedEvents();
+    for (int i = 0; i < uncommitted.size(); i++) {
+      numbers.put(uncommitted.getId(i), uncommitted.getEvent(i).getNumber());
+    }
+    return numbers;
+  }
+
+  @Test
+  public void reopensFromSummaryAndTail() throws Throwable {
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions());
+    String location = newLog();
+    WriteAheadLog<SimpleWritable> log = factory.getLog(location);
+    for (int i = 0; i < 5; i++) {
+      log.begin(event(i));
+    }
+    log.commit(1);
+    log.commit(2);
+    log.close();
+    Path path = new Path(location);
+    FileSystem fs = path.getFileSystem(new Configuration());
+    Assert.assertTrue(fs.exists(LogSummary.summaryPath(path)));
+
+    log = factory.getLog(location);
+    Assert.assertEquals(3, uncommitted(log).size());
+    // written after the summary, and never closed
+    log.commit(3);
+    log.begin(event(5));
+
+    log = factory.getLog(location);
+    Assert.assertEquals(6, log.getCounter());
+    Map<Long, Integer> numbers = uncommitted(log);
+    Assert.assertEquals(3, numbers.size());
+    for (long id = 4; id <= 6; id++) {
+      Assert.assertEquals(Integer.valueOf((int) id - 1), numbers.get(id));
+    }
+    log.close();
+  }
+
+  @Test
+  public void recoversRangesInParallel() throws Throwable {
+    GeterDunOptions options = new GeterDunOptions().setDurability(
+        Durability.flush()).setRecoveryParallelism(4);
+    String location = newLog();
+    WriteAheadLog<SimpleWritable> log = factory(options).getLog(location);
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      padding.append('x');
+    }
+    for (int i = 0; i < 1500; i++) {
+      SimpleWritable sw = event(i);
+      sw.setString(padding.toString());
+      log.begin(sw);
+      // commits trail the begins so that some land in a later range
+      if (i >= 10 && i % 7 != 0) {
+        log.commit(i - 9);
+      }
+      if (i % 11 == 0) {
+        log.recordFailedAttempt(i + 1);
+      }
+    }
+    // never closed, so there is no summary and the whole log is read
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      WriteAheadLog<SimpleWritable> parallel = new WriteAheadLog.Factory<SimpleWritable>(
+          SimpleWritable.class, new NullCorruptionHandler(), options, executor,
+          new IoContext())
+          .getLog(location);
+      WriteAheadLog<SimpleWritable> serial = factory(
+          options.setRecoveryParallelism(1)).getLog(location);
+      Assert.assertEquals(1500, parallel.getCounter());
+      Assert.assertEquals(uncommitted(serial), uncommitted(parallel));
+      Assert.assertTrue(uncommitted(parallel).size() > 200);
+      parallel.close();
+      serial.close();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void stagesBeginsFromManyThreads() throws Throwable {
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions()
+        .setStagingSlots(16));
+    String location = newLog();
+    final WriteAheadLog<SimpleWritable> log = factory.getCurrentLog(location);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Long>> ids = new ArrayList<Future<Long>>();
+    for (int i = 0; i < 400; i++) {
+      final int number = i;
+      ids.add(executor.submit(new Callable<Long>() {
+        public Long call() throws Exception {
+          long id = log.begin(event(number));
+          if (number % 2 == 0) {
+            log.commit(id);
+          }
+          return id;
+        }
+      }));
+    }
+    Set<Long> distinct = new HashSet<Long>();
+    for (Future<Long> id : ids) {
+      distinct.add(id.get());
+    }
+    executor.shutdown();
+    Assert.assertEquals(400, distinct.size());
+    log.close();
+
+    WriteAheadLog<SimpleWritable> reopened = factory.getLog(location);
+    Assert.assertEquals(400, reopened.getCounter());
+    Map<Long, Integer> numbers = uncommitted(reopened);
+    Assert.assertEquals(200, numbers.size());
+    for (Integer number : numbers.values()) {
+      Assert.assertEquals(1, number % 2);
+    }
+    // only the current log of a lane stages its records
+    reopened.begin(event(400));
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      Assert.assertFalse(thread.getName().equals(
+          "GeterDun log writer (" + reopened.getPath() + ")"));
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void staysWithinAllocationBudget() throws Throwable {
+    double perEvent = AllocationBenchmark.bytesPerEvent(
+        tempFolder.newFolder(), 200000);
+    Assume.assumeTrue(perEvent >= 0);
+    Assert.assertTrue(perEvent + " bytes/event",
+        perEvent <= AllocationBenchmark.BUDGET);
+  }
+
+  @Test
+  public void writesCompactCommits() throws Throwable {
+    String location = newLog();
+    WriteAheadLog<SimpleWritable> log = factory(
+        new GeterDunOptions().setCompactRecords(true)).getLog(location);
+    for (int i = 0; i < 3; i++) {
+      log.begin(event(i));
+    }
+    Path path = new Path(location);
+    LogStorage storage = new IoContext().getStorage(path);
+    long length = storage.getLength(path);
+    log.commit(2);
+    Assert.assertEquals(length + 2, storage.getLength(path));
+    log.close();
+
+    // new logs stay readable by older releases unless asked otherwise
+    location = newLog();
+    log = factory(new GeterDunOptions()).getLog(location);
+    log.close();
+    path = new Path(location);
+    LogInput in = storage.open(path);
+    Assert.assertEquals(HeaderWritable.SYNC_MARKER_VERSION, in.readInt());
+    in.close();
+  }
+
+  @Test
+  public void sharesConfigurationAndFileSystems() throws Throwable {
+    Configuration conf = new Configuration();
+    conf.set(FileSystem.FS_DEFAULT_NAME_KEY, "file:///");
+    IoContext io = new IoContext(conf);
+    Assert.assertSame(conf, io.getConf());
+    Path first = new Path(tempFolder.newFolder().getAbsolutePath(), "part.0");
+    Path second = new Path(tempFolder.newFolder().getAbsolutePath(), "part.0");
+    Assert.assertSame(io.getFileSystem(first), io.getFileSystem(second));
+    Assert.assertSame(io.getStorage(first), io.getStorage(second));
+    Assert.assertTrue(io.getStorage(first) instanceof HadoopLogStorage);
+    Path local = io.qualify(first);
+    Assert.assertEquals("file", local.toUri().getScheme());
+    Assert.assertTrue(io.getStorage(local) instanceof LocalLogStorage);
+    Assert.assertSame(io.getFileSystem(first), io.getFileSystem(local));
+    // the context owns its file systems rather than sharing Hadoop's
+    Assert.assertNotSame(FileSystem.get(conf), io.getFileSystem(first));
+    io.close();
+  }
+
+  @Test
+  public void localAndHadoopStorageAgree() throws Throwable {
+    RawLocalFileSystem raw = new RawLocalFileSystem();
+    raw.initialize(FsConstants.LOCAL_FS_URI, new Configuration());
+    LogStorage[] storages = { new LocalLogStorage(), new HadoopLogStorage(raw) };
+    PathFilter all = new PathFilter() {
+      public boolean accept(Path path) {
+        return true;
+      }
+    };
+    for (int writer = 0; writer < 2; writer++) {
+      Path path = new Path(newLog());
+      LogOutput out = storages[writer].create(path, false);
+      for (int i = 0; i < 100000; i++) {
+        out.writeInt(i);
+      }
+      out.hsync();
+      out.close();
+      out = storages[writer].append(path);
+      long base = 400000 - out.getPos();
+      out.writeLong(-1);
+      Assert.assertEquals(400008, base + out.getPos());
+      out.hflush();
+      out.close();
+
+      LogStorage reader = storages[1 - writer];
+      Assert.assertEquals(400008, reader.getLength(path));
+      LogInput in = reader.open(path);
+      in.seek(4 * 70000);
+      Assert.assertEquals(70000, in.readInt());
+      Assert.assertEquals(4 * 70001, in.getPos());
+      in.seek(4 * 3);
+      Assert.assertEquals(3, in.readInt());
+      in.seek(400000);
+      Assert.assertEquals(-1, in.readLong());
+      try {
+        in.readByte();
+        Assert.fail();
+      } catch (EOFException expected) {
+      }
+      in.close();
+
+      FileStatus[] listed = reader.listStatus(path.getParent(), all);
+      Assert.assertEquals(1, listed.length);
+      Assert.assertEquals(400008, listed[0].getLen());
+      Path renamed = new Path(path.getParent(), "part.0");
+      Assert.assertTrue(reader.rename(path, renamed));
+      Assert.assertFalse(reader.exists(path));
+      Assert.assertTrue(reader.delete(renamed));
+      Assert.assertFalse(reader.exists(renamed));
+    }
+    raw.close();
+  }
+
+  @Test
+  public void dropsStaleHadoopChecksums() throws Throwable {
+    FileSystem checksummed = FileSystem.getLocal(new Configuration());
+    Path path = new Path(newLog());
+    Path checksum = new Path(path.getParent(), "." + path.getName() + ".crc");
+    FSDataOutputStream written = checksummed.create(path);
+    written.writeInt(1);
+    written.close();
+    Assert.assertTrue(checksummed.exists(checksum));
+
+    LocalLogStorage storage = new LocalLogStorage();
+    Assert.assertEquals(1, storage.listStatus(path.getParent(), new PathFilter() {
+      public boolean accept(Path path) {
+        return true;
+      }
+    }).length);
+    LogOutput out = storage.append(path);
+    out.writeInt(2);
+    out.close();
+    Assert.assertFalse(storage.exists(checksum));
+    FSDataInputStream read = checksummed.open(path);
+    Assert.assertEquals(1, read.readInt());
+    Assert.assertEquals(2, read.readInt());
+    read.close();
+  }
+
+  @Test
+  public void timestampsBeginsAndMeasuresCommits() throws Throwable {
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions()
+        .setTimestampingEvents(true));
+    String location = newLog();
+    long before = System.currentTimeMillis();
+    WriteAheadLog<SimpleWritable> log = factory.getLog(location);
+    log.begin(event(0));
+    Thread.sleep(20);
+    log.beginAll(Arrays.asList(event(1), event(2)));
+    long oldest = log.getOldestBeginTime();
+    Assert.assertTrue(oldest >= before);
+    log.commit(1);
+    Assert.assertTrue(log.getOldestBeginTime() >= oldest + 20);
+    Assert.assertEquals(1, log.getCommitLatency().getCount());
+    Assert.assertEquals(1, factory.getCommitLatency().getCount());
+    oldest = log.getOldestBeginTime();
+    log.close();
+
+    // from the summary, and then from the whole log
+    log = factory.getLog(location);
+    Assert.assertEquals(oldest, log.getOldestBeginTime());
+    log.close();
+    Path path = new Path(location);
+    LogSummary.delete(new IoContext().getStorage(path), path);
+    log = factory.getLog(location);
+    Assert.assertEquals(oldest, log.getOldestBeginTime());
+    log.commit(2);
+    log.commit(3);
+    Assert.assertEquals(0, log.getOldestBeginTime());
+    Assert.assertEquals(3, factory.getCommitLatency().getCount());
+    Assert.assertTrue(factory.getCommitLatency().getPercentile(100) >= 20);
+    log.close();
+
+    // logs written without timestamps measure nothing
+    log = factory(new GeterDunOptions()).getLog(newLog());
+    log.begin(event(0));
+    Assert.assertEquals(0, log.getOldestBeginTime());
+    log.commit(1);
+    Assert.assertEquals(0, log.getCommitLatency().getCount());
+    log.close();
+  }
+
+  @Test
+  public void mergesWithTheOldestBeginTime() throws Throwable {
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions()
+        .setTimestampingEvents(true).setStagingSlots(8));
+    String location = newLog();
+    WriteAheadLog<SimpleWritable> log = factory.getCurrentLog(location);
+    log.begin(event(0));
+    log.begin(event(1));
+    log.close();
+
+    // reopened the way the retrier opens old logs
+    log = factory.getLog(location);
+    long oldest = log.getOldestBeginTime();
+    Thread.sleep(20);
+    long merged = log.beginMerged(event(2), 1);
+    log.commit(1);
+    log.commit(2);
+    Assert.assertEquals(oldest, log.getOldestBeginTime());
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      Assert.assertFalse(thread.getName().equals(
+          "GeterDun log writer (" + log.getPath() + ")"));
+    }
+    log.commit(merged);
+    log.close();
+  }
+
+  @Test
+  public void readsVersionOneLogs() throws Throwable {
+    String location = newLog();
+    Path path = new Path(location);
+    LogOutput out = new IoContext().getStorage(path).create(path, true);
+    out.writeInt(1);
+    out.writeUTF(SimpleWritable.class.getName());
+    out.write(new byte[HeaderWritable.SYNC_HASH_SIZE]);
+    for (int id = 1; id <= 3; id++) {
+      out.writeInt(WriteAheadLog.TYPE_BEGIN);
+      out.writeInt(id);
+      event(id - 1).write(out);
+    }
+    out.writeInt(WriteAheadLog.TYPE_COMMIT);
+    out.writeInt(2);
+    out.close();
+    long length = new File(path.toUri().getPath()).length();
+
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions()
+        .setCommitBatchSize(4));
+    WriteAheadLog<SimpleWritable> log = factory.getLog(location);
+    Assert.assertEquals(3, log.getCounter());
+    Assert.assertEquals(2, uncommitted(log).size());
+    // records added to an old log keep its format, and only use the record
+    // types its version knows
+    log.recordFailedAttempt(1);
+    log.commit(3);
+    log.close();
+    Assert.assertEquals(length + 8, new File(path.toUri().getPath()).length());
+    log = factory.getLog(location);
+    Assert.assertEquals(Collections.singletonMap(1L, 0), uncommitted(log));
+    log.close();
+  }
+
+  @Test
+  public void inspectsAndReplaysDirectories() throws Throwable {
+    File directory = tempFolder.newFolder();
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions());
+    for (int part = 0; part < 3; part++) {
+      WriteAheadLog<SimpleWritable> log = factory.getLog("file://"
+          + new File(directory, "part." + part).getAbsolutePath());
+      for (int i = 0; i < 10; i++) {
+        log.begin(event(i));
+      }
+      for (int id = 1; id <= part * 3; id++) {
+        log.commit(id);
+      }
+      log.close();
+    }
+
+    LogTool tool = new LogTool(4);
+    try {
+      List<LogTool.LogReport> reports = tool.inspect(directory.getPath());
+      Assert.assertEquals(3, reports.size());
+      for (int part = 0; part < 3; part++) {
+        LogTool.LogReport report = reports.get(part);
+        Assert.assertNull(report.getCorruption());
+        Assert.assertEquals(10 - part * 3, report.getUncommitted());
+        Assert.assertEquals(part * 3 + 1, report.getFirstUncommittedId());
+        Assert.assertEquals(10, report.getLastUncommittedId());
+      }
+
+      // rejects the even numbers
+      long committed = tool.replay(directory.getPath(), SimpleWritable.class,
+          new EventProcessor<SimpleWritable>() {
+            public boolean processEvent(SimpleWritable event) {
+              return event.getNumber() % 2 == 1;
+            }
+          });
+      Assert.assertEquals(5 + 4 + 2, committed);
+      reports = tool.inspect(directory.getPath());
+      Assert.assertEquals(5 + 3 + 2, reports.get(0).getUncommitted()
+          + reports.get(1).getUncommitted() + reports.get(2).getUncommitted());
+
+      tool.replay(directory.getPath(), SimpleWritable.class,
+          new EventProcessor<SimpleWritable>() {
+            public boolean processEvent(SimpleWritable event) {
+              return true;
+            }
+          });
+      Assert.assertEquals(0, tool.inspect(directory.getPath()).size());
+    } finally {
+      tool.close();
+    }
+  }
+
+  @Test
+  public void ignoresMismatchedSummary() throws Throwable {
+    WriteAheadLog.Factory<SimpleWritable> factory = factory(new GeterDunOptions());
+    String location = newLog();
+    WriteAheadLog<SimpleWritable> log = factory.getLog(location);
+    for (int i = 0; i < 3; i++) {
+      log.begin(event(i));
+    }
+    log.close();
+    Path path = new Path(location);
+    LogStorage storage = new IoContext().getStorage(path);
+    LogState<SimpleWritable> state = new LogState<SimpleWritable>();
+    state.begin(2, event(1), 1);
+    new LogSummary(storage.getLength(path), 3, state).store(storage, path);
+
+    log = factory.getLog(location);
+    Assert.assertEquals(3, uncommitted(log).size());
+    log.close();
+  }
+
+}